@@ -33,6 +33,53 @@ public interface DiscreteDistribution
     
     public double[] getDistribution(int n);
     
+    /**
+     * Computes the probability mass function into a caller-supplied array, 
+     * or extends an already computed prefix. 
+     * Entries 0..<var>computed</var> of the array are assumed to hold the 
+     * probabilities for the current parameters, and are not recomputed.
+     * If the array is too short (or null), a new array is allocated 
+     * with the prefix copied over. 
+     * 
+     * The default implementation calls {@link #getDistribution(int) }; 
+     * implementations should override it to avoid the allocation.  
+     * 
+     * @param n limit on how far the probabilities are computed
+     * @param d array for the probabilities; may be null
+     * @param computed last valid index in the array (-1 if nothing is computed yet)
+     * @return the array <var>d</var>, or a new array if <var>d</var> had fewer than <var>n</var>+1 elements 
+     */
+    public default double[] getDistribution(int n, double[] d, int computed)
+    {
+        d = ensureCapacity(d, n, computed);
+        if (computed<n)
+        {
+            double[] pmf = getDistribution(n);
+            System.arraycopy(pmf, computed+1, d, computed+1, n-computed);
+        }
+        return d;
+    }
+    
+    /**
+     * Array allocation for {@link #getDistribution(int, double[], int) }.
+     * 
+     * @param d array for the probabilities; may be null
+     * @param n limit on how far the probabilities are computed
+     * @param computed last valid index in the array
+     * @return <var>d</var> if it is long enough, or else a new array of length <var>n</var>+1 with the prefix copied  
+     */
+    public static double[] ensureCapacity(double[] d, int n, int computed)
+    {
+        if (d==null || d.length<=n)
+        {
+            double[] longer = new double[n+1];
+            if (d!=null && computed>=0)
+                System.arraycopy(d, 0, longer, 0, Math.min(computed+1, d.length));
+            d = longer;
+        }
+        return d;
+    }
+    
     /**
      * Returns the distribution's parameters: depends on the implementation what they mean
      * @return array of <var>k</var> elements for a <var>k</var>-parameter distribution  
@@ -54,5 +101,40 @@ public interface DiscreteDistribution
      * @return a non-negative integer
      */
     public int getNumParameters();
+    
+    /**
+     * Probability generating function: &sum;<sub><var>k</var></sub> <var>p</var><sub><var>k</var></sub> <var>s</var><sup><var>k</var></sup>.
+     * With 0&le;<var>s</var>&le;1, this is the probability that none of the <var>X</var> items 
+     * survive when each one is lost independently with probability <var>s</var>. 
+     * 
+     * The default implementation sums the mass function until the tail is negligible; 
+     * implementations should override it with the closed form. 
+     * 
+     * @param s argument between 0 and 1
+     * @return value of the generating function
+     */
+    public default double getGeneratingFunction(double s)
+    {
+        int n = 16;
+        double[] pmf = getDistribution(n, null, -1);
+        double sum = 0.0;
+        double total = 0.0;
+        double power = 1.0;
+        int k = 0;
+        while (true)
+        {
+            for (; k<=n; k++)
+            {
+                sum += pmf[k]*power;
+                total += pmf[k];
+                power *= s;
+            }
+            if (1.0-total<=Functions.EPS || power==0.0 || n>=(1<<24))
+                break;
+            pmf = getDistribution(2*n, pmf, n);
+            n = 2*n;
+        }
+        return sum;
+    }
         
 }
@@ -724,8 +724,8 @@ public class FunctionMinimization
             { 
                 fac+=dg[i]*xi[i]; 
                 fae+=dg[i]*hdg[i]; 
-                sumdg+=Math.sqrt(dg[i]); 
-                sumxi+=Math.sqrt(xi[i]); 
+                sumdg+=dg[i]*dg[i]; 
+                sumxi+=xi[i]*xi[i]; 
             } 
             if(fac>Math.sqrt(EPS*sumdg*sumxi))
             { // Skip update if fac not sufficiently positive.
@@ -752,6 +752,303 @@ public class FunctionMinimization
         } // and go back for another iteration. 
         throw new FunctionMinimization.OptimizationException("Too many iterations in dfpmin"); 
     }
+    /**
+     * Default number of correction pairs kept by lbfgs.
+     */
+    public static int LBFGS_HISTORY=8;
+    /**
+     * Maximum allowed number of iterations (lbfgs).
+     */
+    public static int LBFGS_ITMAX=1000;
+    /**
+     * Convergence criterion on x values (lbfgs).
+     */
+    public static double LBFGS_TOLX=1e-12;
+    /**
+     * Scaled maximum step length allowed in line searches (lbfgs), as DFP_STPMX.
+     */
+    public static double LBFGS_STPMX=100.0;
+    /**
+     * Maximum number of backtracking steps in one line search (lbfgs).
+     */
+    public static int LBFGS_LNSRCH_MAX=40;
+
+    /**
+     * Reusable storage for {@link #lbfgs(double[], double[], double[], double, DerivableMultiParameterFunction, LBFGSWorkspace) }: the correction pairs
+     * and the vectors of the iterations. Only <var>n</var>&times;<var>m</var> values are stored
+     * for <var>n</var> parameters and history length <var>m</var>.
+     * A workspace can be used by one call at a time.
+     */
+    public static class LBFGSWorkspace
+    {
+        /**
+         * Workspace with the default history length.
+         *
+         * @param n number of parameters
+         */
+        public LBFGSWorkspace(int n)
+        {
+            this(n, LBFGS_HISTORY);
+        }
+
+        /**
+         * Workspace with a given history length.
+         *
+         * @param n number of parameters
+         * @param m number of correction pairs kept
+         */
+        public LBFGSWorkspace(int n, int m)
+        {
+            if (m<1)
+                throw new IllegalArgumentException("History length must be positive");
+            this.history_length = m;
+            allocate(n);
+        }
+
+        private final int history_length;
+        private int dimension;
+        private double[][] s;
+        private double[][] y;
+        private double[] rho;
+        private double[] alpha;
+        private double[] direction;
+        private double[] xnew;
+        private double[] free_gradient;
+
+        private void allocate(int n)
+        {
+            this.dimension = n;
+            int m = history_length;
+            s = new double[m][n];
+            y = new double[m][n];
+            rho = new double[m];
+            alpha = new double[m];
+            direction = new double[n];
+            xnew = new double[n];
+            free_gradient = new double[n];
+        }
+
+        /**
+         * Reallocates if the number of parameters changed.
+         */
+        private void ensureDimension(int n)
+        {
+            if (n != dimension)
+                allocate(n);
+        }
+
+        public int getHistoryLength()
+        {
+            return history_length;
+        }
+    }
+
+    /**
+     * Limited-memory BFGS minimization with the default history length, without bounds.
+     *
+     * @param p starting point, also the location of the minimum on return
+     * @param gtol the convergence requirement on zeroing the gradient
+     * @param func the function to be minimized
+     * @return the value of the minimum
+     */
+    public static double lbfgs(double[] p, double gtol, DerivableMultiParameterFunction func)
+    {
+        return lbfgs(p, null, null, gtol, func, new LBFGSWorkspace(p.length));
+    }
+
+    /**
+     * Limited-memory BFGS minimization with bound constraints (projected variant).
+     * The inverse Hessian is represented by the last few correction pairs (two-loop recursion),
+     * so the cost of an iteration is O(<var>nm</var>) instead of the O(<var>n</var><sup>2</sup>)
+     * of {@link #dfpmin(double[], double, DerivableMultiParameterFunction) }.
+     * Variables at a bound with the gradient pointing outwards are held fixed in the
+     * direction computation; the line search backtracks along the projected path
+     * until sufficient decrease.
+     * The convergence tests follow dfpmin, with the projected gradient.
+     *
+     * @param p starting point (projected into the bounds), also the location of the minimum on return
+     * @param lower lower bounds; null for none (entries may be Double.NEGATIVE_INFINITY)
+     * @param upper upper bounds; null for none (entries may be Double.POSITIVE_INFINITY)
+     * @param gtol the convergence requirement on zeroing the projected gradient
+     * @param func the function to be minimized
+     * @param work workspace; reallocated if sized for a different number of parameters
+     * @return the value of the minimum
+     */
+    public static double lbfgs(double[] p, double[] lower, double[] upper, double gtol,
+            DerivableMultiParameterFunction func, LBFGSWorkspace work)
+    {
+        int n = p.length;
+        work.ensureDimension(n);
+        int m = work.history_length;
+        double[][] S = work.s;
+        double[][] Y = work.y;
+        double[] rho = work.rho;
+        double[] alpha = work.alpha;
+        double[] d = work.direction;
+        double[] xnew = work.xnew;
+        double[] gfree = work.free_gradient;
+
+        project(p, lower, upper);
+        double fp = func.eval(p);
+        double[] g = func.dfunc(p);
+        double sum=0.0;
+        for (int i=0; i<n; i++)
+            sum += p[i]*p[i];
+        double stpmax = LBFGS_STPMX*Math.max(Math.sqrt(sum), (double)n);
+
+        int num_pairs = 0; // stored correction pairs
+        int newest = -1; // position of the newest pair in the ring buffer
+        for (int its=1; its<=LBFGS_ITMAX; its++)
+        {
+            // convergence on the projected gradient
+            double test = 0.0;
+            double den = Math.max(Math.abs(fp), 1.0);
+            for (int i=0; i<n; i++)
+            {
+                double step = p[i]-g[i];
+                if (lower != null && step<lower[i]) step = lower[i];
+                if (upper != null && step>upper[i]) step = upper[i];
+                double temp = Math.abs(p[i]-step)*Math.max(Math.abs(p[i]), 1.0)/den;
+                if (temp>test)
+                    test = temp;
+            }
+            if (test<gtol)
+                return fp;
+
+            // free variables
+            for (int i=0; i<n; i++)
+                gfree[i] = isHeld(p, g, lower, upper, i)?0.0:g[i];
+
+            // two-loop recursion: d = -H*gfree
+            System.arraycopy(gfree, 0, d, 0, n);
+            for (int k=0, j=newest; k<num_pairs; k++, j=(j+m-1)%m)
+            {
+                double a = rho[j]*dot(S[j], d);
+                alpha[j] = a;
+                for (int i=0; i<n; i++)
+                    d[i] -= a*Y[j][i];
+            }
+            double gamma = 1.0;
+            if (num_pairs>0)
+                gamma = 1.0/(rho[newest]*dot(Y[newest], Y[newest]));
+            for (int i=0; i<n; i++)
+                d[i] *= gamma;
+            for (int k=0, j=(newest-num_pairs+1+m)%m; k<num_pairs; k++, j=(j+1)%m)
+            {
+                double b = rho[j]*dot(Y[j], d);
+                for (int i=0; i<n; i++)
+                    d[i] += (alpha[j]-b)*S[j][i];
+            }
+            double slope = 0.0;
+            for (int i=0; i<n; i++)
+            {
+                if (gfree[i]==0.0 && isHeld(p, g, lower, upper, i))
+                    d[i] = 0.0;
+                d[i] = -d[i];
+                slope += g[i]*d[i];
+            }
+            if (!(slope<0.0))
+            {
+                // not a descent direction: restart with steepest descent
+                num_pairs = 0;
+                slope = 0.0;
+                for (int i=0; i<n; i++)
+                {
+                    d[i] = -gfree[i];
+                    slope += g[i]*d[i];
+                }
+                if (!(slope<0.0))
+                    return fp;
+            }
+            double len = Math.sqrt(dot(d, d));
+            double alam = (num_pairs==0?Math.min(1.0, 1.0/len):1.0); // first step without curvature information is scaled
+            if (alam*len>stpmax)
+                alam = stpmax/len;
+
+            // backtracking along the projected path
+            double fnew = Double.NaN;
+            boolean found = false;
+            for (int ls=0; ls<LBFGS_LNSRCH_MAX; ls++)
+            {
+                double decrease = 0.0;
+                for (int i=0; i<n; i++)
+                {
+                    double x = p[i]+alam*d[i];
+                    if (lower != null && x<lower[i]) x = lower[i];
+                    if (upper != null && x>upper[i]) x = upper[i];
+                    xnew[i] = x;
+                    decrease += g[i]*(x-p[i]);
+                }
+                fnew = func.eval(xnew);
+                if (fnew<=fp+LNSRCH_ALF*decrease)
+                {
+                    found = true;
+                    break;
+                }
+                alam *= 0.5;
+            }
+            if (!found)
+                return fp; // no progress along the direction
+
+            double[] gnew = func.dfunc(xnew);
+            // correction pair
+            int next = (newest+1)%m;
+            double sy = 0.0, yy = 0.0;
+            test = 0.0;
+            for (int i=0; i<n; i++)
+            {
+                double si = xnew[i]-p[i];
+                double yi = gnew[i]-g[i];
+                S[next][i] = si;
+                Y[next][i] = yi;
+                sy += si*yi;
+                yy += yi*yi;
+                double temp = Math.abs(si)/Math.max(Math.abs(xnew[i]), 1.0);
+                if (temp>test)
+                    test = temp;
+            }
+            if (sy>1e-10*yy) // curvature condition; otherwise the pair is skipped
+            {
+                rho[next] = 1.0/sy;
+                newest = next;
+                if (num_pairs<m)
+                    num_pairs++;
+            }
+            System.arraycopy(xnew, 0, p, 0, n);
+            fp = fnew;
+            g = gnew;
+            if (test<LBFGS_TOLX)
+                return fp;
+        }
+        throw new OptimizationException("Too many iterations in lbfgs");
+    }
+
+    /**
+     * Whether a variable is held at its bound: the gradient points outwards.
+     */
+    private static boolean isHeld(double[] x, double[] g, double[] lower, double[] upper, int i)
+    {
+        return (lower != null && x[i]<=lower[i] && g[i]>0.0)
+                || (upper != null && x[i]>=upper[i] && g[i]<0.0);
+    }
+
+    private static void project(double[] x, double[] lower, double[] upper)
+    {
+        for (int i=0; i<x.length; i++)
+        {
+            if (lower != null && x[i]<lower[i]) x[i] = lower[i];
+            if (upper != null && x[i]>upper[i]) x[i] = upper[i];
+        }
+    }
+
+    private static double dot(double[] a, double[] b)
+    {
+        double s = 0.0;
+        for (int i=0; i<a.length; i++)
+            s += a[i]*b[i];
+        return s;
+    }
+
     /**
      * Exception throws when too many iteration in one of the routines.
      */
@@ -59,30 +59,43 @@ public class NegativeBinomial implements DiscreteDistribution
     @Override
     public double[] getDistribution(int n)
     {
-        double[] d = new double[n+1];
+        return getDistribution(n, new double[n+1], -1);
+    }
+    
+    @Override
+    public double[] getDistribution(int n, double[] d, int computed)
+    {
+        d = DiscreteDistribution.ensureCapacity(d, n, computed);
+        if (computed>=n)
+            return d;
         if (t>2e9) // largest integer is about 2.147e9
         {
-            // use logarithms in the calculation
+            // use logarithms in the calculation; 
+            // the prefix may have underflowed, so the log-terms are recomputed from 0
             
             // (1-q)^t = e^{-tq) when t is large
-            d[0]=-q*t;
+            double logd=-q*t;
+            if (computed<0)
+                d[0] = Math.exp(logd);
             double logq = Math.log(q);
             for (int j=1; j<=n; j++)
             {
                 double f = Math.log((t+j-1.0)/((double)j));
-                d[j] = d[j-1]+f+logq; 
-                //System.out.println("#*NB.gD logd["+j+"]= "+d[j]+"\t"+d[j-1]+"\tf "+f+"\tq "+q+"\tt "+t+"\t"+(1.-q));
-            }
-            for (int j=0; j<d.length; j++)
-            {
-                d[j] = Math.exp(d[j]);
+                logd = logd+f+logq; 
+                if (j>computed)
+                    d[j] = Math.exp(logd);
+                //System.out.println("#*NB.gD logd["+j+"]= "+logd+"\tf "+f+"\tq "+q+"\tt "+t+"\t"+(1.-q));
             }
         }
         else
         {
             double q1 = 1.-q;
-            d[0] = Math.pow(q1,t);
-            for (int j=1; j<=n; j++)
+            if (computed<0)
+            {
+                d[0] = Math.pow(q1,t);
+                computed = 0;
+            }
+            for (int j=computed+1; j<=n; j++)
             {
                 double f = (t+j-1.0)/((double)j);
                 d[j] = d[j-1]*f*q; 
@@ -124,6 +137,15 @@ public class NegativeBinomial implements DiscreteDistribution
     
     @Override
     public final int getNumParameters(){return 2;}
+    
+    /**
+     * Generating function ((1-<var>q</var>)/(1-<var>qs</var>))<sup><var>t</var></sup>.
+     */
+    @Override
+    public double getGeneratingFunction(double s)
+    {
+        return Math.exp(t*(Math.log1p(-q)-Math.log1p(-q*s)));
+    }
 
     @Override
     public String toString()
@@ -48,10 +48,17 @@ public class PointDistribution implements DiscreteDistribution
     @Override
     public double[] getDistribution(int n)
     {
-        double[] d= new double[n+1];
-        d[0] = p;
-        if (n>=1) d[1]=1.-p;
-        // d[2..] are all 0.0 if those were requested
+        return getDistribution(n, new double[n+1], -1);
+    }
+    
+    @Override
+    public double[] getDistribution(int n, double[] d, int computed)
+    {
+        d = DiscreteDistribution.ensureCapacity(d, n, computed);
+        if (computed<0 && n>=0) d[0] = p;
+        if (computed<1 && n>=1) d[1]=1.-p;
+        for (int i=Math.max(2, computed+1); i<=n; i++) // the buffer may be reused
+            d[i] = 0.0;
         return d;
     }
 
@@ -63,6 +70,15 @@ public class PointDistribution implements DiscreteDistribution
     @Override
     public final int getNumParameters(){return 1;}
     
+    /**
+     * Generating function <var>p</var>+(1-<var>p</var>)<var>s</var>.
+     */
+    @Override
+    public double getGeneratingFunction(double s)
+    {
+        return p+(1.0-p)*s;
+    }
+    
     /**
      * Returns the probability of x==0
      * 
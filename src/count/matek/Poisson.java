@@ -47,12 +47,22 @@ public class Poisson implements DiscreteDistribution
      */
     @Override
     public double[] getDistribution(int n)
+    {
+        return getDistribution(n, new double[n+1], -1);
+    }
+    
+    @Override
+    public double[] getDistribution(int n, double[] d, int computed)
     {
         //System.out.println("#**Poisson  r="+r);
-        double[] d = new double[n+1];
-        d[0] = Math.exp(-r);
+        d = DiscreteDistribution.ensureCapacity(d, n, computed);
+        if (computed<0 && n>=0)
+        {
+            d[0] = Math.exp(-r);
+            computed = 0;
+        }
         //System.out.println("#**Poisson[0]\t"+d[0]);
-        for (int j=1; j<=n; j++)
+        for (int j=computed+1; j<=n; j++)
         {
             double f = r/j;
             d[j] = d[j-1]*f;
@@ -93,4 +103,13 @@ public class Poisson implements DiscreteDistribution
     @Override
     public final int getNumParameters(){return 1;}
     
+    /**
+     * Generating function e<sup>-<var>r</var>(1-<var>s</var>)</sup>.
+     */
+    @Override
+    public double getGeneratingFunction(double s)
+    {
+        return Math.exp(-r*(1.0-s));
+    }
+    
 }
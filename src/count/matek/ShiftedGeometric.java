@@ -56,22 +56,32 @@ public class ShiftedGeometric implements DiscreteDistribution
     @Override
     public double[] getDistribution(int n)
     {
-        double[] d = new double[n+1];
-        d[0] = p;
+        return getDistribution(n, new double[n+1], -1);
+    }
+    
+    @Override
+    public double[] getDistribution(int n, double[] d, int computed)
+    {
+        d = DiscreteDistribution.ensureCapacity(d, n, computed);
+        if (computed<0 && n>=0)
+            d[0] = p;
         //System.out.println("#*SG.gD n "+0+"\t"+d[0]+"\t// p "+p+"\tq "+q);
-        if (n>=1)
+        if (computed<1 && n>=1)
         {
             d[1]=(1-p)*(1-q);
             //System.out.println("#*SG.gD n "+1+"\t"+d[1]+"\t// p "+p+"\tq "+q);
         }
+        int i = Math.max(2, computed+1);
         if (q!=0.0)
         {
-            for (int i=2; i<=n; i++)
+            for (; i<=n; i++)
             {
                 d[i] = d[i-1]*q;
                 //System.out.println("#*SG.gD n "+n+"\t"+d[n]+"\t// p "+p+"\tq "+q);
             }
-        }
+        } 
+        for (; i<=n; i++) // the buffer may be reused
+            d[i] = 0.0;
         return d;
     }    
     
@@ -103,6 +113,15 @@ public class ShiftedGeometric implements DiscreteDistribution
     @Override
     public final int getNumParameters(){return 2;}
     
+    /**
+     * Generating function <var>p</var>+(1-<var>p</var>)(1-<var>q</var>)<var>s</var>/(1-<var>qs</var>).
+     */
+    @Override
+    public double getGeneratingFunction(double s)
+    {
+        return p+(1.0-p)*(1.0-q)*s/(1.0-q*s);
+    }
+    
     @Override
     public String toString()
     {
@@ -20,6 +20,8 @@ import count.matek.NegativeBinomial;
 import count.matek.PointDistribution;
 import count.matek.Poisson;
 import count.matek.ShiftedGeometric;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
@@ -31,6 +33,22 @@ public final class BirthDeathProcess
 {
     private BirthDeathProcess(){}
     
+    /**
+     * Source of modification stamps for the rate models.
+     */
+    private static final AtomicLong VERSION_COUNTER = new AtomicLong();
+    
+    /**
+     * A new modification stamp, larger than all the previous ones. 
+     * 
+     * @return a positive integer
+     * @see ProbabilisticEvolutionModel.BirthDeath#getEdgeVersion(int) 
+     */
+    static long newVersion()
+    {
+        return VERSION_COUNTER.incrementAndGet();
+    }
+    
     public static DiscreteDistribution getTransient0(ProbabilisticEvolutionModel.BirthDeath model, int node_idx)
     {
         return getTransient0(model, node_idx, 0.0);
@@ -200,5 +218,437 @@ public final class BirthDeathProcess
         }
     }
 
-    
+    /**
+     * Cache of the transient distributions (without extinction) for the edges
+     * in one or more rate classes. 
+     * 
+     * The probability mass functions are stored as truncated arrays, 
+     * which are extended on demand without recomputing the known prefix, 
+     * and recomputed in place when the parameters change. An entry is recomputed by {@link #update() } only 
+     * if the modification stamp of the edge changed
+     * (see {@link ProbabilisticEvolutionModel.BirthDeath#getEdgeVersion(int) }): 
+     * the stamp of a {@link ScaledTree} edge changes with the underlying 
+     * rates and with the class multipliers. 
+     * Models that do not track changes are always recomputed. 
+     * 
+     * The cache also holds the extinction probabilities for every node and class 
+     * ({@link #getExtinction(int, int) }, {@link #getEdgeExtinction(int, int) }), 
+     * for the conditioned transients 
+     * ({@link BirthDeathProcess#getTransient0(ProbabilisticEvolutionModel.BirthDeath, int, double) } and 
+     * {@link BirthDeathProcess#getTransient1(ProbabilisticEvolutionModel.BirthDeath, int, double) }). 
+     * They are refreshed by {@link #update() } in the same pass, only on the recomputed edges and above them; 
+     * an edge recomputed by the single-edge {@link #update(int, int) } is marked, 
+     * and its extinction probabilities are refreshed at the next {@link #update() }.
+     * 
+     * An instance is not thread-safe. 
+     */
+    public static final class TransientCache
+    {
+        /**
+         * Cache for a single model.
+         * 
+         * @param model rate model
+         */
+        public TransientCache(ProbabilisticEvolutionModel.BirthDeath model)
+        {
+            this(new ProbabilisticEvolutionModel.BirthDeath[]{model});
+        }
+        
+        /**
+         * Cache for the current rate classes of a rate-variation model. 
+         * (A new cache is needed if the class models are replaced.)
+         * 
+         * @param rate_variation mixture model 
+         */
+        public TransientCache(RateVariation rate_variation)
+        {
+            this(getClassModels(rate_variation));
+        }
+        
+        /**
+         * Cache for multiple rate classes over the same tree.
+         * 
+         * @param class_models one model for each rate class
+         */
+        public TransientCache(ProbabilisticEvolutionModel.BirthDeath[] class_models)
+        {
+            this.class_models = class_models;
+            this.tree = class_models[0].getPhylogeny();
+            int num_classes = class_models.length;
+            int num_nodes = tree.getNumNodes();
+            this.versions = new long[num_classes][num_nodes];
+            this.transient0 = new DiscreteDistribution[num_classes][num_nodes];
+            this.transient0_pmf = new double[num_classes][num_nodes][];
+            this.transient1 = new DiscreteDistribution[num_classes][num_nodes];
+            this.transient1_pmf = new double[num_classes][num_nodes][];
+            this.transient1_parameters = new double[num_classes][num_nodes][];
+            this.root_prior = new DiscreteDistribution[num_classes];
+            this.root_parameters = new double[num_classes][];
+            this.root_pmf = new double[num_classes][];
+            this.extinction = new double[num_classes][num_nodes];
+            this.edge_extinction = new double[num_classes][num_nodes];
+            this.stale_extinction = new boolean[num_classes][num_nodes];
+            this.updated_nodes = new boolean[num_nodes];
+            this.change_counts = new long[num_classes];
+            for (int class_idx=0; class_idx<num_classes; class_idx++)
+            {
+                Arrays.fill(versions[class_idx], Long.MIN_VALUE);
+                for (int node_idx=0; node_idx<num_nodes; node_idx++)
+                    transient1_parameters[class_idx][node_idx] = new double[2];
+            }
+            update();
+        }
+        
+        private static ProbabilisticEvolutionModel.BirthDeath[] getClassModels(RateVariation rate_variation)
+        {
+            int num_classes = rate_variation.getNumClasses();
+            ProbabilisticEvolutionModel.BirthDeath[] models = new ProbabilisticEvolutionModel.BirthDeath[num_classes];
+            for (int class_idx=0; class_idx<num_classes; class_idx++)
+                models[class_idx] = rate_variation.getClassModel(class_idx);
+            return models;
+        }
+        
+        private final ProbabilisticEvolutionModel.BirthDeath[] class_models;
+        private final IndexedTree tree;
+        /**
+         * Modification stamps with which the entries were computed.
+         */
+        private final long[][] versions;
+        private final DiscreteDistribution[][] transient0;
+        private final double[][][] transient0_pmf;
+        private final DiscreteDistribution[][] transient1;
+        private final double[][][] transient1_pmf;
+        /**
+         * Shifted geometric parameters {p,q} for the inherited copies.
+         */
+        private final double[][][] transient1_parameters;
+        private final DiscreteDistribution[] root_prior;
+        private final double[][] root_parameters;
+        private final double[][] root_pmf;
+        /**
+         * Extinction probability at a node: probability that a single copy 
+         * at the node has no descendants at the leaves of its subtree.
+         */
+        private final double[][] extinction;
+        /**
+         * Extinction probability on an edge: probability that a single copy 
+         * at the parent has no descendants at the leaves through the edge.
+         */
+        private final double[][] edge_extinction;
+        /**
+         * Edges recomputed since the last extinction sweep in the class; 
+         * set by {@link #update(int, int) } and cleared only by {@link #updateExtinction(int) }.
+         */
+        private final boolean[][] stale_extinction;
+        /**
+         * Scratch space for one extinction sweep: nodes changed in the sweep
+         * (every entry is reset in the sweep before it is read, so the arrays can be shared between the classes).
+         */
+        private final boolean[] updated_nodes;
+        /**
+         * Number of updates that changed something in the class.
+         */
+        private final long[] change_counts;
+        
+        public int getNumClasses()
+        {
+            return class_models.length;
+        }
+        
+        public ProbabilisticEvolutionModel.BirthDeath getClassModel(int class_idx)
+        {
+            return class_models[class_idx];
+        }
+        
+        /**
+         * Recomputes the stale entries. 
+         * 
+         * @return number of edges (across all classes) that were recomputed
+         */
+        public int update()
+        {
+            int num_updated = 0;
+            int num_nodes = tree.getNumNodes();
+            for (int class_idx=0; class_idx<class_models.length; class_idx++)
+            {
+                for (int node_idx=0; node_idx<num_nodes; node_idx++)
+                    if (!tree.isRoot(node_idx) && update(class_idx, node_idx))
+                        num_updated++;
+                // also catches the edges recomputed by single-edge updates since the last call
+                boolean changed = updateExtinction(class_idx);
+                if (updateRoot(class_idx))
+                    changed = true;
+                if (changed)
+                    change_counts[class_idx]++;
+            }
+            return num_updated;
+        }
+        
+        /**
+         * Recomputes the extinction probabilities in one postorder sweep, 
+         * on the edges in {@link #stale_extinction} and on their ancestors. 
+         * With inheritance <var>T</var><sub>1</sub> = ShiftedGeometric(<var>p</var>, <var>q</var>) on the edge 
+         * and extinction <var>&epsilon;</var> at the child, the edge extinction is
+         * the generating function of <var>T</var><sub>1</sub> at <var>&epsilon;</var>: 
+         * <var>p</var>+(1-<var>p</var>)(1-<var>q</var>)<var>&epsilon;</var>/(1-<var>q</var><var>&epsilon;</var>); 
+         * the node extinction is the product of the edge extinctions to the children.  
+         * 
+         * @return whether any edge was marked stale
+         */
+        private boolean updateExtinction(int class_idx)
+        {
+            double[] node_eps = extinction[class_idx];
+            double[] edge_eps = edge_extinction[class_idx];
+            boolean[] stale_edges = stale_extinction[class_idx];
+            boolean any_stale = false;
+            int num_nodes = tree.getNumNodes();
+            for (int node_idx=0; node_idx<num_nodes; node_idx++) // postorder: children first
+            {
+                updated_nodes[node_idx] = false;
+                if (tree.isLeaf(node_idx))
+                    continue; // extinction 0
+                boolean changed = false;
+                int num_children = tree.getNumChildren(node_idx);
+                for (int ci=0; ci<num_children; ci++)
+                {
+                    int child_idx = tree.getChildIndex(node_idx, ci);
+                    if (stale_edges[child_idx] || updated_nodes[child_idx])
+                    {
+                        any_stale = any_stale || stale_edges[child_idx];
+                        stale_edges[child_idx] = false;
+                        double D = getTransient1GeneratingFunction(class_idx, child_idx, node_eps[child_idx]);
+                        changed = changed || D != edge_eps[child_idx];
+                        edge_eps[child_idx] = D;
+                    }
+                }
+                if (changed)
+                {
+                    double eps = 1.0;
+                    for (int ci=0; ci<num_children; ci++)
+                        eps *= edge_eps[tree.getChildIndex(node_idx, ci)];
+                    updated_nodes[node_idx] = eps != node_eps[node_idx];
+                    node_eps[node_idx] = eps;
+                }
+            }
+            return any_stale;
+        }
+        
+        /**
+         * Recomputes an entry if it is stale.
+         * 
+         * @param class_idx rate class
+         * @param node_idx child node for the edge
+         * @return whether the entry was recomputed
+         */
+        public boolean update(int class_idx, int node_idx)
+        {
+            ProbabilisticEvolutionModel.BirthDeath model = class_models[class_idx];
+            long version = model.getEdgeVersion(node_idx);
+            if (version>=0L && version == versions[class_idx][node_idx])
+                return false;
+            
+            versions[class_idx][node_idx] = version;
+            
+            DiscreteDistribution T0 = BirthDeathProcess.getTransient0(model, node_idx);
+            transient0[class_idx][node_idx] = T0;
+            double[] pmf0 = transient0_pmf[class_idx][node_idx];
+            int n0 = (pmf0==null?0:pmf0.length-1);
+            transient0_pmf[class_idx][node_idx] = T0.getDistribution(n0, pmf0, -1); // recomputed in place
+
+            DiscreteDistribution T1 = BirthDeathProcess.getTransient1(model, node_idx);
+            transient1[class_idx][node_idx] = T1;
+            double[] pmf1 = transient1_pmf[class_idx][node_idx];
+            int n1 = (pmf1==null?1:pmf1.length-1);
+            transient1_pmf[class_idx][node_idx] = T1.getDistribution(n1, pmf1, -1);
+            double[] params = T1.getParameters();
+            // PointDistribution(p) is the same as ShiftedGeometric(p,0)
+            transient1_parameters[class_idx][node_idx][0] = params[0];
+            transient1_parameters[class_idx][node_idx][1] = (params.length>1?params[1]:0.0);
+            stale_extinction[class_idx][node_idx] = true;
+            
+            return true;
+        }
+        
+        /**
+         * Recomputes the root prior if it is a different object, or if its parameters changed. 
+         * 
+         * @return whether the root prior was recomputed
+         */
+        private boolean updateRoot(int class_idx)
+        {
+            DiscreteDistribution R = class_models[class_idx].getRootDistribution();
+            double[] params = R.getParameters().clone();
+            if (R != root_prior[class_idx] || !Arrays.equals(params, root_parameters[class_idx]))
+            {
+                root_prior[class_idx] = R;
+                root_parameters[class_idx] = params;
+                double[] pmf = root_pmf[class_idx];
+                int n = (pmf==null?0:pmf.length-1);
+                root_pmf[class_idx] = R.getDistribution(n, pmf, -1);
+                return true;
+            }
+            return false;
+        }
+        
+        /**
+         * Number of calls to {@link #update() } that changed an edge or the root prior in a class: 
+         * values computed from the class's entries need to be refreshed only when it changes.  
+         * 
+         * @param class_idx rate class
+         * @return a counter
+         */
+        public long getChangeCount(int class_idx)
+        {
+            return change_counts[class_idx];
+        }
+        
+        /**
+         * Modification stamp of the model with which the entry was computed.
+         * 
+         * @param class_idx rate class
+         * @param node_idx child node for the edge
+         * @return edge version at the last update
+         */
+        public long getVersion(int class_idx, int node_idx)
+        {
+            return versions[class_idx][node_idx];
+        }
+        
+        /**
+         * Gain distribution on an edge, as computed at the last update.
+         * 
+         * @param class_idx rate class
+         * @param node_idx child node for the edge
+         * @param n largest copy number needed
+         * @return array of at least <var>n</var>+1 probabilities (may be longer)
+         */
+        public double[] getTransient0(int class_idx, int node_idx, int n)
+        {
+            double[] pmf = transient0_pmf[class_idx][node_idx];
+            if (pmf.length<=n)
+            {
+                pmf = transient0[class_idx][node_idx].getDistribution(Math.max(n, 2*(pmf.length-1)), pmf, pmf.length-1);
+                transient0_pmf[class_idx][node_idx] = pmf;
+            }
+            return pmf;
+        }
+        
+        /**
+         * Distribution for the descendants of one parental copy on an edge, as computed at the last update.
+         * 
+         * @param class_idx rate class
+         * @param node_idx child node for the edge
+         * @param n largest copy number needed
+         * @return array of at least <var>n</var>+1 probabilities (may be longer)
+         */
+        public double[] getTransient1(int class_idx, int node_idx, int n)
+        {
+            double[] pmf = transient1_pmf[class_idx][node_idx];
+            if (pmf.length<=n)
+            {
+                pmf = transient1[class_idx][node_idx].getDistribution(Math.max(n, 2*(pmf.length-1)), pmf, pmf.length-1);
+                transient1_pmf[class_idx][node_idx] = pmf;
+            }
+            return pmf;
+        }
+        
+        /**
+         * Shifted geometric parameters for the descendants of one parental copy.
+         * 
+         * @param class_idx rate class
+         * @param node_idx child node for the edge
+         * @return array {<var>p</var>, <var>q</var>}: probability of 0, and the ratio of the geometric tail (not a copy)
+         */
+        public double[] getTransient1Parameters(int class_idx, int node_idx)
+        {
+            return transient1_parameters[class_idx][node_idx];
+        }
+        
+        /**
+         * Extinction probability at a node, as computed at the last update: the probability 
+         * that a single copy at the node has no descendants at the leaves of its subtree. 
+         * 
+         * @param class_idx rate class
+         * @param node_idx node index
+         * @return 0 at the leaves
+         * @see BirthDeathProcess#getTransient1(ProbabilisticEvolutionModel.BirthDeath, int, double) 
+         */
+        public double getExtinction(int class_idx, int node_idx)
+        {
+            return extinction[class_idx][node_idx];
+        }
+        
+        /**
+         * Extinction probability on an edge, as computed at the last update: the probability 
+         * that a single copy at the parent has no descendants at the leaves through the edge. 
+         * 
+         * @param class_idx rate class
+         * @param node_idx child node for the edge
+         * @return probability of no surviving descendants in the subtree of the child
+         */
+        public double getEdgeExtinction(int class_idx, int node_idx)
+        {
+            return edge_extinction[class_idx][node_idx];
+        }
+        
+        /**
+         * Generating function of the gain distribution on an edge, as computed at the last update. 
+         * At the extinction probability of the child, this is the probability that none of the gained copies 
+         * have descendants at the leaves. 
+         * 
+         * @param class_idx rate class
+         * @param node_idx child node for the edge
+         * @param s argument between 0 and 1
+         * @return value of the generating function
+         */
+        public double getTransient0GeneratingFunction(int class_idx, int node_idx, double s)
+        {
+            return transient0[class_idx][node_idx].getGeneratingFunction(s);
+        }
+        
+        /**
+         * Generating function of the inheritance distribution on an edge, as computed at the last update. 
+         * At the extinction probability of the child, this is the extinction probability on the edge 
+         * ({@link #getEdgeExtinction(int, int) }). 
+         * 
+         * @param class_idx rate class
+         * @param node_idx child node for the edge
+         * @param s argument between 0 and 1
+         * @return value of the generating function
+         */
+        public double getTransient1GeneratingFunction(int class_idx, int node_idx, double s)
+        {
+            return Math.min(1.0, transient1[class_idx][node_idx].getGeneratingFunction(s)); // roundoff
+        }
+        
+        /**
+         * Generating function of the root prior, as computed at the last update. 
+         * 
+         * @param class_idx rate class
+         * @param s argument between 0 and 1
+         * @return value of the generating function
+         */
+        public double getRootGeneratingFunction(int class_idx, double s)
+        {
+            return root_prior[class_idx].getGeneratingFunction(s);
+        }
+        
+        /**
+         * Root prior, as computed at the last update.
+         * 
+         * @param class_idx rate class
+         * @param n largest copy number needed
+         * @return array of at least <var>n</var>+1 probabilities (may be longer)
+         */
+        public double[] getRootPrior(int class_idx, int n)
+        {
+            double[] pmf = root_pmf[class_idx];
+            if (pmf.length<=n)
+            {
+                pmf = root_prior[class_idx].getDistribution(Math.max(n, 2*(pmf.length-1)), pmf, pmf.length-1);
+                root_pmf[class_idx] = pmf;
+            }
+            return pmf;
+        }
+    }
 }
@@ -0,0 +1,726 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.matek.DiscreteDistribution;
+import count.matek.FunctionMinimization;
+import count.util.Executable;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Maximum-likelihood fitting of the lineage-specific rates
+ * by block-coordinate ascent over the edges.
+ *
+ * With all other parameters fixed, the likelihood of a family
+ * depends on the parameters of one edge only through the edge conditionals <var>E</var>:
+ * it is proportional to
+ * &sum;<sub><var>n</var></sub> <var>X</var>[<var>n</var>]<var>E</var>[<var>n</var>],
+ * where the weights <var>X</var> come from the outside pass (see {@link LikelihoodGradient}).
+ * After one inside-outside pass over the families, which caches the weights and the child's conditionals,
+ * the parameters of the edge can thus be optimized without touching the rest of the tree.
+ *
+ * The edges are grouped by the height of their child node: edges at the same
+ * height lead to disjoint subtrees, and are optimized concurrently against the same cache
+ * (Jacobi update). Since the joint update is not guaranteed to increase the likelihood,
+ * it is checked by a full likelihood computation; if it fails,
+ * the update is halved (in log-parameters), and, if that fails too,
+ * only the edge with the best (exact) improvement is updated.
+ * Large levels are split into batches so that the cache stays within a given capacity.
+ *
+ * The gain, loss and duplication rates are optimized on every edge
+ * (those that are 0 are kept at 0); the edge lengths are fixed,
+ * since on a single edge only their products with the rates matter.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class BlockCoordinateOptimization
+{
+    /**
+     * Default cache capacity, in number of doubles.
+     */
+    public static final int DEFAULT_CACHE_CAPACITY = 1<<24;
+    /**
+     * Default convergence criterion on the gradient of the per-family average in the edge optimizations.
+     */
+    public static final double DEFAULT_EDGE_TOLERANCE = 1e-7;
+    /**
+     * Optimized parameter types on the edges.
+     */
+    private static final int[] PARAMETER_TYPES = {LikelihoodGradient.PARAMETER_GAIN, LikelihoodGradient.PARAMETER_LOSS, LikelihoodGradient.PARAMETER_DUPLICATION};
+    /**
+     * Log-parameters are kept within &plusmn; this bound.
+     */
+    private static final double MAX_LOG_PARAMETER = 20.0;
+    /**
+     * Number of families per task in the passes.
+     */
+    private static final int CHUNK_SIZE = 32;
+
+    /**
+     * Optimization with the common thread pool.
+     *
+     * @param rates rate tree with lineage-specific parameters; modified by the optimization
+     * @param table family profiles, with columns in leaf index order
+     */
+    public BlockCoordinateOptimization(TreeWithRates rates, OccurrenceTable table)
+    {
+        this(rates, table, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Optimization with a given thread pool.
+     *
+     * @param rates rate tree with lineage-specific parameters; modified by the optimization
+     * @param table family profiles, with columns in leaf index order
+     * @param thread_pool pool for the parallel computations
+     */
+    public BlockCoordinateOptimization(TreeWithRates rates, OccurrenceTable table, ForkJoinPool thread_pool)
+    {
+        this.rates = rates;
+        this.tree = rates.getPhylogeny();
+        this.bounds = new CopyNumberBounds(tree, table,
+                Likelihood.DEFAULT_TRUNCATION_ABSOLUTE, Likelihood.DEFAULT_TRUNCATION_RELATIVE);
+        this.thread_pool = thread_pool;
+        this.idle_workers = new ConcurrentLinkedQueue<>();
+        this.cache_capacity = DEFAULT_CACHE_CAPACITY;
+        this.edge_tolerance = DEFAULT_EDGE_TOLERANCE;
+
+        int num_nodes = tree.getNumNodes();
+        // lineage-specific arrays are allocated here, so that the edge tasks can set their own entries concurrently
+        for (int node_idx=0; node_idx<num_nodes; node_idx++)
+            if (!tree.isRoot(node_idx))
+                for (int type: PARAMETER_TYPES)
+                    setParameter(node_idx, type, getParameter(node_idx, type));
+
+        // levels by height
+        int[] heights = new int[num_nodes];
+        int max_height = 0;
+        for (int node_idx=0; node_idx<num_nodes; node_idx++) // children before parents
+        {
+            int h = 0;
+            int num_children = tree.getNumChildren(node_idx);
+            for (int ci=0; ci<num_children; ci++)
+                h = Math.max(h, heights[tree.getChildIndex(node_idx, ci)]+1);
+            heights[node_idx] = h;
+            max_height = Math.max(max_height, h);
+        }
+        this.levels = new int[max_height][];
+        for (int h=0; h<max_height; h++)
+        {
+            int[] level = new int[num_nodes];
+            int level_size = 0;
+            for (int node_idx=0; node_idx<num_nodes; node_idx++)
+                if (!tree.isRoot(node_idx) && heights[node_idx]==h && hasFreeParameters(node_idx))
+                    level[level_size++] = node_idx;
+            levels[h] = Arrays.copyOf(level, level_size);
+        }
+    }
+
+    private final TreeWithRates rates;
+    private final IndexedTree tree;
+    private final CopyNumberBounds bounds;
+    private final ForkJoinPool thread_pool;
+    private final ConcurrentLinkedQueue<Worker> idle_workers;
+    /**
+     * Edges (by child node) grouped by height.
+     */
+    private final int[][] levels;
+
+    private int cache_capacity;
+    private double edge_tolerance;
+
+    private int num_rounds;
+    private int num_batches;
+    private int num_fallbacks;
+
+    /**
+     * Sets the cache capacity; a level with more cached values is processed in several batches.
+     *
+     * @param capacity number of doubles (the offsets are counted as half a double)
+     */
+    public void setCacheCapacity(int capacity)
+    {
+        if (capacity<1)
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        this.cache_capacity = capacity;
+    }
+
+    public void setEdgeTolerance(double tolerance)
+    {
+        this.edge_tolerance = tolerance;
+    }
+
+    public int getNumRounds()
+    {
+        return num_rounds;
+    }
+
+    public int getNumBatches()
+    {
+        return num_batches;
+    }
+
+    /**
+     * Number of batches where the Jacobi update was rejected.
+     *
+     * @return count across all rounds
+     */
+    public int getNumFallbacks()
+    {
+        return num_fallbacks;
+    }
+
+    private boolean hasFreeParameters(int node_idx)
+    {
+        for (int type: PARAMETER_TYPES)
+            if (getParameter(node_idx, type)>0.0)
+                return true;
+        return false;
+    }
+
+    private double getParameter(int node_idx, int type)
+    {
+        switch (type)
+        {
+            case LikelihoodGradient.PARAMETER_GAIN: return rates.getGainRate(node_idx);
+            case LikelihoodGradient.PARAMETER_LOSS: return rates.getLossRate(node_idx);
+            case LikelihoodGradient.PARAMETER_DUPLICATION: return rates.getDuplicationRate(node_idx);
+            default: return rates.getEdgeLength(node_idx);
+        }
+    }
+
+    private void setParameter(int node_idx, int type, double value)
+    {
+        switch (type)
+        {
+            case LikelihoodGradient.PARAMETER_GAIN: rates.setGainRate(node_idx, value); break;
+            case LikelihoodGradient.PARAMETER_LOSS: rates.setLossRate(node_idx, value); break;
+            case LikelihoodGradient.PARAMETER_DUPLICATION: rates.setDuplicationRate(node_idx, value); break;
+            default: rates.setEdgeLength(node_idx, value);
+        }
+    }
+
+    /**
+     * Log-likelihood of the table with the current parameters.
+     *
+     * @return sum of the family log-likelihoods
+     */
+    public double getLogLikelihood()
+    {
+        return thread_pool.invoke(new FamilyPass(null, 0, bounds.getTable().getFamilyCount()));
+    }
+
+    /**
+     * Rounds of block-coordinate ascent over all levels, from the leaves towards the root.
+     *
+     * @param max_rounds maximum number of rounds
+     * @param delta stops when a round improves the log-likelihood by less than this
+     * @return the final log-likelihood
+     */
+    public double optimize(int max_rounds, double delta)
+    {
+        double LL = getLogLikelihood();
+        try
+        {
+            for (int round=0; round<max_rounds; round++)
+            {
+                double round_start = LL;
+                for (int[] level: levels)
+                {
+                    int first = 0;
+                    while (first<level.length)
+                    {
+                        Batch batch = new Batch(level, first);
+                        first += batch.getNumEdges();
+                        LL = optimize(batch);
+                        num_batches++;
+                    }
+                }
+                num_rounds++;
+                if (LL-round_start<delta)
+                    break;
+            }
+        } finally
+        {
+            idle_workers.clear();
+        }
+        return LL;
+    }
+
+    /**
+     * Jacobi update on a batch.
+     *
+     * @return log-likelihood after the update
+     */
+    private double optimize(Batch batch)
+    {
+        double LL = thread_pool.invoke(new FamilyPass(batch, 0, bounds.getTable().getFamilyCount()));
+        int num_edges = batch.getNumEdges();
+        List<EdgeTask> edge_tasks = new ArrayList<>();
+        for (int slot=0; slot<num_edges; slot++)
+            edge_tasks.add(new EdgeTask(batch, slot));
+        thread_pool.invoke(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                invokeAll(edge_tasks);
+            }
+        });
+        if (num_edges==1)
+            return LL+edge_tasks.get(0).gain;
+
+        double new_LL = getLogLikelihood();
+        if (new_LL>=LL)
+            return new_LL;
+        // halfway in the log-parameters
+        for (EdgeTask task: edge_tasks)
+            task.setParameters(0.5);
+        new_LL = getLogLikelihood();
+        if (new_LL>=LL)
+            return new_LL;
+        num_fallbacks++;
+        EdgeTask best = null;
+        for (EdgeTask task: edge_tasks)
+        {
+            task.setParameters(0.0);
+            if (best==null || task.gain>best.gain)
+                best = task;
+        }
+        best.setParameters(1.0);
+        return LL+best.gain;
+    }
+
+    private Worker acquireWorker()
+    {
+        Worker W = idle_workers.poll();
+        if (W == null)
+            W = new Worker();
+        return W;
+    }
+
+    private void releaseWorker(Worker W)
+    {
+        idle_workers.add(W);
+    }
+
+    /**
+     * Engine with buffers, used by one thread at a time.
+     */
+    private class Worker
+    {
+        Worker()
+        {
+            this.engine = new LikelihoodGradient(rates);
+            this.family_bounds = new int[tree.getNumNodes()];
+            this.weights = new double[1];
+        }
+        private final LikelihoodGradient engine;
+        private final int[] family_bounds;
+        private double[] weights;
+    }
+
+    /**
+     * Edges within a level that share a cache: weights at the parent
+     * and conditionals at the child, for all families, in a flat array.
+     */
+    private class Batch
+    {
+        /**
+         * Takes the edges from a level, from a given position on, up to the cache capacity (at least one edge).
+         */
+        Batch(int[] level, int first)
+        {
+            OccurrenceTable table = bounds.getTable();
+            int num_families = table.getFamilyCount();
+            long total = 0L;
+            int last = first;
+            while (last<level.length)
+            {
+                int node_idx = level[last];
+                int parent_idx = tree.getParentIndex(node_idx);
+                long size = num_families/2;
+                for (int family_idx=0; family_idx<num_families; family_idx++)
+                {
+                    int b = bounds.getBound(family_idx, node_idx);
+                    if (b>=0)
+                        size += b+bounds.getBound(family_idx, parent_idx)+2;
+                }
+                if (last>first && total+size>cache_capacity)
+                    break;
+                total += size;
+                last++;
+            }
+            this.edges = Arrays.copyOfRange(level, first, last);
+            if (total>Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Cache for edge "+edges[0]+" does not fit in an array");
+
+            int num_edges = edges.length;
+            this.offsets = new int[num_edges][num_families];
+            this.max_bounds = new int[num_edges];
+            int offset = 0;
+            for (int slot=0; slot<num_edges; slot++)
+            {
+                int node_idx = edges[slot];
+                int parent_idx = tree.getParentIndex(node_idx);
+                int max = 0;
+                for (int family_idx=0; family_idx<num_families; family_idx++)
+                {
+                    int b = bounds.getBound(family_idx, node_idx);
+                    if (b<0)
+                        offsets[slot][family_idx] = -1;
+                    else
+                    {
+                        offsets[slot][family_idx] = offset;
+                        int pb = bounds.getBound(family_idx, parent_idx);
+                        offset += b+pb+2;
+                        max = Math.max(max, Math.max(b, pb));
+                    }
+                }
+                max_bounds[slot] = max;
+            }
+            this.data = new double[offset];
+        }
+
+        private final int[] edges;
+        /**
+         * Start of a family's weights at the parent, followed by the conditionals at the child; -1 for fully missing subtrees.
+         */
+        private final int[][] offsets;
+        private final int[] max_bounds;
+        private final double[] data;
+
+        int getNumEdges()
+        {
+            return edges.length;
+        }
+
+        /**
+         * Fills the cache from the engine after the inside-outside pass for a family.
+         */
+        void store(Worker W, int family_idx)
+        {
+            for (int slot=0; slot<edges.length; slot++)
+            {
+                int offset = offsets[slot][family_idx];
+                if (offset<0)
+                    continue;
+                int node_idx = edges[slot];
+                int bound = W.family_bounds[node_idx];
+                int parent_bound = W.family_bounds[tree.getParentIndex(node_idx)];
+                if (W.weights.length<=parent_bound)
+                    W.weights = new double[parent_bound+1];
+                W.engine.getEdgeWeights(node_idx, W.weights);
+                System.arraycopy(W.weights, 0, data, offset, parent_bound+1);
+                System.arraycopy(W.engine.getLikelihood().getNodeConditionals(node_idx), 0, data, offset+parent_bound+1, bound+1);
+            }
+        }
+    }
+
+    /**
+     * Log-likelihood over a range of families, optionally with filling a cache.
+     */
+    private class FamilyPass extends RecursiveTask<Double>
+    {
+        /**
+         * @param batch cache to fill; null for computing the log-likelihood only
+         */
+        FamilyPass(Batch batch, int first_family, int last_family)
+        {
+            this.batch = batch;
+            this.first_family = first_family;
+            this.last_family = last_family;
+        }
+        private final Batch batch;
+        private final int first_family;
+        private final int last_family;
+
+        @Override
+        protected Double compute()
+        {
+            if (last_family-first_family<=CHUNK_SIZE)
+            {
+                Worker W = acquireWorker();
+                try
+                {
+                    W.engine.computeParameters(); // edges changed since the last pass
+                    OccurrenceTable table = bounds.getTable();
+                    double LL = 0.0;
+                    for (int family_idx=first_family; family_idx<last_family; family_idx++)
+                    {
+                        bounds.getBounds(family_idx, W.family_bounds);
+                        LL += W.engine.computeLogLikelihood(table.getSizes(family_idx), W.family_bounds);
+                        if (batch != null)
+                        {
+                            W.engine.computeOutside();
+                            batch.store(W, family_idx);
+                        }
+                    }
+                    return LL;
+                } finally
+                {
+                    releaseWorker(W);
+                }
+            } else
+            {
+                int mid = (first_family+last_family)/2;
+                FamilyPass left = new FamilyPass(batch, first_family, mid);
+                FamilyPass right = new FamilyPass(batch, mid, last_family);
+                right.fork();
+                double left_LL = left.compute();
+                double right_LL = right.join();
+                return left_LL + right_LL;
+            }
+        }
+    }
+
+    /**
+     * Optimization of the parameters on one edge against the cache, by {@link FunctionMinimization#dfpmin(double[], double, count.matek.FunctionMinimization.DerivableMultiParameterFunction) }
+     * on the logarithms of the positive parameters.
+     * The objective is the negative of the average change in the family log-likelihoods.
+     */
+    private class EdgeTask extends RecursiveAction implements FunctionMinimization.DerivableMultiParameterFunction
+    {
+        /**
+         * The worker's engine is used only for its scratch space: the transients
+         * are computed here, since other edges are being modified concurrently.
+         */
+        EdgeTask(Batch batch, int slot)
+        {
+            this.batch = batch;
+            this.slot = slot;
+            this.node_idx = batch.edges[slot];
+            int[] types = new int[PARAMETER_TYPES.length];
+            int num_free = 0;
+            for (int type: PARAMETER_TYPES)
+                if (getParameter(node_idx, type)>0.0)
+                    types[num_free++] = type;
+            this.free_types = Arrays.copyOf(types, num_free);
+            this.start = new double[num_free];
+            for (int i=0; i<num_free; i++)
+                start[i] = Math.log(getParameter(node_idx, free_types[i]));
+            this.best = start.clone();
+        }
+
+        private final Batch batch;
+        private final int slot;
+        private final int node_idx;
+        private final int[] free_types;
+        /**
+         * Log-parameters before the optimization.
+         */
+        private final double[] start;
+        /**
+         * Log-parameters with the best objective value seen.
+         */
+        private double[] best;
+        private double best_value;
+        /**
+         * Exact change of the table's log-likelihood with the best parameters.
+         */
+        private double gain;
+
+        private LikelihoodGradient engine;
+        private double[] sc_weights;
+        private double[] sc_conditionals;
+        private double[] sc_edge;
+        private double[] sc_gain;
+        private double[] sc_powers;
+        private final double[] derivatives = new double[LikelihoodGradient.NUM_EDGE_PARAMETERS];
+
+        @Override
+        protected void compute()
+        {
+            Worker W = acquireWorker();
+            try
+            {
+                engine = W.engine;
+                int capacity = batch.max_bounds[slot]+1;
+                sc_weights = new double[capacity];
+                sc_conditionals = new double[capacity];
+                sc_edge = new double[capacity];
+                sc_gain = new double[capacity];
+                sc_powers = new double[capacity];
+
+                best_value = 0.0; // at the starting point
+                double[] x = start.clone();
+                try
+                {
+                    FunctionMinimization.dfpmin(x, edge_tolerance, this);
+                } catch (FunctionMinimization.OptimizationException E)
+                {
+                    // keep the best point seen
+                }
+                gain = -best_value*bounds.getTable().getFamilyCount();
+                setParameters(1.0);
+            } finally
+            {
+                engine = null;
+                releaseWorker(W);
+            }
+        }
+
+        /**
+         * Sets the parameters on the edge between the starting and the best point.
+         *
+         * @param step 0 for the starting point, 1 for the best point
+         */
+        void setParameters(double step)
+        {
+            for (int i=0; i<free_types.length; i++)
+                setParameter(node_idx, free_types[i], Math.exp(start[i]+step*(best[i]-start[i])));
+        }
+
+        private void setParameters(double[] x)
+        {
+            for (int i=0; i<free_types.length; i++)
+            {
+                double xi = Math.max(-MAX_LOG_PARAMETER, Math.min(x[i], MAX_LOG_PARAMETER));
+                setParameter(node_idx, free_types[i], Math.exp(xi));
+            }
+        }
+
+        @Override
+        public double eval(double[] x)
+        {
+            double f = computeObjective(x, false);
+            if (f<best_value)
+            {
+                best_value = f;
+                // same clamping as in the objective, so that the committed rates stay positive
+                best = new double[x.length];
+                for (int i=0; i<x.length; i++)
+                    best[i] = Math.max(-MAX_LOG_PARAMETER, Math.min(x[i], MAX_LOG_PARAMETER));
+            }
+            return f;
+        }
+
+        @Override
+        public double[] dfunc(double[] x)
+        {
+            double[] df = new double[x.length];
+            computeObjective(x, true);
+            for (int i=0; i<x.length; i++)
+                df[i] = x[i]<-MAX_LOG_PARAMETER || x[i]>MAX_LOG_PARAMETER
+                        ?0.0
+                        :derivatives[free_types[i]]*Math.exp(x[i]); // chain rule for the log-transform
+            return df;
+        }
+
+        /**
+         * Negative average log-likelihood change, with the gradient by the (not log-transformed) parameters
+         * into {@link #derivatives}.
+         */
+        private double computeObjective(double[] x, boolean with_gradient)
+        {
+            setParameters(x);
+            int max_bound = batch.max_bounds[slot];
+            DiscreteDistribution T0 = BirthDeathProcess.getTransient0(rates, node_idx);
+            double[] T0_pmf = T0.getDistribution(max_bound);
+            double[] T1 = BirthDeathProcess.getTransient1(rates, node_idx).getParameters();
+            double p = T1[0];
+            double q = (T1.length>1?T1[1]:0.0);
+
+            double[] family_derivatives = new double[LikelihoodGradient.NUM_EDGE_PARAMETERS];
+            Arrays.fill(derivatives, 0.0);
+            int num_families = bounds.getTable().getFamilyCount();
+            int[] offsets = batch.offsets[slot];
+            int parent_idx = tree.getParentIndex(node_idx);
+            double sum = 0.0;
+            for (int family_idx=0; family_idx<num_families; family_idx++)
+            {
+                int offset = offsets[family_idx];
+                if (offset<0)
+                    continue;
+                int bound = bounds.getBound(family_idx, node_idx);
+                int parent_bound = bounds.getBound(family_idx, parent_idx);
+                double[] X = sc_weights;
+                double[] C = sc_conditionals;
+                System.arraycopy(batch.data, offset, X, 0, parent_bound+1);
+                System.arraycopy(batch.data, offset+parent_bound+1, C, 0, bound+1);
+                Likelihood.computeEdgeLikelihoods(C, 0, bound, T0_pmf, p, q, sc_edge, 0, parent_bound, sc_gain, sc_powers);
+                double S = 0.0;
+                for (int n=0; n<=parent_bound; n++)
+                    S += X[n]*sc_edge[n];
+                if (!(S>Double.MIN_NORMAL)) // 0 or NaN: large penalty instead of infinity
+                {
+                    sum += Math.log(Double.MIN_NORMAL);
+                    continue;
+                }
+                sum += Math.log(S);
+                if (with_gradient)
+                {
+                    engine.computeEdgeDerivatives(rates, node_idx, X, parent_bound, C, bound, T0_pmf, p, q, family_derivatives, null);
+                    for (int type=0; type<derivatives.length; type++)
+                        derivatives[type] -= family_derivatives[type]/S;
+                }
+            }
+            for (int type=0; type<derivatives.length; type++)
+                derivatives[type] /= num_families;
+            return -sum/num_families;
+        }
+    }
+
+    /**
+     * Test code --- reads a tree, a rate file and a table, and fits the lineage-specific
+     * rates without rate variation (the class multipliers in the rate file are ignored).
+     *
+     * @param args command line arguments: tree, rates, table, and optionally the maximum number of rounds
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 3 && args.length != 4)
+            throw new IllegalArgumentException("Call as java "+BlockCoordinateOptimization.class.getName()+" tree rates table [rounds]");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        RateVariation rate_variation = RateVariation.readRates(new count.io.GeneralizedFileReader(args[1]), tree);
+        TreeWithRates rates = rate_variation.getMainTree();
+        if (rates.getRootDistribution()==null)
+            throw new IllegalArgumentException("Rates file must specify the root prior");
+        OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+        table.readTable(new count.io.GeneralizedFileReader(args[2]), true);
+        int max_rounds = (args.length==4?Integer.parseInt(args[3]):20);
+
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(BlockCoordinateOptimization.class));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+args[0]));
+        out.println(Executable.getStandardHeader("Rates file: "+args[1]));
+        out.println(Executable.getStandardHeader("Table file: "+args[2]));
+
+        BlockCoordinateOptimization O = new BlockCoordinateOptimization(rates, table);
+        long time_start = System.currentTimeMillis();
+        double LL0 = O.getLogLikelihood();
+        out.println("#LL0\t"+LL0);
+        double LL = O.optimize(max_rounds, 1e-3);
+        long time_end = System.currentTimeMillis();
+        out.println("#LL\t"+LL+"\tcheck "+new Likelihood(rates).getLogLikelihood(table));
+        out.println(Executable.getStandardHeader("Time: "+(time_end-time_start)+" ms, "+O.getNumRounds()+" rounds, "
+                +O.getNumBatches()+" batches, "+O.getNumFallbacks()+" fallbacks"));
+        out.println("#node\tgain\tloss\tduplication\tlength");
+        for (int node_idx=0; node_idx<tree.getNumNodes(); node_idx++)
+            if (!tree.isRoot(node_idx))
+                out.println(node_idx+"\t"+rates.getGainRate(node_idx)+"\t"+rates.getLossRate(node_idx)
+                        +"\t"+rates.getDuplicationRate(node_idx)+"\t"+rates.getEdgeLength(node_idx));
+    }
+}
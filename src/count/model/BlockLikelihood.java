@@ -0,0 +1,551 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.util.Executable;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Likelihood computation for a block of families in lockstep,
+ * one family per lane.
+ *
+ * The families of a block share the transient distributions on every edge,
+ * and the vectors are stored lane-interleaved: the entry for copy number
+ * <var>n</var> in lane <var>l</var> is at <var>n</var>&middot;<var>L</var>+<var>l</var>
+ * with <var>L</var> lanes.
+ * The multiply&ndash;accumulate steps of {@link Likelihood#computeEdgeLikelihoods(double[], int, int, double[], double, double, double[], int, int, double[], double[]) }
+ * thus become innermost loops over the lanes with a broadcast
+ * scalar (the gain probability or the convolution power of the inheritance),
+ * which the JIT can compile into SIMD instructions.
+ * The powers of the single-copy inheritance are computed once per edge for all the lanes.
+ *
+ * A block is computed up to the largest per-node truncation bound among its lanes;
+ * the entries above a lane's own bound are zeroed, so every lane gets
+ * the same value as with {@link Likelihood}. Lanes with fully missing subtrees
+ * have likelihood 1 on the edge above. For the table-level computations,
+ * families are grouped into blocks by their bounds at the root, so that
+ * little work is wasted on padding.
+ *
+ * An instance is not thread-safe.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class BlockLikelihood
+{
+    /**
+     * Default number of families in a block.
+     */
+    public static final int DEFAULT_NUM_LANES = 16;
+
+    private static final double LOG2 = Math.log(2.0);
+
+    /**
+     * Instantiation with the default number of lanes.
+     *
+     * @param model the underlying rate model
+     */
+    public BlockLikelihood(ProbabilisticEvolutionModel.BirthDeath model)
+    {
+        this(model, DEFAULT_NUM_LANES);
+    }
+
+    /**
+     * Instantiation with a given number of lanes.
+     *
+     * @param model the underlying rate model
+     * @param num_lanes number of families in a block (positive)
+     */
+    public BlockLikelihood(ProbabilisticEvolutionModel.BirthDeath model, int num_lanes)
+    {
+        if (num_lanes<1)
+            throw new IllegalArgumentException("Number of lanes must be positive");
+        this.model = model;
+        this.tree = model.getPhylogeny();
+        this.num_lanes = num_lanes;
+        int num_nodes = tree.getNumNodes();
+
+        this.conditionals = new double[num_nodes][];
+        this.block_bounds = new int[num_nodes];
+        this.lane_bounds = new int[num_lanes][num_nodes];
+        this.lane_scales = new int[num_nodes][num_lanes];
+        this.lane_profiles = new int[num_lanes][];
+        this.edge_likelihoods = new double[0];
+        this.edge_convolution = new double[0];
+        this.edge_powers = new double[0];
+        this.lane_max = new double[num_lanes];
+        this.lane_factors = new double[num_lanes];
+
+        this.transients = new BirthDeathProcess.TransientCache(model);
+
+        setTruncation(Likelihood.DEFAULT_TRUNCATION_ABSOLUTE, Likelihood.DEFAULT_TRUNCATION_RELATIVE);
+    }
+
+    private final ProbabilisticEvolutionModel.BirthDeath model;
+    private final IndexedTree tree;
+    private final int num_lanes;
+    private final BirthDeathProcess.TransientCache transients;
+
+    private int truncation_absolute;
+    private double truncation_relative;
+
+    /**
+     * Lane-interleaved conditional likelihoods at the nodes, for the current block.
+     * (Lane <var>l</var> is scaled by 2<sup>-<var>e</var></sup>, see {@link #lane_scales}.)
+     */
+    private final double[][] conditionals;
+    /**
+     * Largest truncation bound across the lanes, by node; negative if the subtree is missing in every lane.
+     */
+    private final int[] block_bounds;
+    /**
+     * Truncation bounds by lane and node.
+     */
+    private final int[][] lane_bounds;
+    /**
+     * Binary exponents for scaling the conditionals, by node and lane.
+     */
+    private final int[][] lane_scales;
+    /**
+     * Profiles in the current block; null for unused lanes.
+     */
+    private final int[][] lane_profiles;
+    /**
+     * Lane-interleaved scratch for the edge conditionals and the gain correlation.
+     */
+    private double[] edge_likelihoods;
+    private double[] edge_convolution;
+    /**
+     * Convolution powers of the inheritance, shared by the lanes.
+     */
+    private double[] edge_powers;
+    private final double[] lane_max;
+    private final double[] lane_factors;
+
+    public ProbabilisticEvolutionModel.BirthDeath getModel()
+    {
+        return model;
+    }
+
+    public int getNumLanes()
+    {
+        return num_lanes;
+    }
+
+    /**
+     * Sets the truncation for the ancestral copy numbers.
+     *
+     * @param absolute additive slack (non-negative)
+     * @param relative multiplicative slack (non-negative)
+     * @see Likelihood#setTruncation(int, double)
+     */
+    public final void setTruncation(int absolute, double relative)
+    {
+        if (absolute<0 || relative<0.0)
+            throw new IllegalArgumentException("Truncation parameters must be non-negative");
+        this.truncation_absolute = absolute;
+        this.truncation_relative = relative;
+    }
+
+    public int getTruncationAbsolute()
+    {
+        return truncation_absolute;
+    }
+
+    public double getTruncationRelative()
+    {
+        return truncation_relative;
+    }
+
+    /**
+     * Recomputes the transient distributions on the edges that changed.
+     * Must be called after the model parameters change.
+     *
+     * @return number of recomputed edges
+     */
+    public final int computeParameters()
+    {
+        return transients.update();
+    }
+
+    /**
+     * Log-likelihoods for all families of a table.
+     *
+     * @param table family profiles, with columns in leaf index order
+     * @return array of natural logarithms of the profile probabilities, by family
+     */
+    public double[] getLogLikelihoods(OccurrenceTable table)
+    {
+        return getLogLikelihoods(new CopyNumberBounds(tree, table, truncation_absolute, truncation_relative));
+    }
+
+    /**
+     * Log-likelihoods for all families of a table, with precomputed truncation bounds.
+     * Families are processed in blocks of similar root bounds.
+     *
+     * @param bounds truncation bounds for the table's families
+     * @return array of natural logarithms of the profile probabilities, by family
+     */
+    public double[] getLogLikelihoods(CopyNumberBounds bounds)
+    {
+        int num_families = bounds.getTable().getFamilyCount();
+        int root_idx = tree.getNumNodes()-1;
+        // counting sort by root bound
+        int max_bound = -1;
+        for (int family_idx=0; family_idx<num_families; family_idx++)
+            max_bound = Math.max(max_bound, bounds.getBound(family_idx, root_idx));
+        int[] start = new int[max_bound+3];
+        for (int family_idx=0; family_idx<num_families; family_idx++)
+            start[bounds.getBound(family_idx, root_idx)+2]++;
+        for (int b=1; b<start.length; b++)
+            start[b] += start[b-1];
+        int[] order = new int[num_families];
+        for (int family_idx=0; family_idx<num_families; family_idx++)
+            order[start[bounds.getBound(family_idx, root_idx)+1]++] = family_idx;
+
+        double[] LL = new double[num_families];
+        for (int first=0; first<num_families; first+=num_lanes)
+        {
+            int block_size = Math.min(num_lanes, num_families-first);
+            computeBlock(bounds, order, first, block_size, LL);
+        }
+        return LL;
+    }
+
+    /**
+     * Sum of log-likelihoods across all families in a table.
+     *
+     * @param table family profiles, with columns in leaf index order
+     * @return sum of natural logarithms of the profile probabilities
+     */
+    public double getLogLikelihood(OccurrenceTable table)
+    {
+        double LL = 0.0;
+        for (double ll: getLogLikelihoods(table))
+            LL += ll;
+        return LL;
+    }
+
+    /**
+     * Log-likelihoods for a block of families.
+     *
+     * @param bounds truncation bounds for the table's families
+     * @param families family indices
+     * @param offset position of the block's first family in <var>families</var>
+     * @param block_size number of families in the block; at most the number of lanes
+     * @param family_LL array filled with the log-likelihoods, by family index
+     */
+    public void computeBlock(CopyNumberBounds bounds, int[] families, int offset, int block_size, double[] family_LL)
+    {
+        if (block_size>num_lanes)
+            throw new IllegalArgumentException("Block has more families ("+block_size+") than lanes ("+num_lanes+")");
+        OccurrenceTable table = bounds.getTable();
+        for (int lane=0; lane<num_lanes; lane++)
+        {
+            if (lane<block_size)
+            {
+                int family_idx = families[offset+lane];
+                lane_profiles[lane] = table.getSizes(family_idx);
+                bounds.getBounds(family_idx, lane_bounds[lane]);
+            } else
+            {
+                lane_profiles[lane] = null;
+                Arrays.fill(lane_bounds[lane], -1);
+            }
+        }
+        computeBlock();
+        int root_idx = tree.getNumNodes()-1;
+        int root_bound = block_bounds[root_idx];
+        if (root_bound<0)
+        {
+            for (int lane=0; lane<block_size; lane++)
+                family_LL[families[offset+lane]] = 0.0;
+            return;
+        }
+        double[] C = conditionals[root_idx];
+        double[] root_prior = transients.getRootPrior(0, root_bound);
+        double[] L = lane_max;
+        Arrays.fill(L, 0.0);
+        for (int n=0; n<=root_bound; n++)
+        {
+            double pn = root_prior[n];
+            int row = n*num_lanes;
+            for (int lane=0; lane<num_lanes; lane++)
+                L[lane] += pn*C[row+lane];
+        }
+        int[] scales = lane_scales[root_idx];
+        for (int lane=0; lane<block_size; lane++)
+            family_LL[families[offset+lane]]
+                    = (lane_bounds[lane][root_idx]<0?0.0:Math.log(L[lane])+scales[lane]*LOG2);
+    }
+
+    /**
+     * Computes the lane-interleaved conditionals at every node for the profiles and bounds set up in the lanes.
+     */
+    private void computeBlock()
+    {
+        int num_nodes = tree.getNumNodes();
+        for (int node_idx=0; node_idx<num_nodes; node_idx++)
+        {
+            int bound = -1;
+            for (int lane=0; lane<num_lanes; lane++)
+                bound = Math.max(bound, lane_bounds[lane][node_idx]);
+            block_bounds[node_idx] = bound;
+            if (bound<0) // missing in every lane
+                continue;
+            ensureNodeCapacity(node_idx, bound);
+            double[] C = conditionals[node_idx];
+            int[] scales = lane_scales[node_idx];
+            int length = (bound+1)*num_lanes;
+            if (tree.isLeaf(node_idx))
+            {
+                Arrays.fill(C, 0, length, 0.0);
+                for (int lane=0; lane<num_lanes; lane++)
+                {
+                    int[] profile = lane_profiles[lane];
+                    if (profile != null && profile[node_idx]>=0)
+                        C[profile[node_idx]*num_lanes+lane] = 1.0;
+                }
+                Arrays.fill(scales, 0);
+            } else
+            {
+                Arrays.fill(C, 0, length, 1.0);
+                Arrays.fill(scales, 0);
+                int num_children = tree.getNumChildren(node_idx);
+                for (int ci=0; ci<num_children; ci++)
+                {
+                    int child_idx = tree.getChildIndex(node_idx, ci);
+                    if (block_bounds[child_idx]<0)
+                        continue;
+                    computeEdgeLikelihoods(child_idx, bound);
+                    double[] E = edge_likelihoods;
+                    int[] child_scales = lane_scales[child_idx];
+                    for (int lane=0; lane<num_lanes; lane++)
+                    {
+                        if (lane_bounds[lane][child_idx]<0) // likelihood 1 on the edge
+                            for (int n=0; n<=bound; n++)
+                                E[n*num_lanes+lane] = 1.0;
+                        else
+                            scales[lane] += child_scales[lane];
+                    }
+                    for (int i=0; i<length; i++)
+                        C[i] *= E[i];
+                }
+                truncateLanes(node_idx, C, bound);
+                rescaleLanes(C, bound, scales);
+            }
+        }
+    }
+
+    /**
+     * Zeroes the entries above every lane's own truncation bound.
+     */
+    private void truncateLanes(int node_idx, double[] C, int bound)
+    {
+        for (int lane=0; lane<num_lanes; lane++)
+            for (int n=lane_bounds[lane][node_idx]+1; n<=bound; n++)
+                C[n*num_lanes+lane] = 0.0;
+    }
+
+    /**
+     * Scales the lanes by powers of 2 so that their largest entries fall between 1 and 2.
+     *
+     * @param C lane-interleaved values
+     * @param bound largest copy number
+     * @param scales binary exponents by lane, incremented by the exponents of the scaling
+     */
+    private void rescaleLanes(double[] C, int bound, int[] scales)
+    {
+        double[] max = lane_max;
+        Arrays.fill(max, 0.0);
+        for (int n=0; n<=bound; n++)
+        {
+            int row = n*num_lanes;
+            for (int lane=0; lane<num_lanes; lane++)
+                max[lane] = Math.max(max[lane], C[row+lane]);
+        }
+        double[] factors = lane_factors;
+        boolean any_scaled = false;
+        for (int lane=0; lane<num_lanes; lane++)
+        {
+            double m = max[lane];
+            int exponent = (m==0.0 || Double.isInfinite(m) || Double.isNaN(m)?0:Math.getExponent(m));
+            factors[lane] = Math.scalb(1.0, -exponent);
+            scales[lane] += exponent;
+            any_scaled = any_scaled || exponent != 0;
+        }
+        if (any_scaled)
+            for (int n=0; n<=bound; n++)
+            {
+                int row = n*num_lanes;
+                for (int lane=0; lane<num_lanes; lane++)
+                    C[row+lane] *= factors[lane];
+            }
+    }
+
+    /**
+     * Computes the lane-interleaved conditionals on the edge leading to a node
+     * into {@link #edge_likelihoods}, by the same recurrences as in {@link Likelihood}.
+     *
+     * @param node_idx child node
+     * @param parent_bound largest copy number at the parent
+     */
+    private void computeEdgeLikelihoods(int node_idx, int parent_bound)
+    {
+        int bound = block_bounds[node_idx];
+        ensureEdgeCapacity(Math.max(bound, parent_bound));
+        double[] C = conditionals[node_idx];
+        double[] T0 = transients.getTransient0(0, node_idx, bound);
+        double[] T1 = transients.getTransient1Parameters(0, node_idx);
+        double p = T1[0];
+        double q = T1[1];
+        double[] G = edge_convolution;
+        double[] E = edge_likelihoods;
+        double[] W = edge_powers;
+        int L = num_lanes;
+
+        // gain: G[i] = sum_j T0[j]*C[i+j]; for fixed j, rows i=0..bound-j
+        // form a single contiguous run across the lanes
+        int length = (bound+1)*L;
+        Arrays.fill(G, 0, length, 0.0);
+        for (int j=0; j<=bound; j++)
+        {
+            double t = T0[j];
+            int shift = j*L;
+            int run = length-shift;
+            for (int k=0; k<run; k++)
+                G[k] += t*C[shift+k];
+        }
+
+        // inheritance: E[n] = sum_m T1^{*n}[m]*G[m], with the powers shared by the lanes
+        double r = (1.0-p)*(1.0-q);
+        W[0] = 1.0;
+        Arrays.fill(W, 1, bound+1, 0.0);
+        System.arraycopy(G, 0, E, 0, L);
+        for (int n=1; n<=parent_bound; n++)
+        {
+            int top = (q==0.0?Math.min(n, bound):bound);
+            double s = 0.0;
+            double w_prev = 0.0;
+            for (int m=0; m<=top; m++)
+            {
+                double w = W[m];
+                s = w_prev + q*s;
+                W[m] = p*w + r*s;
+                w_prev = w;
+            }
+            int e_row = n*L;
+            Arrays.fill(E, e_row, e_row+L, 0.0);
+            for (int m=0; m<=top; m++)
+            {
+                double w = W[m];
+                int g_row = m*L;
+                for (int lane=0; lane<L; lane++)
+                    E[e_row+lane] += w*G[g_row+lane];
+            }
+        }
+    }
+
+    private void ensureNodeCapacity(int node_idx, int bound)
+    {
+        double[] C = conditionals[node_idx];
+        int length = (bound+1)*num_lanes;
+        if (C==null || C.length<length)
+        {
+            int capacity = Math.max(length, C==null?0:2*C.length);
+            conditionals[node_idx] = new double[capacity];
+        }
+    }
+
+    private void ensureEdgeCapacity(int bound)
+    {
+        if (edge_powers.length<=bound)
+        {
+            int capacity = Math.max(bound+1, 2*edge_powers.length);
+            edge_powers = new double[capacity];
+            edge_convolution = new double[capacity*num_lanes];
+            edge_likelihoods = new double[capacity*num_lanes];
+        }
+    }
+
+    private void mainmain(String[] args) throws Exception
+    {
+        String tree_file = args[0];
+        String rates_file = args[1];
+        String table_file = args[2];
+
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(getClass()));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+tree_file));
+        out.println(Executable.getStandardHeader("Rates file: "+rates_file));
+        out.println(Executable.getStandardHeader("Table file: "+table_file));
+        out.println(Executable.getStandardHeader("Lanes: "+num_lanes));
+
+        OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+        table.readTable(new count.io.GeneralizedFileReader(table_file), true);
+        CopyNumberBounds bounds = new CopyNumberBounds(tree, table, truncation_absolute, truncation_relative);
+        Likelihood scalar = new Likelihood(model);
+
+        int num_families = table.getFamilyCount();
+        int num_repeats = 20;
+        double[] LL = null;
+        long block_time = Long.MAX_VALUE;
+        long scalar_time = Long.MAX_VALUE;
+        double scalar_LL = 0.0;
+        for (int repeat=0; repeat<num_repeats; repeat++)
+        {
+            long t0 = System.nanoTime();
+            LL = getLogLikelihoods(bounds);
+            long t1 = System.nanoTime();
+            scalar_LL = scalar.getLogLikelihood(bounds);
+            long t2 = System.nanoTime();
+            block_time = Math.min(block_time, t1-t0);
+            scalar_time = Math.min(scalar_time, t2-t1);
+        }
+        double block_LL = 0.0;
+        double max_diff = 0.0;
+        for (int family_idx=0; family_idx<num_families; family_idx++)
+        {
+            double ll = LL[family_idx];
+            max_diff = Math.max(max_diff, Math.abs(ll-scalar.getLogLikelihood(bounds, family_idx)));
+            block_LL += ll;
+        }
+        out.println("#LL\t"+block_LL+"\tscalar "+scalar_LL+"\tmaxdiff "+max_diff);
+        out.println("#time\tblock "+(block_time/1000000.0)+" ms\tscalar "+(scalar_time/1000000.0)+" ms"
+                +"\tspeedup "+((double)scalar_time/block_time));
+    }
+
+    /**
+     * Test code --- reads a tree, a rate file and a table, and then compares the block computation
+     * with the per-family {@link Likelihood} in values and running time.
+     *
+     * @param args command line arguments: tree, rates, table, and optionally the number of lanes
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 3 && args.length != 4)
+            throw new IllegalArgumentException("Call as java "+BlockLikelihood.class.getName()+" tree rates table [lanes]");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        RateVariation rates = RateVariation.readRates(new count.io.GeneralizedFileReader(args[1]), tree);
+        if (rates.getMainTree().getRootDistribution()==null)
+            throw new IllegalArgumentException("Rates file must specify the root prior");
+        int num_lanes = (args.length==4?Integer.parseInt(args[3]):DEFAULT_NUM_LANES);
+        BlockLikelihood B = new BlockLikelihood(rates.getMainTree(), num_lanes);
+        B.mainmain(args);
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.matek.FunctionMinimization;
+import count.util.Executable;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parametric bootstrap for the lineage-specific edge parameters.
+ *
+ * Each replicate is a table simulated from the fitted model
+ * (by {@link Simulator}), to which a copy of the model is refitted
+ * by {@link FunctionMinimization#lbfgs(double[], double[], double[], double, count.matek.FunctionMinimization.DerivableMultiParameterFunction, count.matek.FunctionMinimization.LBFGSWorkspace) }
+ * on the objective of {@link LikelihoodGradient.LogLikelihoodObjective}, starting from the
+ * fitted values. The rate variation (class multipliers and probabilities) stays fixed.
+ * Confidence intervals are the percentiles of the replicate estimates.
+ *
+ * Replicates run concurrently on a thread pool; at most a given number
+ * of them is in progress at any time, so that only that many simulated tables
+ * are held in memory. Every replicate uses its own {@link SplittableRandom} stream,
+ * split from the master seed in replicate order: the results do not depend on the
+ * scheduling.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class Bootstrap
+{
+    /**
+     * Default convergence criterion for the refits.
+     */
+    public static final double DEFAULT_FIT_TOLERANCE = 1e-5;
+    /**
+     * Log-parameters are kept within &plusmn; this bound in the refits.
+     */
+    private static final double MAX_LOG_PARAMETER = 20.0;
+
+    /**
+     * Bootstrap with the common thread pool.
+     *
+     * @param fitted_model model from which the replicates are simulated; not modified
+     * @param num_families number of families in a replicate
+     */
+    public Bootstrap(RateVariation fitted_model, int num_families)
+    {
+        this(fitted_model, num_families, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Bootstrap with a given thread pool.
+     *
+     * @param fitted_model model from which the replicates are simulated; not modified
+     * @param num_families number of families in a replicate
+     * @param thread_pool pool for the replicates
+     */
+    public Bootstrap(RateVariation fitted_model, int num_families, ForkJoinPool thread_pool)
+    {
+        this.fitted_model = fitted_model;
+        this.num_families = num_families;
+        this.thread_pool = thread_pool;
+        this.simulator = new Simulator(fitted_model);
+        this.max_in_flight = thread_pool.getParallelism();
+        this.fit_tolerance = DEFAULT_FIT_TOLERANCE;
+        // parameter layout, from an objective on a dummy table
+        OccurrenceTable empty = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(simulator.getTree()));
+        empty.setTable(new int[0][], null);
+        LikelihoodGradient.LogLikelihoodObjective layout = createObjective(new RateVariation(fitted_model), empty);
+        int num_parameters = layout.getNumParameters();
+        this.parameter_edges = new int[num_parameters];
+        this.parameter_types = new int[num_parameters];
+        this.fitted_values = layout.getParameters();
+        for (int i=0; i<num_parameters; i++)
+        {
+            parameter_edges[i] = layout.getParameterEdge(i);
+            parameter_types[i] = layout.getParameterType(i);
+            fitted_values[i] = Math.exp(fitted_values[i]);
+        }
+    }
+
+    private final RateVariation fitted_model;
+    private final int num_families;
+    private final ForkJoinPool thread_pool;
+    private final Simulator simulator;
+    private final int[] parameter_edges;
+    private final int[] parameter_types;
+    private final double[] fitted_values;
+
+    private int max_in_flight;
+    private double fit_tolerance;
+
+    /**
+     * Parameter estimates by replicate.
+     */
+    private double[][] estimates;
+    /**
+     * Sorted estimates by parameter, computed on demand.
+     */
+    private double[][] sorted_estimates;
+    private int num_failed_fits;
+
+    /**
+     * Sets the number of replicates that may be in progress at the same time.
+     *
+     * @param max_in_flight positive; the default is the pool's parallelism
+     */
+    public void setMaxInFlight(int max_in_flight)
+    {
+        if (max_in_flight<1)
+            throw new IllegalArgumentException("Number of replicates in progress must be positive");
+        this.max_in_flight = max_in_flight;
+    }
+
+    public void setFitTolerance(double tolerance)
+    {
+        this.fit_tolerance = tolerance;
+    }
+
+    public int getNumParameters()
+    {
+        return parameter_edges.length;
+    }
+
+    public int getParameterEdge(int parameter_idx)
+    {
+        return parameter_edges[parameter_idx];
+    }
+
+    /**
+     * Type of a parameter.
+     *
+     * @param parameter_idx index of the parameter
+     * @return one of the LikelihoodGradient.PARAMETER_ constants
+     */
+    public int getParameterType(int parameter_idx)
+    {
+        return parameter_types[parameter_idx];
+    }
+
+    /**
+     * Value of a parameter in the fitted model.
+     *
+     * @param parameter_idx index of the parameter
+     * @return the parameter value
+     */
+    public double getFittedValue(int parameter_idx)
+    {
+        return fitted_values[parameter_idx];
+    }
+
+    /**
+     * Number of refits that stopped at the iteration limit in the last run (their last point is used).
+     *
+     * @return count of replicates
+     */
+    public int getNumFailedFits()
+    {
+        return num_failed_fits;
+    }
+
+    private static LikelihoodGradient.LogLikelihoodObjective createObjective(RateVariation model, OccurrenceTable table)
+    {
+        return (model.getNumClasses()==1
+                ?new LikelihoodGradient.LogLikelihoodObjective(model.getMainTree(), table)
+                :new LikelihoodGradient.LogLikelihoodObjective(model, table));
+    }
+
+    /**
+     * Simulates and refits the replicates.
+     *
+     * @param num_replicates number of replicates
+     * @param seed master seed
+     */
+    public void run(int num_replicates, long seed)
+    {
+        SplittableRandom master = new SplittableRandom(seed);
+        SplittableRandom[] streams = new SplittableRandom[num_replicates];
+        for (int replicate=0; replicate<num_replicates; replicate++)
+            streams[replicate] = master.split();
+        this.estimates = new double[num_replicates][];
+        this.sorted_estimates = null;
+        this.num_failed_fits = 0;
+        AtomicInteger next_replicate = new AtomicInteger();
+        AtomicInteger failed_fits = new AtomicInteger();
+
+        int num_runners = Math.min(max_in_flight, num_replicates);
+        List<RecursiveAction> runners = new ArrayList<>();
+        for (int r=0; r<num_runners; r++)
+            runners.add(new RecursiveAction()
+            {
+                @Override
+                protected void compute()
+                {
+                    int replicate;
+                    while ((replicate = next_replicate.getAndIncrement())<num_replicates)
+                    {
+                        estimates[replicate] = fitReplicate(streams[replicate], failed_fits);
+                        streams[replicate] = null;
+                    }
+                }
+            });
+        thread_pool.invoke(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                invokeAll(runners);
+            }
+        });
+        this.num_failed_fits = failed_fits.get();
+    }
+
+    /**
+     * One replicate: simulation and refit.
+     *
+     * @return the refitted parameter values
+     */
+    private double[] fitReplicate(SplittableRandom random, AtomicInteger failed_fits)
+    {
+        OccurrenceTable table = simulator.simulateTable(num_families, random);
+        RateVariation model = new RateVariation(fitted_model);
+        LikelihoodGradient.LogLikelihoodObjective objective = createObjective(model, table);
+        double[] x = objective.getParameters();
+        int n = x.length;
+        double[] lower = new double[n];
+        double[] upper = new double[n];
+        Arrays.fill(lower, -MAX_LOG_PARAMETER);
+        Arrays.fill(upper, MAX_LOG_PARAMETER);
+        try
+        {
+            FunctionMinimization.lbfgs(x, lower, upper, fit_tolerance, objective, new FunctionMinimization.LBFGSWorkspace(n));
+        } catch (FunctionMinimization.OptimizationException E)
+        {
+            failed_fits.incrementAndGet(); // x is the last point
+        }
+        for (int i=0; i<n; i++)
+            x[i] = Math.exp(x[i]);
+        return x;
+    }
+
+    /**
+     * Estimate of a parameter in a replicate of the last run.
+     *
+     * @param replicate replicate index
+     * @param parameter_idx parameter index
+     * @return refitted value
+     */
+    public double getEstimate(int replicate, int parameter_idx)
+    {
+        return estimates[replicate][parameter_idx];
+    }
+
+    /**
+     * Percentile confidence interval from the last run, with linear interpolation between the order statistics.
+     *
+     * @param parameter_idx parameter index
+     * @param level confidence level, such as 0.95
+     * @return array {lower, upper}
+     */
+    public double[] getConfidenceInterval(int parameter_idx, double level)
+    {
+        if (sorted_estimates == null)
+        {
+            int num_parameters = getNumParameters();
+            double[][] sorted = new double[num_parameters][estimates.length];
+            for (int i=0; i<num_parameters; i++)
+            {
+                for (int replicate=0; replicate<estimates.length; replicate++)
+                    sorted[i][replicate] = estimates[replicate][i];
+                Arrays.sort(sorted[i]);
+            }
+            sorted_estimates = sorted;
+        }
+        double[] values = sorted_estimates[parameter_idx];
+        return new double[] {getQuantile(values, (1.0-level)/2.0), getQuantile(values, (1.0+level)/2.0)};
+    }
+
+    private static double getQuantile(double[] sorted, double p)
+    {
+        double pos = p*(sorted.length-1);
+        int i = (int)Math.floor(pos);
+        if (i>=sorted.length-1)
+            return sorted[sorted.length-1];
+        double frac = pos-i;
+        return sorted[i]+frac*(sorted[i+1]-sorted[i]);
+    }
+
+    /**
+     * Test code --- reads a tree and a rate file, and reports bootstrap confidence intervals for
+     * the lineage-specific parameters.
+     *
+     * @param args command line arguments: tree, rates, number of families, number of replicates, and optionally the seed
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 4 && args.length != 5)
+            throw new IllegalArgumentException("Call as java "+Bootstrap.class.getName()+" tree rates families replicates [seed]");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        RateVariation rates = RateVariation.readRates(new count.io.GeneralizedFileReader(args[1]), tree);
+        if (rates.getMainTree().getRootDistribution()==null)
+            throw new IllegalArgumentException("Rates file must specify the root prior");
+        int num_families = Integer.parseInt(args[2]);
+        int num_replicates = Integer.parseInt(args[3]);
+        long seed = (args.length==5?Long.parseLong(args[4]):2016L);
+
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(Bootstrap.class));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+args[0]));
+        out.println(Executable.getStandardHeader("Rates file: "+args[1]));
+        out.println(Executable.getStandardHeader("Replicates: "+num_replicates+" of "+num_families+" families, seed "+seed));
+
+        Bootstrap B = new Bootstrap(rates, num_families);
+        long time_start = System.currentTimeMillis();
+        B.run(num_replicates, seed);
+        long time_end = System.currentTimeMillis();
+        out.println(Executable.getStandardHeader("Time: "+(time_end-time_start)+" ms, "+B.getNumFailedFits()+" refits at the iteration limit"));
+        out.println("#param\tnode\ttype\tvalue\tlow95\thigh95");
+        for (int i=0; i<B.getNumParameters(); i++)
+        {
+            double[] ci = B.getConfidenceInterval(i, 0.95);
+            out.println(i+"\t"+B.getParameterEdge(i)+"\t"+B.getParameterType(i)+"\t"+B.getFittedValue(i)+"\t"+ci[0]+"\t"+ci[1]);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+/**
+ * Per-node truncation bounds for the copy-number vectors of a family.
+ *
+ * The bound at an ancestral node follows the largest observed family size
+ * <var>m</var><sub><var>u</var></sub> in its subtree, so that a single large leaf
+ * widens only the vectors on its path to the root:
+ * it is <var>m</var><sub><var>u</var></sub>+<var>a</var>+&lceil;<var>r</var><var>m</var>&rceil;
+ * where <var>m</var> is the largest family size in the profile.
+ * (The slack depends on <var>m</var> since the ancestral copy numbers in a small subtree
+ * can be large when the rest of the profile is.)
+ * At the root, the bound is thus the same as the global {@link #getTruncationBound(int, int, double) }.
+ * At an observed leaf, the bound is the observed size.
+ * At a node where all the leaves in the subtree have missing entries
+ * (including a single missing leaf), the bound is -1: the
+ * conditional likelihood on the edge above is then identically 1,
+ * and the engines skip the subtree.
+ * The bounds never decrease towards the root.
+ *
+ * An instance holds the bounds for all families of a table,
+ * computed at instantiation.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class CopyNumberBounds
+{
+    /**
+     * Precomputes the bounds for all families in a table.
+     *
+     * @param tree phylogeny; table columns are in leaf index order
+     * @param table family profiles
+     * @param absolute additive slack (non-negative)
+     * @param relative multiplicative slack (non-negative)
+     */
+    public CopyNumberBounds(IndexedTree tree, OccurrenceTable table, int absolute, double relative)
+    {
+        if (absolute<0 || relative<0.0)
+            throw new IllegalArgumentException("Truncation parameters must be non-negative");
+        this.tree = tree;
+        this.table = table;
+        this.table_modification_count = table.getModificationCount();
+        this.truncation_absolute = absolute;
+        this.truncation_relative = relative;
+        int num_nodes = tree.getNumNodes();
+        int num_families = table.getFamilyCount();
+        this.bounds = new int[num_families*num_nodes];
+        int[] family_bounds = new int[num_nodes];
+        for (int family_idx=0; family_idx<num_families; family_idx++)
+        {
+            computeBounds(tree, table.getSizes(family_idx), absolute, relative, family_bounds);
+            System.arraycopy(family_bounds, 0, bounds, family_idx*num_nodes, num_nodes);
+        }
+    }
+
+    private final IndexedTree tree;
+    private final OccurrenceTable table;
+    /**
+     * Modification count of the table when the bounds were computed.
+     */
+    private final int table_modification_count;
+    private final int truncation_absolute;
+    private final double truncation_relative;
+    /**
+     * Bounds by family and node, in row-major order.
+     */
+    private final int[] bounds;
+
+    public IndexedTree getTree()
+    {
+        return tree;
+    }
+
+    public OccurrenceTable getTable()
+    {
+        return table;
+    }
+
+    public int getTruncationAbsolute()
+    {
+        return truncation_absolute;
+    }
+
+    public double getTruncationRelative()
+    {
+        return truncation_relative;
+    }
+
+    /**
+     * Whether the bounds were computed for the given table and truncation,
+     * and the table's contents have not been reset since.
+     *
+     * @param table family profiles
+     * @param absolute additive slack
+     * @param relative multiplicative slack
+     * @return true if the instance can be reused
+     */
+    public boolean isFor(OccurrenceTable table, int absolute, double relative)
+    {
+        return this.table == table && table_modification_count == table.getModificationCount()
+                && truncation_absolute == absolute && truncation_relative == relative;
+    }
+
+    /**
+     * Truncation bound at a node.
+     *
+     * @param family_idx family index in the table
+     * @param node_idx node index in the tree
+     * @return largest copy number in the node's vector
+     */
+    public int getBound(int family_idx, int node_idx)
+    {
+        return bounds[family_idx*tree.getNumNodes()+node_idx];
+    }
+
+    /**
+     * Whether all leaves in a node's subtree have missing entries.
+     *
+     * @param family_idx family index in the table
+     * @param node_idx node index in the tree
+     * @return true if the subtree can be skipped in the likelihood computations
+     */
+    public boolean isMissingSubtree(int family_idx, int node_idx)
+    {
+        return getBound(family_idx, node_idx)<0;
+    }
+
+    /**
+     * Copies the bounds of a family into an array.
+     *
+     * @param family_idx family index in the table
+     * @param family_bounds array filled by node index; allocated if null
+     * @return the filled array
+     */
+    public int[] getBounds(int family_idx, int[] family_bounds)
+    {
+        int num_nodes = tree.getNumNodes();
+        if (family_bounds == null)
+            family_bounds = new int[num_nodes];
+        System.arraycopy(bounds, family_idx*num_nodes, family_bounds, 0, num_nodes);
+        return family_bounds;
+    }
+
+    /**
+     * Truncation bound for a given observed family size:
+     * <var>m</var>+<var>a</var>+&lceil;<var>r</var><var>m</var>&rceil;.
+     *
+     * @param max_observed largest family size <var>m</var>
+     * @param absolute additive slack <var>a</var>
+     * @param relative multiplicative slack <var>r</var>
+     * @return largest copy number in the vectors
+     */
+    public static int getTruncationBound(int max_observed, int absolute, double relative)
+    {
+        return max_observed + absolute + (int)Math.ceil(relative*max_observed);
+    }
+
+    /**
+     * Computes the bounds for a single profile, by a postorder traversal
+     * for the subtree maxima, then adding the slack.
+     *
+     * @param tree phylogeny
+     * @param profile family sizes in leaf index order; negative values mark missing entries
+     * @param absolute additive slack
+     * @param relative multiplicative slack
+     * @param bounds array filled by node index; -1 for fully missing subtrees
+     * @return largest observed family size (0 if all entries are missing)
+     */
+    public static int computeBounds(IndexedTree tree, int[] profile, int absolute, double relative, int[] bounds)
+    {
+        int num_nodes = tree.getNumNodes();
+        int num_leaves = tree.getNumLeaves();
+        // subtree maxima: postorder, children before parents; -1 if all missing
+        for (int node_idx=0; node_idx<num_nodes; node_idx++)
+        {
+            if (tree.isLeaf(node_idx))
+                bounds[node_idx] = Math.max(-1, profile[node_idx]);
+            else
+            {
+                int max = -1;
+                int num_children = tree.getNumChildren(node_idx);
+                for (int ci=0; ci<num_children; ci++)
+                    max = Math.max(max, bounds[tree.getChildIndex(node_idx, ci)]);
+                bounds[node_idx] = max;
+            }
+        }
+        int max_observed = Math.max(0, bounds[num_nodes-1]);
+        int slack = absolute + (int)Math.ceil(relative*max_observed);
+        for (int node_idx=num_leaves; node_idx<num_nodes; node_idx++)
+            if (bounds[node_idx]>=0)
+                bounds[node_idx] += slack;
+        return max_observed;
+    }
+}
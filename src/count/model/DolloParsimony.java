@@ -0,0 +1,385 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.util.Executable;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Dollo parsimony for the presence/absence of families, bit-sliced:
+ * 64 families are processed together in a machine word, one per bit.
+ *
+ * Under Dollo parsimony, a family is gained once, at the last common ancestor
+ * of the leaves where it is present, and it is present at a node
+ * if the node is on a path from the gain node to one of those leaves.
+ * Losses happen on the edges from a present node to a subtree without the family.
+ * With bit vectors over the families, the computation is one postorder
+ * and one preorder pass with AND/OR:
+ * <ul>
+ * <li>postorder: <var>any</var>[<var>u</var>] (present somewhere in the subtree),
+ * <var>multi</var>[<var>u</var>] (present in at least two child subtrees),
+ * <var>unknown</var>[<var>u</var>] (all leaves missing in the subtree);</li>
+ * <li>preorder: <var>out</var>[<var>u</var>] (present outside the subtree), from
+ * the parent's and the siblings' vectors as <var>out</var>[parent] | <var>multi</var>[parent] |
+ * (<var>any</var>[parent] &amp; ~<var>any</var>[<var>u</var>]);</li>
+ * <li>gain at <var>u</var>: <var>any</var> &amp; ~<var>out</var> &amp; (<var>multi</var> or <var>u</var> is a leaf);
+ * presence: (<var>any</var> &amp; <var>out</var>) | gain;
+ * loss on the edge to <var>u</var>: presence[parent] &amp; ~<var>any</var>[<var>u</var>] &amp; ~<var>unknown</var>[<var>u</var>].</li>
+ * </ul>
+ * Missing entries count as absent, but no loss is inferred into
+ * a subtree where all entries are missing.
+ *
+ * The families are split into blocks of words that are processed
+ * in parallel on a fork/join pool; the per-node vectors
+ * for one block stay in cache. Per-edge counts are summed along a fixed
+ * recursive split.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class DolloParsimony
+{
+    /**
+     * Default number of 64-bit words (64 families each) in a block.
+     */
+    public static final int DEFAULT_BLOCK_WORDS = 16;
+
+    /**
+     * Instantiation for a table.
+     *
+     * @param tree phylogeny; table columns are in leaf index order
+     * @param table family profiles
+     */
+    public DolloParsimony(IndexedTree tree, OccurrenceTable table)
+    {
+        this.table = table;
+        int num_nodes = tree.getNumNodes();
+        this.parent = new int[num_nodes];
+        this.first_child = new int[num_nodes+1];
+        this.num_leaves = tree.getNumLeaves();
+        int num_edges = 0;
+        for (int node_idx=0; node_idx<num_nodes; node_idx++)
+            num_edges += tree.getNumChildren(node_idx);
+        this.children = new int[num_edges];
+        int c = 0;
+        for (int node_idx=0; node_idx<num_nodes; node_idx++)
+        {
+            parent[node_idx] = tree.getParentIndex(node_idx);
+            first_child[node_idx] = c;
+            int num_children = tree.getNumChildren(node_idx);
+            for (int ci=0; ci<num_children; ci++)
+                children[c++] = tree.getChildIndex(node_idx, ci);
+        }
+        first_child[num_nodes] = c;
+        this.gain_counts = new long[num_nodes];
+        this.loss_counts = new long[num_nodes];
+        this.presence_counts = new long[num_nodes];
+        this.gain_nodes = new int[table.getFamilyCount()];
+        this.block_words = DEFAULT_BLOCK_WORDS;
+    }
+
+    private final OccurrenceTable table;
+    private final int num_leaves;
+    /**
+     * Tree structure in arrays: parent index (negative at the root),
+     * and the children of node <var>u</var> at positions
+     * {@link #first_child}[<var>u</var>]..{@link #first_child}[<var>u</var>+1]-1.
+     */
+    private final int[] parent;
+    private final int[] first_child;
+    private final int[] children;
+
+    private final long[] gain_counts;
+    private final long[] loss_counts;
+    private final long[] presence_counts;
+    /**
+     * Gain node for every family; -1 if absent everywhere.
+     */
+    private final int[] gain_nodes;
+    private int block_words;
+
+    /**
+     * Sets the number of 64-bit words processed by a single task.
+     *
+     * @param block_words positive integer
+     */
+    public void setBlockSize(int block_words)
+    {
+        if (block_words<1)
+            throw new IllegalArgumentException("Block size must be positive");
+        this.block_words = block_words;
+    }
+
+    /**
+     * Computes the reconstruction with the common fork/join pool.
+     */
+    public void computeParsimony()
+    {
+        computeParsimony(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Computes the reconstruction.
+     *
+     * @param thread_pool pool for the block tasks
+     */
+    public void computeParsimony(ForkJoinPool thread_pool)
+    {
+        int num_words = (table.getFamilyCount()+63)/64;
+        long[][] counts = thread_pool.invoke(new BlockTask(0, num_words));
+        System.arraycopy(counts[0], 0, gain_counts, 0, gain_counts.length);
+        System.arraycopy(counts[1], 0, loss_counts, 0, loss_counts.length);
+        System.arraycopy(counts[2], 0, presence_counts, 0, presence_counts.length);
+    }
+
+    /**
+     * Number of families gained on the edge leading to a node (at the root, the families present at the root).
+     *
+     * @param node_idx node index
+     * @return number of gains
+     */
+    public long getGainCount(int node_idx)
+    {
+        return gain_counts[node_idx];
+    }
+
+    /**
+     * Number of families lost on the edge leading to a node.
+     *
+     * @param node_idx node index
+     * @return number of losses
+     */
+    public long getLossCount(int node_idx)
+    {
+        return loss_counts[node_idx];
+    }
+
+    /**
+     * Number of families present at a node.
+     *
+     * @param node_idx node index
+     * @return number of families
+     */
+    public long getPresenceCount(int node_idx)
+    {
+        return presence_counts[node_idx];
+    }
+
+    /**
+     * Node where a family is gained: the last common ancestor of the leaves where it is present.
+     *
+     * @param family_idx family index
+     * @return node index; -1 if the family is absent at all leaves
+     */
+    public int getGainNode(int family_idx)
+    {
+        return gain_nodes[family_idx];
+    }
+
+    /**
+     * Bit vectors for a block of words; returns the counts of gains, losses and presences by node.
+     */
+    private class BlockTask extends RecursiveTask<long[][]>
+    {
+        BlockTask(int first_word, int last_word)
+        {
+            this.first_word = first_word;
+            this.last_word = last_word;
+        }
+
+        private final int first_word;
+        /**
+         * Exclusive end of the word range.
+         */
+        private final int last_word;
+
+        @Override
+        protected long[][] compute()
+        {
+            if (last_word-first_word <= block_words)
+            {
+                return computeBlock(first_word, last_word);
+            } else
+            {
+                int mid = (first_word+last_word)/2;
+                BlockTask left = new BlockTask(first_word, mid);
+                BlockTask right = new BlockTask(mid, last_word);
+                right.fork();
+                long[][] left_counts = left.compute();
+                long[][] right_counts = right.join();
+                for (int i=0; i<left_counts.length; i++)
+                    for (int node_idx=0; node_idx<left_counts[i].length; node_idx++)
+                        left_counts[i][node_idx] += right_counts[i][node_idx];
+                return left_counts;
+            }
+        }
+    }
+
+    /**
+     * Bit-sliced computation for a block of families.
+     *
+     * @param first_word first word in the block (families 64&times;<var>first_word</var>...)
+     * @param last_word exclusive end of the block
+     * @return counts of gains, losses and presences by node
+     */
+    private long[][] computeBlock(int first_word, int last_word)
+    {
+        int num_nodes = parent.length;
+        int nw = last_word-first_word;
+        // per-node vectors, node-major: entry node*nw+w
+        long[] any = new long[num_nodes*nw];
+        long[] multi = new long[num_nodes*nw];
+        long[] unknown = new long[num_nodes*nw];
+        long[] out = new long[num_nodes*nw];
+
+        // pack the leaves
+        int first_family = first_word*64;
+        int last_family = Math.min(table.getFamilyCount(), last_word*64);
+        for (int family_idx=first_family; family_idx<last_family; family_idx++)
+        {
+            int[] sizes = table.getSizes(family_idx);
+            int w = (family_idx-first_family)>>>6;
+            long bit = 1L << family_idx;
+            for (int leaf_idx=0; leaf_idx<num_leaves; leaf_idx++)
+            {
+                int n = sizes[leaf_idx];
+                if (n>0)
+                    any[leaf_idx*nw+w] |= bit;
+                else if (n<0)
+                    unknown[leaf_idx*nw+w] |= bit;
+            }
+        }
+
+        // postorder
+        for (int node_idx=0; node_idx<num_nodes; node_idx++)
+        {
+            if (first_child[node_idx]==first_child[node_idx+1]) // leaf
+                continue;
+            int node_offset = node_idx*nw;
+            Arrays.fill(unknown, node_offset, node_offset+nw, -1L);
+            for (int c=first_child[node_idx]; c<first_child[node_idx+1]; c++)
+            {
+                int child_offset = children[c]*nw;
+                for (int w=0; w<nw; w++)
+                {
+                    long a = any[child_offset+w];
+                    multi[node_offset+w] |= any[node_offset+w] & a;
+                    any[node_offset+w] |= a;
+                    unknown[node_offset+w] &= unknown[child_offset+w];
+                }
+            }
+        }
+
+        // preorder, with the counts
+        long[] gains = new long[num_nodes];
+        long[] losses = new long[num_nodes];
+        long[] presences = new long[num_nodes];
+        long[] present = new long[num_nodes*nw];
+        for (int node_idx=num_nodes-1; node_idx>=0; node_idx--)
+        {
+            int node_offset = node_idx*nw;
+            int parent_idx = parent[node_idx];
+            boolean is_leaf = first_child[node_idx]==first_child[node_idx+1];
+            for (int w=0; w<nw; w++)
+            {
+                long a = any[node_offset+w];
+                long o;
+                long loss;
+                if (parent_idx<0)
+                {
+                    o = 0L;
+                    loss = 0L;
+                } else
+                {
+                    int parent_offset = parent_idx*nw;
+                    o = out[parent_offset+w] | multi[parent_offset+w] | (any[parent_offset+w] & ~a);
+                    loss = present[parent_offset+w] & ~a & ~unknown[node_offset+w];
+                }
+                out[node_offset+w] = o;
+                long gain = a & ~o;
+                if (!is_leaf)
+                    gain &= multi[node_offset+w];
+                long p = (a & o) | gain;
+                present[node_offset+w] = p;
+                gains[node_idx] += Long.bitCount(gain);
+                losses[node_idx] += Long.bitCount(loss);
+                presences[node_idx] += Long.bitCount(p);
+                // at most one gain node per family
+                int family_base = first_family+64*w;
+                while (gain != 0L)
+                {
+                    int b = Long.numberOfTrailingZeros(gain);
+                    gain_nodes[family_base+b] = node_idx;
+                    gain &= gain-1L;
+                }
+            }
+        }
+        // absent families
+        for (int w=0; w<nw; w++)
+        {
+            long absent = ~any[(num_nodes-1)*nw+w];
+            int family_base = first_family+64*w;
+            while (absent != 0L)
+            {
+                int b = Long.numberOfTrailingZeros(absent);
+                if (family_base+b<last_family)
+                    gain_nodes[family_base+b] = -1;
+                absent &= absent-1L;
+            }
+        }
+        return new long[][] {gains, losses, presences};
+    }
+
+    /**
+     * Test code --- reads a tree and a table, and writes the
+     * Dollo parsimony gain, loss and presence counts for the nodes to stdout.
+     *
+     * @param args command line arguments: tree, table, and optionally the number of threads
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 2 && args.length != 3)
+            throw new IllegalArgumentException("Call as java "+DolloParsimony.class.getName()+" tree table [threads]");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+        table.readTable(new count.io.GeneralizedFileReader(args[1]), true);
+        ForkJoinPool pool = (args.length==3
+                ?new ForkJoinPool(Integer.parseInt(args[2]))
+                :ForkJoinPool.commonPool());
+
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(DolloParsimony.class));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+args[0]));
+        out.println(Executable.getStandardHeader("Table file: "+args[1]));
+
+        DolloParsimony D = new DolloParsimony(tree, table);
+        long time_start = System.currentTimeMillis();
+        D.computeParsimony(pool);
+        long time_end = System.currentTimeMillis();
+        out.println(Executable.getStandardHeader("Time: "+(time_end-time_start)+" ms for "+table.getFamilyCount()+" families"));
+
+        out.println("#node\tname\tpresent\tgains\tlosses");
+        for (int node_idx=0; node_idx<tree.getNumNodes(); node_idx++)
+        {
+            String name = tree.isLeaf(node_idx)?tree.getName(node_idx):Integer.toString(node_idx);
+            out.println(node_idx+"\t"+name+"\t"+D.getPresenceCount(node_idx)+"\t"+D.getGainCount(node_idx)+"\t"+D.getLossCount(node_idx));
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.util.Executable;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Likelihood computation for a fixed table that recomputes
+ * only what changed since the last call.
+ *
+ * The conditional likelihoods at every node and on every edge are kept
+ * for all families. When the rates change on a set of edges
+ * (detected by the modification stamps of the model, see
+ * {@link ProbabilisticEvolutionModel.BirthDeath#getEdgeVersion(int) }),
+ * only the edges and the nodes on the paths from them to the root are recomputed:
+ * after a single-edge change, the cost per family is proportional
+ * to the depth of the edge, rather than to the size of the tree.
+ * A change of the root prior costs only the final summation.
+ *
+ * Memory usage is proportional to the sum of truncation bounds
+ * across all nodes and families.
+ *
+ * An instance is not thread-safe.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class IncrementalLikelihood
+{
+    private static final double LOG2 = Math.log(2.0);
+
+    /**
+     * Instantiation with the default truncation.
+     *
+     * @param model rate model
+     * @param table family profiles, with columns in leaf index order
+     */
+    public IncrementalLikelihood(ProbabilisticEvolutionModel.BirthDeath model, OccurrenceTable table)
+    {
+        this(model, new CopyNumberBounds(model.getPhylogeny(), table,
+                Likelihood.DEFAULT_TRUNCATION_ABSOLUTE, Likelihood.DEFAULT_TRUNCATION_RELATIVE));
+    }
+
+    /**
+     * Instantiation with precomputed truncation bounds.
+     *
+     * @param model rate model
+     * @param bounds truncation bounds for the table's families
+     */
+    public IncrementalLikelihood(ProbabilisticEvolutionModel.BirthDeath model, CopyNumberBounds bounds)
+    {
+        this.model = model;
+        this.tree = model.getPhylogeny();
+        this.bounds = bounds;
+        this.transients = new BirthDeathProcess.TransientCache(model);
+
+        OccurrenceTable table = bounds.getTable();
+        int num_nodes = tree.getNumNodes();
+        int num_families = table.getFamilyCount();
+        this.offsets = new int[num_families][];
+        this.partials = new double[num_families][];
+        this.scales = new int[num_families][];
+        this.family_log_likelihoods = new double[num_families];
+        this.edge_versions = new long[num_nodes];
+        Arrays.fill(edge_versions, Long.MIN_VALUE);
+        this.dirty_edges = new boolean[num_nodes];
+        this.dirty_nodes = new boolean[num_nodes];
+
+        int max_bound = 0;
+        int root_idx = num_nodes-1;
+        for (int family_idx=0; family_idx<num_families; family_idx++)
+        {
+            int[] family_offsets = new int[2*num_nodes+1];
+            int size = 0;
+            for (int node_idx=0; node_idx<num_nodes; node_idx++)
+            {
+                family_offsets[node_idx] = size;
+                size += bounds.getBound(family_idx, node_idx)+1; // 0 for missing subtrees
+            }
+            for (int node_idx=0; node_idx<num_nodes; node_idx++)
+            {
+                family_offsets[num_nodes+node_idx] = size;
+                if (node_idx != root_idx && !bounds.isMissingSubtree(family_idx, node_idx))
+                    size += bounds.getBound(family_idx, tree.getParentIndex(node_idx))+1;
+            }
+            family_offsets[2*num_nodes] = size;
+            offsets[family_idx] = family_offsets;
+
+            double[] P = new double[size];
+            int[] profile = table.getSizes(family_idx);
+            for (int leaf_idx=0; leaf_idx<tree.getNumLeaves(); leaf_idx++)
+            {
+                int n = profile[leaf_idx];
+                if (n>=0)
+                    P[family_offsets[leaf_idx]+n] = 1.0;
+            }
+            partials[family_idx] = P;
+            scales[family_idx] = new int[num_nodes];
+            max_bound = Math.max(max_bound, bounds.getBound(family_idx, root_idx));
+        }
+        this.edge_convolution = new double[max_bound+1];
+        this.edge_powers = new double[max_bound+1];
+    }
+
+    private final ProbabilisticEvolutionModel.BirthDeath model;
+    private final IndexedTree tree;
+    private final CopyNumberBounds bounds;
+    private final BirthDeathProcess.TransientCache transients;
+
+    /**
+     * Positions of the node conditionals (indexes 0..<var>n</var>-1)
+     * and of the edge conditionals (indexes <var>n</var>..2<var>n</var>-1)
+     * within the family's array of partial likelihoods; the last entry is the total length.
+     */
+    private final int[][] offsets;
+    /**
+     * Node and edge conditionals for each family.
+     */
+    private final double[][] partials;
+    /**
+     * Binary scaling exponents of the node (and edge) conditionals for each family.
+     */
+    private final int[][] scales;
+    private final double[] family_log_likelihoods;
+    /**
+     * Modification stamps with which the edge conditionals were computed.
+     */
+    private final long[] edge_versions;
+
+    private final boolean[] dirty_edges;
+    private final boolean[] dirty_nodes;
+    private int num_recomputed_edges;
+
+    private final double[] edge_convolution;
+    private final double[] edge_powers;
+
+    public ProbabilisticEvolutionModel.BirthDeath getModel()
+    {
+        return model;
+    }
+
+    public CopyNumberBounds getBounds()
+    {
+        return bounds;
+    }
+
+    /**
+     * Number of edges recomputed at the last call to {@link #getLogLikelihood() }.
+     *
+     * @return number of edges for which the conditionals were recomputed (same for all families)
+     */
+    public int getNumRecomputedEdges()
+    {
+        return num_recomputed_edges;
+    }
+
+    /**
+     * Sum of log-likelihoods across all families in the table,
+     * after recomputing the stale partial likelihoods.
+     *
+     * @return sum of natural logarithms of the profile probabilities
+     */
+    public double getLogLikelihood()
+    {
+        update();
+        double LL = 0.0;
+        for (int family_idx=0; family_idx<family_log_likelihoods.length; family_idx++)
+            LL += family_log_likelihoods[family_idx];
+        return LL;
+    }
+
+    /**
+     * Family log-likelihood at the last call to {@link #getLogLikelihood() }.
+     *
+     * @param family_idx family index in the table
+     * @return natural logarithm of the profile's probability
+     */
+    public double getLogLikelihood(int family_idx)
+    {
+        return family_log_likelihoods[family_idx];
+    }
+
+    /**
+     * Finds the changed edges and the nodes above them, and recomputes them for all families.
+     */
+    private void update()
+    {
+        transients.update();
+        int num_nodes = tree.getNumNodes();
+        Arrays.fill(dirty_edges, false);
+        Arrays.fill(dirty_nodes, false);
+        num_recomputed_edges = 0;
+        for (int node_idx=0; node_idx<num_nodes; node_idx++)
+        {
+            if (tree.isRoot(node_idx))
+                continue;
+            long version = transients.getVersion(0, node_idx);
+            if (version<0L || version != edge_versions[node_idx])
+            {
+                edge_versions[node_idx] = version;
+                dirty_edges[node_idx] = true;
+                int parent_idx = tree.getParentIndex(node_idx);
+                while (parent_idx>=0 && !dirty_nodes[parent_idx])
+                {
+                    dirty_nodes[parent_idx] = true;
+                    parent_idx = tree.getParentIndex(parent_idx);
+                }
+            }
+        }
+        for (int node_idx=0; node_idx<num_nodes; node_idx++)
+            if (dirty_nodes[node_idx])
+            {
+                int num_children = tree.getNumChildren(node_idx);
+                for (int ci=0; ci<num_children; ci++)
+                {
+                    int child_idx = tree.getChildIndex(node_idx, ci);
+                    if (dirty_edges[child_idx] || dirty_nodes[child_idx])
+                        num_recomputed_edges++;
+                }
+            }
+
+        for (int family_idx=0; family_idx<family_log_likelihoods.length; family_idx++)
+            family_log_likelihoods[family_idx] = computeFamily(family_idx);
+    }
+
+    /**
+     * Recomputes the dirty nodes in postorder for a family.
+     *
+     * @return family log-likelihood
+     */
+    private double computeFamily(int family_idx)
+    {
+        int num_nodes = tree.getNumNodes();
+        double[] P = partials[family_idx];
+        int[] family_offsets = offsets[family_idx];
+        int[] family_scales = scales[family_idx];
+
+        for (int node_idx=tree.getNumLeaves(); node_idx<num_nodes; node_idx++)
+        {
+            if (!dirty_nodes[node_idx] || bounds.isMissingSubtree(family_idx, node_idx))
+                continue;
+            int bound = bounds.getBound(family_idx, node_idx);
+            int C_offset = family_offsets[node_idx];
+            Arrays.fill(P, C_offset, C_offset+bound+1, 1.0);
+            int scale = 0;
+            int num_children = tree.getNumChildren(node_idx);
+            for (int ci=0; ci<num_children; ci++)
+            {
+                int child_idx = tree.getChildIndex(node_idx, ci);
+                if (bounds.isMissingSubtree(family_idx, child_idx))
+                    continue;
+                int E_offset = family_offsets[num_nodes+child_idx];
+                if (dirty_edges[child_idx] || dirty_nodes[child_idx])
+                {
+                    int child_bound = bounds.getBound(family_idx, child_idx);
+                    double[] T1 = transients.getTransient1Parameters(0, child_idx);
+                    Likelihood.computeEdgeLikelihoods(P, family_offsets[child_idx], child_bound,
+                            transients.getTransient0(0, child_idx, child_bound), T1[0], T1[1],
+                            P, E_offset, bound,
+                            edge_convolution, edge_powers);
+                }
+                for (int n=0; n<=bound; n++)
+                    P[C_offset+n] *= P[E_offset+n];
+                scale += family_scales[child_idx];
+            }
+            family_scales[node_idx] = scale + Likelihood.rescale(P, C_offset, bound);
+        }
+
+        int root_idx = num_nodes-1;
+        int root_bound = bounds.getBound(family_idx, root_idx);
+        if (root_bound<0) // all missing
+            return 0.0;
+        int C_offset = family_offsets[root_idx];
+        double[] root_prior = transients.getRootPrior(0, root_bound);
+        double L = 0.0;
+        for (int n=0; n<=root_bound; n++)
+            L += root_prior[n]*P[C_offset+n];
+        return Math.log(L)+family_scales[root_idx]*LOG2;
+    }
+
+    private void mainmain(String[] args) throws Exception
+    {
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(getClass()));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+args[0]));
+        out.println(Executable.getStandardHeader("Rates file: "+args[1]));
+        out.println(Executable.getStandardHeader("Table file: "+args[2]));
+
+        long time_start = System.currentTimeMillis();
+        double LL = getLogLikelihood();
+        long time_end = System.currentTimeMillis();
+        out.println("#LL\t"+LL+"\t// edges "+getNumRecomputedEdges());
+        out.println(Executable.getStandardHeader("Time: "+(time_end-time_start)+" ms"));
+
+        if (model instanceof TreeWithRates)
+        {
+            TreeWithRates rates = (TreeWithRates) model;
+            Likelihood full = new Likelihood(model);
+            for (int leaf_idx=0; leaf_idx<tree.getNumLeaves(); leaf_idx++)
+            {
+                rates.setLossRate(leaf_idx, 1.25*rates.getLossRate(leaf_idx));
+                time_start = System.currentTimeMillis();
+                LL = getLogLikelihood();
+                time_end = System.currentTimeMillis();
+                full.computeParameters();
+                double check = full.getLogLikelihood(bounds);
+                out.println("#LL\t"+LL+"\t// leaf "+leaf_idx+"\tedges "+getNumRecomputedEdges()
+                        +"\tdiff "+(LL-check)+"\t"+(time_end-time_start)+" ms");
+            }
+        }
+    }
+
+    /**
+     * Test code --- reads a tree, a rate file and a table, and then
+     * computes the log-likelihood under the main rate tree; then
+     * changes the loss rate on each leaf edge in turn and recomputes
+     * incrementally, comparing with a full computation.
+     *
+     * @param args command line arguments
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 3)
+            throw new IllegalArgumentException("Call as java "+IncrementalLikelihood.class.getName()+" tree rates table");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        RateVariation rates = RateVariation.readRates(new count.io.GeneralizedFileReader(args[1]), tree);
+        if (rates.getMainTree().getRootDistribution()==null)
+            throw new IllegalArgumentException("Rates file must specify the root prior");
+        OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+        table.readTable(new count.io.GeneralizedFileReader(args[2]), true);
+        IncrementalLikelihood O = new IncrementalLikelihood(rates.getMainTree(), table);
+        O.mainmain(args);
+    }
+}
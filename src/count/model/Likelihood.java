@@ -0,0 +1,719 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.util.Executable;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Likelihood computation by Felsenstein's pruning algorithm
+ * for a linear birth-and-death model.
+ *
+ * The conditional likelihood vectors are indexed by the copy number at a node,
+ * and truncated at a bound that depends on the largest family size in the node's
+ * subtree (see {@link CopyNumberBounds}).
+ * All per-node buffers are allocated once and reused
+ * across families: in a steady state, the computation for
+ * a family creates no new objects. The transient distributions
+ * on the edges are kept in a {@link BirthDeathProcess.TransientCache}, 
+ * refreshed by {@link #computeParameters() } 
+ * which needs to be called after the rates of the underlying model change: 
+ * only the edges with a changed modification stamp are recomputed.
+ *
+ * An instance is not thread-safe: use one instance per thread.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class Likelihood
+{
+    /**
+     * Default additive slack for the copy-number truncation.
+     */
+    public static final int DEFAULT_TRUNCATION_ABSOLUTE = 5;
+    /**
+     * Default multiplicative slack for the copy-number truncation.
+     */
+    public static final double DEFAULT_TRUNCATION_RELATIVE = 0.25;
+
+    private static final double LOG2 = Math.log(2.0);
+
+    /**
+     * Instantiation with a given model; transient distributions are computed here.
+     *
+     * @param model the underlying rate model
+     */
+    public Likelihood(ProbabilisticEvolutionModel.BirthDeath model)
+    {
+        this.model = model;
+        this.tree = model.getPhylogeny();
+        int num_nodes = tree.getNumNodes();
+
+        this.conditionals = new double[num_nodes][];
+        this.edge_likelihoods = new double[num_nodes][];
+        this.node_bounds = new int[num_nodes];
+        this.node_scales = new int[num_nodes];
+
+        this.transients = new BirthDeathProcess.TransientCache(model);
+
+        setTruncation(DEFAULT_TRUNCATION_ABSOLUTE, DEFAULT_TRUNCATION_RELATIVE);
+    }
+
+    private final ProbabilisticEvolutionModel.BirthDeath model;
+    private final IndexedTree tree;
+
+    private int truncation_absolute;
+    private double truncation_relative;
+
+    /**
+     * Conditional likelihoods: probability of the observed leaves
+     * in the node's subtree, given the copy number at the node.
+     * (Scaled by 2<sup>-<var>e</var></sup>, see {@link #node_scales}.)
+     */
+    private final double[][] conditionals;
+    /**
+     * Conditional likelihoods on the edge leading to the node:
+     * probability of the observed leaves in the node's subtree,
+     * given the copy number at the parent.
+     * (Same scaling as for the node.)
+     */
+    private final double[][] edge_likelihoods;
+    /**
+     * Largest copy number with which the node's conditionals are computed for the current family,
+     * when the bounds are not supplied by the caller.
+     */
+    private final int[] node_bounds;
+    /**
+     * Binary exponents for scaling the conditionals in the node's subtree.
+     */
+    private final int[] node_scales;
+
+    /**
+     * Transient distributions on the edges and the root prior.
+     */
+    private final BirthDeathProcess.TransientCache transients;
+
+    /**
+     * Scratch space for the edge computations.
+     */
+    private double[] edge_convolution = new double[0];
+    private double[] edge_powers = new double[0];
+
+    public ProbabilisticEvolutionModel.BirthDeath getModel()
+    {
+        return model;
+    }
+
+    /**
+     * Node conditionals for the last computed family (package-private access for the gradient).
+     */
+    double[] getNodeConditionals(int node_idx)
+    {
+        return conditionals[node_idx];
+    }
+
+    /**
+     * Edge conditionals for the last computed family.
+     */
+    double[] getEdgeConditionals(int node_idx)
+    {
+        return edge_likelihoods[node_idx];
+    }
+
+    /**
+     * Binary scaling exponent of the node's subtree for the last computed family.
+     */
+    int getNodeScale(int node_idx)
+    {
+        return node_scales[node_idx];
+    }
+
+    BirthDeathProcess.TransientCache getTransients()
+    {
+        return transients;
+    }
+
+    /**
+     * Normalized outside vector at the root for the last computed family:
+     * the root prior divided by the mantissa of the family's likelihood.
+     * The binary exponent of the likelihood is returned, and applied
+     * after the products with the conditionals: for a family of many copies,
+     * the prior divided by the likelihood would overflow.
+     *
+     * @param bounds truncation bounds of the last computed family; a negative root bound means that all entries are missing
+     * @param root_bound largest copy number at the root
+     * @param O array filled with the outside vector (all 0 for an impossible family)
+     * @return binary exponent of the likelihood; 0 for an impossible family
+     */
+    int computeRootOutside(int[] bounds, int root_bound, double[] O)
+    {
+        int root_idx = tree.getNumNodes()-1;
+        double[] root_prior = transients.getRootPrior(0, root_bound);
+        double Z = 0.0;
+        if (bounds[root_idx]<0)
+        {
+            for (int n=0; n<=root_bound; n++)
+                Z += root_prior[n];
+        } else
+        {
+            double[] C = conditionals[root_idx];
+            for (int n=0; n<=root_bound; n++)
+                Z += root_prior[n]*C[n];
+        }
+        if (Z==0.0)
+        {
+            Arrays.fill(O, 0, root_bound+1, 0.0);
+            return 0;
+        }
+        int exponent = Math.getExponent(Z);
+        if (exponent<Double.MIN_EXPONENT) // subnormal
+            exponent = Math.getExponent(Math.scalb(Z, 64))-64;
+        double mantissa = Math.scalb(Z, -exponent);
+        for (int n=0; n<=root_bound; n++)
+            O[n] = root_prior[n]/mantissa;
+        return exponent;
+    }
+
+    /**
+     * Weights for the parent's copy numbers on an edge in the outside pass:
+     * the parent's normalized outside vector times the siblings' edge conditionals,
+     * with the scaling exponents of the parent's subtree removed.
+     *
+     * @param bounds truncation bounds of the last computed family (negative for fully missing subtrees)
+     * @param node_idx child node of the edge
+     * @param O normalized outside vector at the parent
+     * @param parent_bound largest copy number at the parent
+     * @param root_exponent exponent returned by {@link #computeRootOutside(int[], int, double[]) }
+     * @param X array filled with the weights
+     */
+    void computeEdgeWeights(int[] bounds, int node_idx, double[] O, int parent_bound, int root_exponent, double[] X)
+    {
+        int parent_idx = tree.getParentIndex(node_idx);
+        int num_children = tree.getNumChildren(parent_idx);
+        int own_scale = tree.isRoot(parent_idx)?root_exponent:0;
+        if (bounds[parent_idx]>=0)
+        {
+            own_scale += node_scales[parent_idx];
+            for (int ci=0; ci<num_children; ci++)
+            {
+                int child_idx = tree.getChildIndex(parent_idx, ci);
+                if (bounds[child_idx]>=0)
+                    own_scale -= node_scales[child_idx];
+            }
+        }
+        System.arraycopy(O, 0, X, 0, parent_bound+1);
+        for (int ci=0; ci<num_children; ci++)
+        {
+            int sibling_idx = tree.getChildIndex(parent_idx, ci);
+            if (sibling_idx != node_idx && bounds[sibling_idx]>=0)
+            {
+                double[] E = edge_likelihoods[sibling_idx];
+                for (int n=0; n<=parent_bound; n++)
+                    X[n] *= E[n];
+            }
+        }
+        // scaling last: the factor alone may be out of range
+        if (own_scale != 0)
+            for (int n=0; n<=parent_bound; n++)
+                X[n] = Math.scalb(X[n], -own_scale);
+    }
+
+    /**
+     * Normalized outside vector at the child of an edge, from the weights
+     * of {@link #computeEdgeWeights(int[], int, double[], int, int, double[]) }:
+     * pulled back through the inheritance, then convolved with the gains.
+     *
+     * @param node_idx child node of the edge
+     * @param X weights for the parent's copy numbers
+     * @param parent_bound largest copy number at the parent
+     * @param bound largest copy number at the child
+     * @param V scratch space, at least <var>bound</var>+1 long
+     * @param W scratch space, at least <var>bound</var>+1 long
+     * @param O array filled with the outside vector
+     */
+    void computeChildOutside(int node_idx, double[] X, int parent_bound, int bound, double[] V, double[] W, double[] O)
+    {
+        double[] T1 = transients.getTransient1Parameters(0, node_idx);
+        pullBackEdge(X, parent_bound, T1[0], T1[1], bound, V, W);
+        double[] T0 = transients.getTransient0(0, node_idx, bound);
+        convolveGain(T0, V, bound, O);
+    }
+
+    /**
+     * Sets the truncation for the ancestral copy numbers.
+     * The conditional likelihood vectors are computed up to
+     * <var>m</var>+<var>a</var>+&lceil;<var>r</var><var>m</var>&rceil;
+     * where <var>m</var> is the largest observed family size.
+     *
+     * @param absolute additive slack <var>a</var> (non-negative)
+     * @param relative multiplicative slack <var>r</var> (non-negative)
+     */
+    public final void setTruncation(int absolute, double relative)
+    {
+        if (absolute<0 || relative<0.0)
+            throw new IllegalArgumentException("Truncation parameters must be non-negative");
+        this.truncation_absolute = absolute;
+        this.truncation_relative = relative;
+    }
+
+    public int getTruncationAbsolute()
+    {
+        return truncation_absolute;
+    }
+
+    public double getTruncationRelative()
+    {
+        return truncation_relative;
+    }
+
+    /**
+     * Truncation bound for a given observed family size.
+     *
+     * @param max_observed largest family size at the leaves
+     * @return largest copy number in the conditional likelihood vectors
+     */
+    public int getTruncationBound(int max_observed)
+    {
+        return CopyNumberBounds.getTruncationBound(max_observed, truncation_absolute, truncation_relative);
+    }
+
+    /**
+     * Recomputes the transient distributions on the edges that changed.
+     * Must be called after the model parameters change.
+     *
+     * @return number of recomputed edges
+     */
+    public final int computeParameters()
+    {
+        return transients.update();
+    }
+
+    /**
+     * Extends the scratch space if necessary.
+     *
+     * @param bound largest copy number for which the edge computations are needed
+     */
+    private void ensureParameterCapacity(int bound)
+    {
+        if (edge_convolution.length<=bound)
+        {
+            int capacity = Math.max(bound+1, 2*edge_convolution.length);
+            edge_convolution = new double[capacity];
+            edge_powers = new double[capacity];
+        }
+    }
+
+    /**
+     * Makes sure that the node's buffers can hold the conditionals up to the given copy number.
+     */
+    private void ensureNodeCapacity(int node_idx, int bound)
+    {
+        double[] C = conditionals[node_idx];
+        if (C==null || C.length<=bound)
+        {
+            int capacity = Math.max(bound+1, C==null?0:2*C.length);
+            conditionals[node_idx] = new double[capacity];
+        }
+    }
+
+    /**
+     * Makes sure that the buffer for the edge leading to the node can hold the values up to the given parental copy number.
+     */
+    private void ensureEdgeCapacity(int node_idx, int parent_bound)
+    {
+        double[] E = edge_likelihoods[node_idx];
+        if (E==null || E.length<=parent_bound)
+        {
+            int capacity = Math.max(parent_bound+1, E==null?0:2*E.length);
+            edge_likelihoods[node_idx] = new double[capacity];
+        }
+    }
+
+    /**
+     * Log-likelihood of a family profile.
+     *
+     * @param profile family sizes at the leaves, in leaf index order; negative values mark missing entries
+     * @return natural logarithm of the profile's probability
+     */
+    public double getLogLikelihood(int[] profile)
+    {
+        CopyNumberBounds.computeBounds(tree, profile, truncation_absolute, truncation_relative, node_bounds);
+        return getLogLikelihood(profile, node_bounds);
+    }
+
+    /**
+     * Log-likelihood of a family profile with precomputed truncation bounds.
+     *
+     * @param profile family sizes at the leaves, in leaf index order; negative values mark missing entries
+     * @param bounds per-node truncation bounds, as computed by {@link CopyNumberBounds} (negative for fully missing subtrees); not modified
+     * @return natural logarithm of the profile's probability
+     */
+    public double getLogLikelihood(int[] profile, int[] bounds)
+    {
+        int num_nodes = tree.getNumNodes();
+        int root_idx = num_nodes-1;
+        if (bounds[root_idx]<0) // all missing
+            return 0.0;
+        ensureParameterCapacity(bounds[root_idx]);
+
+        for (int node_idx=0; node_idx<num_nodes; node_idx++)
+        {
+            int bound = bounds[node_idx];
+            if (bound<0) // fully missing subtree: likelihood 1 on the edge above
+                continue;
+            ensureNodeCapacity(node_idx, bound);
+            double[] C = conditionals[node_idx];
+            if (tree.isLeaf(node_idx))
+            {
+                int n = profile[node_idx];
+                Arrays.fill(C, 0, n, 0.0);
+                C[n] = 1.0;
+                node_scales[node_idx] = 0;
+            } else
+            {
+                Arrays.fill(C, 0, bound+1, 1.0);
+                int scale = 0;
+                int num_children = tree.getNumChildren(node_idx);
+                for (int ci=0; ci<num_children; ci++)
+                {
+                    int child_idx = tree.getChildIndex(node_idx, ci);
+                    if (bounds[child_idx]<0)
+                        continue;
+                    computeEdgeLikelihoods(child_idx, bounds[child_idx], bound);
+                    double[] E = edge_likelihoods[child_idx];
+                    for (int n=0; n<=bound; n++)
+                        C[n] *= E[n];
+                    scale += node_scales[child_idx];
+                }
+                node_scales[node_idx] = scale + rescale(C, 0, bound);
+            }
+        }
+
+        double[] C = conditionals[root_idx];
+        int root_bound = bounds[root_idx];
+        double[] root_prior = transients.getRootPrior(0, root_bound);
+        double L = 0.0;
+        for (int n=0; n<=root_bound; n++)
+            L += root_prior[n]*C[n];
+
+        return Math.log(L)+node_scales[root_idx]*LOG2;
+    }
+
+    /**
+     * Sum of log-likelihoods across all families in a table, with precomputed bounds.
+     *
+     * @param bounds truncation bounds for the table's families
+     * @return sum of natural logarithms of the profile probabilities
+     */
+    public double getLogLikelihood(CopyNumberBounds bounds)
+    {
+        double LL = 0.0;
+        int num_families = bounds.getTable().getFamilyCount();
+        for (int family_idx=0; family_idx<num_families; family_idx++)
+            LL += getLogLikelihood(bounds, family_idx);
+        return LL;
+    }
+
+    /**
+     * Log-likelihood of a family with precomputed truncation bounds.
+     *
+     * @param bounds truncation bounds for the table's families
+     * @param family_idx family index in the table
+     * @return natural logarithm of the profile's probability
+     */
+    public double getLogLikelihood(CopyNumberBounds bounds, int family_idx)
+    {
+        return getLogLikelihood(bounds.getTable().getSizes(family_idx), bounds.getBounds(family_idx, node_bounds));
+    }
+
+    /**
+     * Sum of log-likelihoods across all families in a table.
+     *
+     * @param table family profiles, with columns in leaf index order
+     * @return sum of natural logarithms of the profile probabilities
+     */
+    public double getLogLikelihood(OccurrenceTable table)
+    {
+        double LL = 0.0;
+        int num_families = table.getFamilyCount();
+        for (int family_idx=0; family_idx<num_families; family_idx++)
+            LL += getLogLikelihood(table.getSizes(family_idx));
+        return LL;
+    }
+
+    /**
+     * Computes the conditional likelihoods on the edge leading to a node
+     * from the node's conditionals.
+     *
+     * @param node_idx child node
+     * @param bound largest copy number at the child
+     * @param parent_bound largest copy number at the parent
+     */
+    private void computeEdgeLikelihoods(int node_idx, int bound, int parent_bound)
+    {
+        ensureEdgeCapacity(node_idx, parent_bound);
+        double[] T1 = transients.getTransient1Parameters(0, node_idx);
+        computeEdgeLikelihoods(conditionals[node_idx], 0, bound,
+                transients.getTransient0(0, node_idx, bound), T1[0], T1[1],
+                edge_likelihoods[node_idx], 0, parent_bound,
+                edge_convolution, edge_powers);
+    }
+
+    /**
+     * Computes the conditional likelihoods on an edge
+     * from the child's conditionals.
+     *
+     * With gain distribution <var>T</var><sub>0</sub> and single-copy
+     * inheritance <var>T</var><sub>1</sub> on the edge,
+     * the probability of <var>m</var> copies at the node given <var>n</var> copies
+     * at the parent is (<var>T</var><sub>0</sub>*<var>T</var><sub>1</sub><sup>*<var>n</var></sup>)[<var>m</var>].
+     * The gain is handled first by correlation with the node's conditionals;
+     * the convolution powers of the shifted geometric <var>T</var><sub>1</sub>
+     * are computed by a linear-time recurrence for each <var>n</var>.
+     * Both steps are quadratic in the copy numbers.
+     * (The gain correlation is not done by FFT: the transform's rounding error
+     * is relative to the largest entry, and small entries still matter
+     * when the rest of the tree favors few copies; recomputing them directly costs
+     * as much as the direct sums.)
+     *
+     * @param C array holding the child's conditionals
+     * @param C_offset position of copy number 0 in <var>C</var>
+     * @param bound largest copy number at the child
+     * @param T0 gain distribution, at least up to <var>bound</var>
+     * @param p shifted geometric parameter for <var>T</var><sub>1</sub>: probability of 0
+     * @param q shifted geometric parameter for <var>T</var><sub>1</sub>: ratio of the tail
+     * @param E array for the edge conditionals
+     * @param E_offset position of copy number 0 in <var>E</var>
+     * @param parent_bound largest copy number at the parent
+     * @param G scratch space, at least <var>bound</var>+1 long
+     * @param W scratch space, at least <var>bound</var>+1 long
+     */
+    static void computeEdgeLikelihoods(double[] C, int C_offset, int bound,
+            double[] T0, double p, double q,
+            double[] E, int E_offset, int parent_bound,
+            double[] G, double[] W)
+    {
+        correlateGain(T0, C, C_offset, bound, G);
+
+        // inheritance: E[n] = sum_i T1^{*n}[i]*G[i]
+        double r = (1.0-p)*(1.0-q);
+        W[0] = 1.0;
+        Arrays.fill(W, 1, bound+1, 0.0);
+        E[E_offset] = G[0];
+        for (int n=1; n<=parent_bound; n++)
+        {
+            // W = W*T1 in place
+            int top = (q==0.0?Math.min(n, bound):bound); // without duplications, n copies cannot become more
+            double s = 0.0;
+            double w_prev = 0.0;
+            double e = 0.0;
+            for (int m=0; m<=top; m++)
+            {
+                double w = W[m];
+                s = w_prev + q*s;
+                double x = p*w + r*s;
+                W[m] = x;
+                e += x*G[m];
+                w_prev = w;
+            }
+            E[E_offset+n] = e;
+        }
+    }
+
+    /**
+     * Gain correlation <var>G</var>[<var>i</var>] = &sum;<sub><var>j</var></sub> <var>T</var><sub>0</sub>[<var>j</var>]&middot;<var>C</var>[<var>i</var>+<var>j</var>]
+     * for <var>i</var>+<var>j</var>&le;<var>bound</var>.
+     * The sums are restricted to the nonzero range of <var>C</var>, so a leaf's
+     * single nonzero entry costs O(<var>b</var>) instead of O(<var>b</var><sup>2</sup>).
+     *
+     * @param T0 gain distribution (or other nonnegative weights), at least up to <var>bound</var>
+     * @param C array of nonnegative values
+     * @param C_offset position of index 0 in <var>C</var>
+     * @param bound largest index
+     * @param G array filled with the result
+     */
+    static void correlateGain(double[] T0, double[] C, int C_offset, int bound, double[] G)
+    {
+        int lo = 0;
+        while (lo<=bound && C[C_offset+lo]==0.0)
+            lo++;
+        int hi = bound;
+        while (hi>=lo && C[C_offset+hi]==0.0)
+            hi--;
+        if (hi<lo)
+        {
+            Arrays.fill(G, 0, bound+1, 0.0);
+            return;
+        }
+        Arrays.fill(G, hi+1, bound+1, 0.0);
+        for (int i=0; i<=hi; i++)
+        {
+            double g = 0.0;
+            for (int j=Math.max(0, lo-i); i+j<=hi; j++)
+                g += T0[j]*C[C_offset+i+j];
+            G[i] = g;
+        }
+    }
+
+    /**
+     * Gain convolution <var>O</var>[<var>m</var>] = &sum;<sub><var>j</var>&le;<var>m</var></sub> <var>T</var><sub>0</sub>[<var>j</var>]&middot;<var>V</var>[<var>m</var>-<var>j</var>]
+     * for <var>m</var>&le;<var>bound</var>, used in the outside computations;
+     * with the sums restricted to the nonzero range of <var>V</var>, as in {@link #correlateGain(double[], double[], int, int, double[]) }.
+     *
+     * @param T0 gain distribution, at least up to <var>bound</var>
+     * @param V array of nonnegative values
+     * @param bound largest index
+     * @param O array filled with the result
+     */
+    static void convolveGain(double[] T0, double[] V, int bound, double[] O)
+    {
+        int lo = 0;
+        while (lo<=bound && V[lo]==0.0)
+            lo++;
+        int hi = bound;
+        while (hi>=lo && V[hi]==0.0)
+            hi--;
+        if (hi<lo)
+        {
+            Arrays.fill(O, 0, bound+1, 0.0);
+            return;
+        }
+        Arrays.fill(O, 0, lo, 0.0);
+        for (int m=lo; m<=bound; m++)
+        {
+            double o = 0.0;
+            for (int j=Math.max(0, m-hi); j<=m-lo; j++)
+                o += T0[j]*V[m-j];
+            O[m] = o;
+        }
+    }
+
+    /**
+     * Pulls back weights on the parental copy numbers through the inheritance on an edge:
+     * computes <var>V</var>[<var>m</var>] = &sum;<sub><var>n</var></sub> <var>X</var>[<var>n</var>]
+     * <var>T</var><sub>1</sub><sup>*<var>n</var></sup>[<var>m</var>]
+     * with the same recurrence as {@link #computeEdgeLikelihoods(double[], int, int, double[], double, double, double[], int, int, double[], double[]) }.
+     * (The gain distribution is applied by the caller.)
+     *
+     * @param X weights for the parent's copy numbers
+     * @param parent_bound largest copy number at the parent
+     * @param p shifted geometric parameter for <var>T</var><sub>1</sub>: probability of 0
+     * @param q shifted geometric parameter for <var>T</var><sub>1</sub>: ratio of the tail
+     * @param bound largest copy number at the child
+     * @param V array filled with the result, at least <var>bound</var>+1 long
+     * @param W scratch space, at least <var>bound</var>+1 long
+     */
+    static void pullBackEdge(double[] X, int parent_bound, double p, double q, int bound, double[] V, double[] W)
+    {
+        double r = (1.0-p)*(1.0-q);
+        Arrays.fill(V, 0, bound+1, 0.0);
+        W[0] = 1.0;
+        Arrays.fill(W, 1, bound+1, 0.0);
+        V[0] = X[0];
+        for (int n=1; n<=parent_bound; n++)
+        {
+            double xn = X[n];
+            int top = (q==0.0?Math.min(n, bound):bound);
+            double s = 0.0;
+            double w_prev = 0.0;
+            for (int m=0; m<=top; m++)
+            {
+                double w = W[m];
+                s = w_prev + q*s;
+                double x = p*w + r*s;
+                W[m] = x;
+                V[m] += xn*x;
+                w_prev = w;
+            }
+        }
+    }
+
+    /**
+     * Scales the entries by a power of 2 so that the largest falls between 1 and 2.
+     *
+     * @param C array of values
+     * @param offset position of the first value
+     * @param bound number of values minus 1
+     * @return exponent by which the values were scaled down
+     */
+    static int rescale(double[] C, int offset, int bound)
+    {
+        double max = 0.0;
+        for (int n=0; n<=bound; n++)
+            max = Math.max(max, C[offset+n]);
+        if (max==0.0 || Double.isInfinite(max) || Double.isNaN(max))
+            return 0;
+        int exponent = Math.getExponent(max);
+        if (exponent != 0)
+        {
+            double factor = Math.scalb(1.0, -exponent);
+            for (int n=0; n<=bound; n++)
+                C[offset+n] *= factor;
+        }
+        return exponent;
+    }
+
+    private void mainmain(String[] args) throws Exception
+    {
+        int arg_idx = 0;
+        if (3+arg_idx != args.length)
+        {
+            throw new IllegalArgumentException("Call as java "+getClass().getName()+" tree rates table");
+        }
+        String tree_file = args[arg_idx++];
+        String rates_file = args[arg_idx++];
+        String table_file = args[arg_idx++];
+
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(getClass()));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+tree_file));
+        out.println(Executable.getStandardHeader("Rates file: "+rates_file));
+        out.println(Executable.getStandardHeader("Table file: "+table_file));
+
+        OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+        table.readTable(new count.io.GeneralizedFileReader(table_file), true);
+
+        double LL = 0.0;
+        int num_families = table.getFamilyCount();
+        for (int family_idx=0; family_idx<num_families; family_idx++)
+        {
+            double ll = getLogLikelihood(table.getSizes(family_idx));
+            out.println(table.getFamilyName(family_idx)+"\t"+ll);
+            LL += ll;
+        }
+        out.println("#LL\t"+LL);
+    }
+
+    /**
+     * Test code --- reads a tree, a rate file and a table, and then
+     * writes the family log-likelihoods under the main rate tree to stdout.
+     *
+     * @param args command line arguments
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length<2)
+            throw new IllegalArgumentException("Call as java "+Likelihood.class.getName()+" tree rates table");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        RateVariation rates = RateVariation.readRates(new count.io.GeneralizedFileReader(args[1]), tree);
+        if (rates.getMainTree().getRootDistribution()==null)
+            throw new IllegalArgumentException("Rates file must specify the root prior");
+        Likelihood O = new Likelihood(rates.getMainTree());
+        O.mainmain(args);
+    }
+}
@@ -0,0 +1,613 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.matek.DiscreteDistribution;
+import count.util.Executable;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Persistent cache of family log-likelihoods in a memory-mapped file.
+ *
+ * Every entry is keyed by a 128-bit hash of the profile together with
+ * a fingerprint of the model: the tree, the rates of every rate class
+ * with their probabilities and the root prior, and the truncation
+ * parameters (see {@link #getFingerprint(RateVariation, int, double) }).
+ * Entries from different models coexist in the same file.
+ *
+ * The file holds a fixed number of slots, so its size is bounded.
+ * An entry is stored in one of {@link #PROBE_WINDOW} consecutive
+ * slots starting at a position given by its key; when they are all taken,
+ * the oldest entry in the window is evicted.
+ *
+ * Readers take no locks. Every slot carries a 64-bit checksum over its key,
+ * value and stamp, and a slot that is being overwritten concurrently
+ * (by another thread or process) fails the check and counts as a miss:
+ * a lookup never returns a value stored for a different key.
+ * Writers take an exclusive file lock against other processes. Since file locks
+ * are held by the whole virtual machine, writers within the same process
+ * are first serialized on a lock shared by all instances for the same file.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class LikelihoodCache implements Closeable
+{
+    /**
+     * Default number of slots in a new cache file.
+     */
+    public static final int DEFAULT_CAPACITY = 1<<20;
+    /**
+     * Number of slots searched for a key.
+     */
+    public static final int PROBE_WINDOW = 8;
+
+    private static final long MAGIC = 0x434f554e544c4c43L; // "COUNTLLC"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 40;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 8;
+    private static final int HEADER_SLOT_SIZE = 12;
+    private static final int HEADER_CAPACITY = 16;
+    private static final int HEADER_STAMP = 24;
+    private static final int SLOT_KEY_HI = 0;
+    private static final int SLOT_KEY_LO = 8;
+    private static final int SLOT_VALUE = 16;
+    private static final int SLOT_STAMP = 24;
+    private static final int SLOT_CHECKSUM = 32;
+
+    /**
+     * In-process write locks by canonical file path: the file lock itself
+     * cannot be taken twice by the same virtual machine.
+     */
+    private static final ConcurrentHashMap<String, ReentrantLock> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    private static ReentrantLock getProcessLock(File file) throws IOException
+    {
+        return PROCESS_LOCKS.computeIfAbsent(file.getCanonicalPath(), path->new ReentrantLock());
+    }
+
+    /**
+     * Opens a cache file, or creates it with the given number of slots if it does not exist.
+     * An existing file keeps its own capacity.
+     *
+     * @param file cache file
+     * @param capacity number of slots for a new file; rounded up to a power of 2
+     * @return the opened cache
+     * @throws IOException if the file cannot be mapped, or it exists but is not a cache file
+     */
+    public static LikelihoodCache open(File file, int capacity) throws IOException
+    {
+        if (capacity<PROBE_WINDOW)
+            throw new IllegalArgumentException("Capacity must be at least "+PROBE_WINDOW);
+        int num_slots = Integer.highestOneBit(capacity-1)<<1;
+        if ((long)num_slots*SLOT_SIZE+HEADER_SIZE>Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Capacity "+capacity+" is too large for a mapped file");
+        ReentrantLock process_lock = getProcessLock(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        process_lock.lock();
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            FileLock lock = channel.lock();
+            try
+            {
+                if (channel.size()==0L)
+                {
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, HEADER_SIZE+(long)num_slots*SLOT_SIZE);
+                    buffer.putInt(HEADER_VERSION, FORMAT_VERSION);
+                    buffer.putInt(HEADER_SLOT_SIZE, SLOT_SIZE);
+                    buffer.putLong(HEADER_CAPACITY, num_slots);
+                    buffer.putLong(HEADER_STAMP, 0L);
+                    buffer.putLong(HEADER_MAGIC, MAGIC);
+                    buffer.force();
+                    return new LikelihoodCache(file, raf, buffer, num_slots, process_lock);
+                }
+                MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0L, Math.min(channel.size(), HEADER_SIZE));
+                if (header.capacity()<HEADER_SIZE || header.getLong(HEADER_MAGIC) != MAGIC)
+                    throw new IOException("Not a likelihood cache file: "+file);
+                if (header.getInt(HEADER_VERSION) != FORMAT_VERSION || header.getInt(HEADER_SLOT_SIZE) != SLOT_SIZE)
+                    throw new IOException("Unsupported likelihood cache format in "+file);
+                long stored_slots = header.getLong(HEADER_CAPACITY);
+                if (Long.bitCount(stored_slots) != 1 || stored_slots<PROBE_WINDOW
+                        || channel.size() != HEADER_SIZE+stored_slots*SLOT_SIZE)
+                    throw new IOException("Corrupted likelihood cache header in "+file);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, channel.size());
+                return new LikelihoodCache(file, raf, buffer, (int)stored_slots, process_lock);
+            } finally
+            {
+                lock.release();
+            }
+        } catch (IOException | RuntimeException E)
+        {
+            raf.close();
+            throw E;
+        } finally
+        {
+            process_lock.unlock();
+        }
+    }
+
+    private LikelihoodCache(File file, RandomAccessFile raf, MappedByteBuffer buffer, int num_slots, ReentrantLock process_lock)
+    {
+        this.file = file;
+        this.raf = raf;
+        this.buffer = buffer;
+        this.num_slots = num_slots;
+        this.stamp = new AtomicLong(buffer.getLong(HEADER_STAMP));
+        this.num_hits = new AtomicLong();
+        this.num_misses = new AtomicLong();
+        this.process_lock = process_lock;
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buffer;
+    private final int num_slots;
+    /**
+     * Insertion counter; stamps the entries for the eviction order.
+     */
+    private final AtomicLong stamp;
+    private final AtomicLong num_hits;
+    private final AtomicLong num_misses;
+    /**
+     * Serializes the writers in this process, before the file lock.
+     */
+    private final ReentrantLock process_lock;
+
+    public File getFile()
+    {
+        return file;
+    }
+
+    public int getCapacity()
+    {
+        return num_slots;
+    }
+
+    public long getNumHits()
+    {
+        return num_hits.get();
+    }
+
+    public long getNumMisses()
+    {
+        return num_misses.get();
+    }
+
+    /**
+     * 128-bit fingerprint of a rate-variation model.
+     *
+     * @param rate_variation mixture model
+     * @param truncation_absolute additive truncation slack used in the computations
+     * @param truncation_relative multiplicative truncation slack used in the computations
+     * @return array of two 64-bit words
+     */
+    public static long[] getFingerprint(RateVariation rate_variation, int truncation_absolute, double truncation_relative)
+    {
+        int num_classes = rate_variation.getNumClasses();
+        ProbabilisticEvolutionModel.BirthDeath[] class_models = new ProbabilisticEvolutionModel.BirthDeath[num_classes];
+        double[] class_probabilities = new double[num_classes];
+        for (int class_idx=0; class_idx<num_classes; class_idx++)
+        {
+            class_models[class_idx] = rate_variation.getClassModel(class_idx);
+            class_probabilities[class_idx] = rate_variation.getClassProbability(class_idx);
+        }
+        return getFingerprint(class_models, class_probabilities, truncation_absolute, truncation_relative);
+    }
+
+    /**
+     * 128-bit fingerprint of a single rate model.
+     *
+     * @param model rate model
+     * @param truncation_absolute additive truncation slack used in the computations
+     * @param truncation_relative multiplicative truncation slack used in the computations
+     * @return array of two 64-bit words
+     */
+    public static long[] getFingerprint(ProbabilisticEvolutionModel.BirthDeath model, int truncation_absolute, double truncation_relative)
+    {
+        return getFingerprint(new ProbabilisticEvolutionModel.BirthDeath[]{model}, new double[]{1.0}, truncation_absolute, truncation_relative);
+    }
+
+    /**
+     * Hashes everything that the log-likelihoods depend on: the tree topology and leaf names,
+     * and the rates on every edge and the root prior for every class with positive probability.
+     */
+    private static long[] getFingerprint(ProbabilisticEvolutionModel.BirthDeath[] class_models, double[] class_probabilities,
+            int truncation_absolute, double truncation_relative)
+    {
+        Hash128 H = new Hash128();
+        IndexedTree tree = class_models[0].getPhylogeny();
+        int num_nodes = tree.getNumNodes();
+        H.add(num_nodes);
+        for (int node_idx=0; node_idx<num_nodes; node_idx++)
+        {
+            H.add(tree.getParentIndex(node_idx));
+            if (tree.isLeaf(node_idx))
+                H.add(tree.getName(node_idx));
+        }
+        H.add(truncation_absolute);
+        H.add(truncation_relative);
+        H.add(class_models.length);
+        for (int class_idx=0; class_idx<class_models.length; class_idx++)
+        {
+            double p = class_probabilities[class_idx];
+            H.add(p);
+            if (p==0.0)
+                continue;
+            ProbabilisticEvolutionModel.BirthDeath model = class_models[class_idx];
+            for (int node_idx=0; node_idx<num_nodes; node_idx++)
+            {
+                if (tree.isRoot(node_idx))
+                    continue;
+                H.add(model.getGainRate(node_idx));
+                H.add(model.getLossRate(node_idx));
+                H.add(model.getDuplicationRate(node_idx));
+                H.add(model.getEdgeLength(node_idx));
+            }
+            DiscreteDistribution root = model.getRootDistribution();
+            H.add(root==null?"":root.getClass().getName());
+            if (root != null)
+                for (double x: root.getParameters())
+                    H.add(x);
+        }
+        return new long[] {H.hi, H.lo};
+    }
+
+    /**
+     * Two independent 64-bit mixing chains.
+     */
+    private static final class Hash128
+    {
+        long hi = 0x9E3779B97F4A7C15L;
+        long lo = 0xC2B2AE3D27D4EB4FL;
+
+        void add(long x)
+        {
+            hi = mix(hi ^ x);
+            lo = mix(lo + x*0xFF51AFD7ED558CCDL);
+        }
+
+        void add(double x)
+        {
+            add(Double.doubleToLongBits(x));
+        }
+
+        void add(String s)
+        {
+            add(s.length());
+            for (int i=0; i<s.length(); i++)
+                add(s.charAt(i));
+        }
+    }
+
+    /**
+     * Finalizer of SplitMix64.
+     */
+    private static long mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * 128-bit key of a profile under a model; never (0,0), which marks empty slots.
+     */
+    private static long[] getKey(long[] fingerprint, int[] profile, long[] key)
+    {
+        Hash128 H = new Hash128();
+        H.hi ^= fingerprint[0];
+        H.lo ^= fingerprint[1];
+        H.add(profile.length);
+        for (int x: profile)
+            H.add(x);
+        key[0] = H.hi;
+        key[1] = H.lo | 1L;
+        return key;
+    }
+
+    private static long getChecksum(long key_hi, long key_lo, long value, long stamp)
+    {
+        return mix(mix(mix(key_hi ^ 0x5851F42D4C957F2DL) ^ key_lo) ^ value) ^ stamp;
+    }
+
+    private int getHomeSlot(long[] key)
+    {
+        return (int)(mix(key[0]) & (num_slots-1));
+    }
+
+    private int getSlotOffset(int slot)
+    {
+        return HEADER_SIZE + (slot & (num_slots-1))*SLOT_SIZE;
+    }
+
+    /**
+     * Looks up the slot holding a key.
+     *
+     * @return slot offset, or -1 if the key is not in the window
+     */
+    private int findSlot(long[] key)
+    {
+        int home = getHomeSlot(key);
+        for (int i=0; i<PROBE_WINDOW; i++)
+        {
+            int offset = getSlotOffset(home+i);
+            long key_hi = buffer.getLong(offset+SLOT_KEY_HI);
+            long key_lo = buffer.getLong(offset+SLOT_KEY_LO);
+            if (key_hi==key[0] && key_lo==key[1])
+                return offset;
+        }
+        return -1;
+    }
+
+    /**
+     * Cached log-likelihood of a profile.
+     *
+     * @param fingerprint model fingerprint
+     * @param profile family sizes in leaf index order
+     * @return the stored value, or NaN if not found
+     */
+    public double getLogLikelihood(long[] fingerprint, int[] profile)
+    {
+        long[] key = getKey(fingerprint, profile, new long[2]);
+        double value = lookup(key);
+        (Double.isNaN(value)?num_misses:num_hits).incrementAndGet();
+        return value;
+    }
+
+    private double lookup(long[] key)
+    {
+        int offset = findSlot(key);
+        if (offset<0)
+            return Double.NaN;
+        long value = buffer.getLong(offset+SLOT_VALUE);
+        long entry_stamp = buffer.getLong(offset+SLOT_STAMP);
+        long checksum = buffer.getLong(offset+SLOT_CHECKSUM);
+        // reread the key: the slot may have been overwritten in the meantime
+        long key_hi = buffer.getLong(offset+SLOT_KEY_HI);
+        long key_lo = buffer.getLong(offset+SLOT_KEY_LO);
+        if (key_hi != key[0] || key_lo != key[1] || checksum != getChecksum(key_hi, key_lo, value, entry_stamp))
+            return Double.NaN;
+        return Double.longBitsToDouble(value);
+    }
+
+    /**
+     * Stores the log-likelihood of a profile, evicting the oldest entry in the probe window if necessary.
+     *
+     * @param fingerprint model fingerprint
+     * @param profile family sizes in leaf index order
+     * @param log_likelihood value to be stored; must not be NaN
+     * @throws IOException if the file lock cannot be obtained
+     */
+    public void putLogLikelihood(long[] fingerprint, int[] profile, double log_likelihood) throws IOException
+    {
+        if (Double.isNaN(log_likelihood))
+            throw new IllegalArgumentException("Cannot cache NaN");
+        long[][] keys = {getKey(fingerprint, profile, new long[2])};
+        double[] values = {log_likelihood};
+        storeAll(keys, values, 1);
+    }
+
+    /**
+     * Stores a batch of entries under the in-process lock and the file lock;
+     * NaN values are skipped.
+     */
+    private void storeAll(long[][] keys, double[] values, int num_entries) throws IOException
+    {
+        process_lock.lock();
+        try
+        {
+            FileLock lock = raf.getChannel().lock();
+            try
+            {
+                // other instances on the file may have advanced the stamps since this one was opened
+                long header_stamp = buffer.getLong(HEADER_STAMP);
+                stamp.accumulateAndGet(header_stamp, Math::max);
+                for (int i=0; i<num_entries; i++)
+                    if (!Double.isNaN(values[i]))
+                        store(keys[i], values[i]);
+                buffer.putLong(HEADER_STAMP, stamp.get());
+            } finally
+            {
+                lock.release();
+            }
+        } finally
+        {
+            process_lock.unlock();
+        }
+    }
+
+    /**
+     * Writes one entry; called with the locks held.
+     */
+    private void store(long[] key, double log_likelihood)
+    {
+        int offset = findSlot(key);
+        if (offset<0)
+        {
+            // empty or damaged slot, else the oldest one
+            int home = getHomeSlot(key);
+            long oldest = Long.MAX_VALUE;
+            for (int i=0; i<PROBE_WINDOW && oldest != Long.MIN_VALUE; i++)
+            {
+                int slot_offset = getSlotOffset(home+i);
+                long key_hi = buffer.getLong(slot_offset+SLOT_KEY_HI);
+                long key_lo = buffer.getLong(slot_offset+SLOT_KEY_LO);
+                long entry_stamp = buffer.getLong(slot_offset+SLOT_STAMP);
+                boolean valid = (key_hi|key_lo) != 0L
+                        && buffer.getLong(slot_offset+SLOT_CHECKSUM)
+                            == getChecksum(key_hi, key_lo, buffer.getLong(slot_offset+SLOT_VALUE), entry_stamp);
+                long age = (valid?entry_stamp:Long.MIN_VALUE);
+                if (age<oldest)
+                {
+                    oldest = age;
+                    offset = slot_offset;
+                }
+            }
+        }
+        long value = Double.doubleToLongBits(log_likelihood);
+        long entry_stamp = stamp.incrementAndGet();
+        buffer.putLong(offset+SLOT_CHECKSUM, 0L);
+        buffer.putLong(offset+SLOT_KEY_HI, key[0]);
+        buffer.putLong(offset+SLOT_KEY_LO, key[1]);
+        buffer.putLong(offset+SLOT_VALUE, value);
+        buffer.putLong(offset+SLOT_STAMP, entry_stamp);
+        buffer.putLong(offset+SLOT_CHECKSUM, getChecksum(key[0], key[1], value, entry_stamp));
+    }
+
+    /**
+     * Log-likelihoods for a table: the distinct profiles are looked up in the cache,
+     * and the missing ones are computed by the engine and then stored.
+     * The engine's model and truncation determine the fingerprint.
+     *
+     * @param engine likelihood computation for the model
+     * @param profiles compressed table
+     * @param family_log_likelihoods array filled with the family log-likelihoods; may be null
+     * @return sum of log-likelihoods across the families
+     * @throws IOException if the file lock for storing the new entries cannot be obtained
+     */
+    public double getLogLikelihoods(ParallelLikelihood engine, UniqueProfiles profiles, double[] family_log_likelihoods) throws IOException
+    {
+        RateVariation rate_variation = engine.getRateVariation();
+        long[] fingerprint = (rate_variation == null
+                ? getFingerprint(engine.getModel(), engine.getTruncationAbsolute(), engine.getTruncationRelative())
+                : getFingerprint(rate_variation, engine.getTruncationAbsolute(), engine.getTruncationRelative()));
+
+        int num_patterns = profiles.getPatternCount();
+        double[] pattern_log_likelihoods = new double[num_patterns];
+        long[][] keys = new long[num_patterns][];
+        int[] missing = new int[num_patterns];
+        int num_missing = 0;
+        for (int pattern_idx=0; pattern_idx<num_patterns; pattern_idx++)
+        {
+            long[] key = getKey(fingerprint, profiles.getPattern(pattern_idx), new long[2]);
+            double value = lookup(key);
+            if (Double.isNaN(value))
+            {
+                keys[num_missing] = key;
+                missing[num_missing++] = pattern_idx;
+            } else
+                pattern_log_likelihoods[pattern_idx] = value;
+        }
+        num_hits.addAndGet(num_patterns-num_missing);
+        num_misses.addAndGet(num_missing);
+
+        if (num_missing>0)
+        {
+            OccurrenceTable pattern_table = profiles.getPatternTable();
+            int[][] missing_profiles = new int[num_missing][];
+            for (int i=0; i<num_missing; i++)
+                missing_profiles[i] = pattern_table.getSizes(missing[i]);
+            OccurrenceTable missing_table = new OccurrenceTable(pattern_table.getTaxonNames());
+            missing_table.setTable(missing_profiles, null);
+            double[] computed = new double[num_missing];
+            engine.getLogLikelihoods(missing_table, computed);
+            for (int i=0; i<num_missing; i++)
+                pattern_log_likelihoods[missing[i]] = computed[i];
+            storeAll(keys, computed, num_missing);
+        }
+        if (family_log_likelihoods != null)
+            profiles.expand(pattern_log_likelihoods, family_log_likelihoods);
+        return profiles.getWeightedSum(pattern_log_likelihoods);
+    }
+
+    /**
+     * Writes the changes to the storage device.
+     */
+    public void flush()
+    {
+        process_lock.lock();
+        try
+        {
+            buffer.putLong(HEADER_STAMP, Math.max(stamp.get(), buffer.getLong(HEADER_STAMP)));
+        } finally
+        {
+            process_lock.unlock();
+        }
+        buffer.force();
+    }
+
+    /**
+     * Flushes the changes and closes the file. (The mapping itself is released
+     * when the instance is garbage-collected.)
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        flush();
+        raf.close();
+    }
+
+    /**
+     * Test code --- computes the log-likelihoods of a table twice through a cache file,
+     * and reports the hits and the running times.
+     *
+     * @param args command line arguments: tree, rates, table, cache file, and optionally the capacity for a new file
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 4 && args.length != 5)
+            throw new IllegalArgumentException("Call as java "+LikelihoodCache.class.getName()+" tree rates table cachefile [capacity]");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        RateVariation rates = RateVariation.readRates(new count.io.GeneralizedFileReader(args[1]), tree);
+        if (rates.getMainTree().getRootDistribution()==null)
+            throw new IllegalArgumentException("Rates file must specify the root prior");
+        OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+        table.readTable(new count.io.GeneralizedFileReader(args[2]), true);
+        int capacity = (args.length==5?Integer.parseInt(args[4]):DEFAULT_CAPACITY);
+
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(LikelihoodCache.class));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+args[0]));
+        out.println(Executable.getStandardHeader("Rates file: "+args[1]));
+        out.println(Executable.getStandardHeader("Table file: "+args[2]));
+
+        ParallelLikelihood engine = (rates.getNumClasses()==1
+                ?new ParallelLikelihood(rates.getMainTree())
+                :new ParallelLikelihood(rates));
+        UniqueProfiles profiles = new UniqueProfiles(table);
+        double[] family_LL = new double[table.getFamilyCount()];
+        try (LikelihoodCache cache = LikelihoodCache.open(new File(args[3]), capacity))
+        {
+            out.println(Executable.getStandardHeader("Cache file: "+args[3]+", "+cache.getCapacity()+" slots"));
+            for (int pass=1; pass<=2; pass++)
+            {
+                long hits = cache.getNumHits();
+                long time_start = System.nanoTime();
+                double LL = cache.getLogLikelihoods(engine, profiles, family_LL);
+                long time_end = System.nanoTime();
+                out.println("#pass "+pass+"\tLL "+LL+"\thits "+(cache.getNumHits()-hits)+"/"+profiles.getPatternCount()
+                        +"\ttime "+((time_end-time_start)/1000000.0)+" ms");
+            }
+        }
+        out.println("#direct\tLL "+engine.getLogLikelihood(table));
+    }
+}
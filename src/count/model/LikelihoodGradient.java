@@ -0,0 +1,882 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.matek.FunctionMinimization;
+import count.util.Executable;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Gradient of the family log-likelihood with respect to the
+ * edge parameters (gain, loss and duplication rates, and edge length).
+ *
+ * The gradient is computed in reverse mode: after the
+ * pruning pass of {@link Likelihood} (inside), an outside pass
+ * goes from the root towards the leaves. On every edge, the outside
+ * vector is pulled back through the transition matrix with the
+ * same power recurrence as in the inside pass; the derivatives with respect
+ * to the parameters of the gain distribution (Poisson or negative binomial)
+ * and of the shifted geometric inheritance distribution are then obtained
+ * by dot products with two correlation vectors.
+ * The total cost is about twice that of the likelihood computation.
+ *
+ * The outside vectors are normalized so that their inner product
+ * with the (scaled) conditionals is 1 at every node; the derivatives are
+ * thus directly those of the log-likelihood.
+ *
+ * An instance is not thread-safe.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class LikelihoodGradient
+{
+    /**
+     * Offset of the gain rate within the parameters of an edge.
+     */
+    public static final int PARAMETER_GAIN = 0;
+    /**
+     * Offset of the loss rate within the parameters of an edge.
+     */
+    public static final int PARAMETER_LOSS = 1;
+    /**
+     * Offset of the duplication rate within the parameters of an edge.
+     */
+    public static final int PARAMETER_DUPLICATION = 2;
+    /**
+     * Offset of the edge length within the parameters of an edge.
+     */
+    public static final int PARAMETER_LENGTH = 3;
+    /**
+     * Number of parameters per edge: the gradient has this many entries per node,
+     * at index <var>node</var>*{@link #NUM_EDGE_PARAMETERS}+<var>offset</var>.
+     */
+    public static final int NUM_EDGE_PARAMETERS = 4;
+
+    /**
+     * Below this |(&mu;-&lambda;)<var>t</var>|, the series expansion is used for &beta;.
+     */
+    private static final double BETA_SERIES_THRESHOLD = 1e-3;
+
+    /**
+     * Instantiation for a given rate model.
+     *
+     * @param model the underlying rate model
+     */
+    public LikelihoodGradient(ProbabilisticEvolutionModel.BirthDeath model)
+    {
+        this.engine = new Likelihood(model);
+        this.tree = model.getPhylogeny();
+        int num_nodes = tree.getNumNodes();
+        this.node_bounds = new int[num_nodes];
+        this.outside = new double[num_nodes][];
+        this.beta = new double[4];
+        this.edge_derivatives = new double[NUM_EDGE_PARAMETERS];
+        allocateScratch(0);
+    }
+
+    private final Likelihood engine;
+    private final IndexedTree tree;
+    /**
+     * Bounds used in the last inside pass.
+     */
+    private int[] bounds;
+    private final int[] node_bounds;
+    /**
+     * Normalized outside vectors at the nodes.
+     */
+    private final double[][] outside;
+    /**
+     * Binary exponent of the likelihood at the root, kept out of the root's outside vector:
+     * for a family of many copies, the prior divided by the likelihood would overflow.
+     */
+    private int root_exponent;
+    /**
+     * &beta;(<var>t</var>) and its partial derivatives by loss, duplication and length.
+     */
+    private final double[] beta;
+    private final double[] edge_derivatives;
+
+    private double[] sc_weights;
+    private double[] sc_gain;
+    private double[] sc_powers;
+    private double[] sc_pull;
+    private double[] sc_pull_shifted;
+    private double[] sc_corr;
+    private double[] sc_corr_shifted;
+    private double[] sc_pmf;
+    private double[] sc_dq;
+    private double[] sc_dr;
+
+    private void allocateScratch(int bound)
+    {
+        int capacity = bound+1;
+        sc_weights = new double[capacity];
+        sc_gain = new double[capacity];
+        sc_powers = new double[capacity];
+        sc_pull = new double[capacity];
+        sc_pull_shifted = new double[capacity];
+        sc_corr = new double[capacity];
+        sc_corr_shifted = new double[capacity];
+        sc_pmf = new double[capacity];
+        sc_dq = new double[capacity];
+        sc_dr = new double[capacity];
+    }
+
+    public Likelihood getLikelihood()
+    {
+        return engine;
+    }
+
+    public ProbabilisticEvolutionModel.BirthDeath getModel()
+    {
+        return engine.getModel();
+    }
+
+    /**
+     * Recomputes the transient distributions after the model parameters change.
+     */
+    public void computeParameters()
+    {
+        engine.computeParameters();
+    }
+
+    /**
+     * Inside pass for a family with the engine's truncation.
+     *
+     * @param profile family sizes at the leaves, in leaf index order; negative values mark missing entries
+     * @return natural logarithm of the profile's probability
+     */
+    public double computeLogLikelihood(int[] profile)
+    {
+        CopyNumberBounds.computeBounds(tree, profile, engine.getTruncationAbsolute(), engine.getTruncationRelative(), node_bounds);
+        return computeLogLikelihood(profile, node_bounds);
+    }
+
+    /**
+     * Inside pass for a family with precomputed truncation bounds.
+     *
+     * @param profile family sizes at the leaves, in leaf index order; negative values mark missing entries
+     * @param bounds per-node bounds; must not change before the call to {@link #addGradient(double, double[], double[]) }
+     * @return natural logarithm of the profile's probability
+     */
+    public double computeLogLikelihood(int[] profile, int[] bounds)
+    {
+        this.bounds = bounds;
+        int root_bound = bounds[tree.getNumNodes()-1];
+        if (sc_weights.length<=root_bound)
+            allocateScratch(Math.max(root_bound, 2*sc_weights.length));
+        return engine.getLogLikelihood(profile, bounds);
+    }
+
+    /**
+     * Log-likelihood and its gradient for a family.
+     *
+     * @param profile family sizes at the leaves, in leaf index order; negative values mark missing entries
+     * @param gradient array to which the gradient of the log-likelihood is added
+     * @return natural logarithm of the profile's probability
+     */
+    public double getLogLikelihood(int[] profile, double[] gradient)
+    {
+        double LL = computeLogLikelihood(profile);
+        addGradient(1.0, null, gradient);
+        return LL;
+    }
+
+    /**
+     * Outside pass for the family of the last inside pass: adds the weighted
+     * gradient of the log-likelihood.
+     * With rate variation, the multipliers of the class (see {@link ScaledTree})
+     * give the gradient with respect to the main tree's parameters,
+     * and the weight is the class posterior of the family.
+     *
+     * @param weight factor for the gradient
+     * @param multipliers factors by parameter type (indexed by {@link #PARAMETER_GAIN} etc.); null for 1
+     * @param gradient array of {@link #NUM_EDGE_PARAMETERS} entries per node, to which the gradient is added
+     */
+    public void addGradient(double weight, double[] multipliers, double[] gradient)
+    {
+        if (!computeRootOutside()) // all missing: likelihood does not depend on the parameters
+            return;
+        int num_nodes = tree.getNumNodes();
+        int num_leaves = tree.getNumLeaves();
+        double[] X = sc_weights;
+        for (int node_idx=num_nodes-1; node_idx>=num_leaves; node_idx--) // parents before children
+        {
+            if (bounds[node_idx]<0)
+                continue;
+            int num_children = tree.getNumChildren(node_idx);
+            for (int ci=0; ci<num_children; ci++)
+            {
+                int child_idx = tree.getChildIndex(node_idx, ci);
+                int parent_bound = getEdgeWeights(child_idx, X);
+                if (parent_bound>=0)
+                    computeEdgeGradient(child_idx, parent_bound, X, weight, multipliers, gradient);
+            }
+        }
+    }
+
+    /**
+     * Outside pass for the family of the last inside pass, without the gradient;
+     * afterwards, {@link #getEdgeWeights(int, double[]) } is available on every edge.
+     */
+    void computeOutside()
+    {
+        if (!computeRootOutside())
+            return;
+        int num_nodes = tree.getNumNodes();
+        int num_leaves = tree.getNumLeaves();
+        double[] X = sc_weights;
+        for (int node_idx=num_nodes-1; node_idx>=num_leaves; node_idx--)
+        {
+            if (bounds[node_idx]<0)
+                continue;
+            int num_children = tree.getNumChildren(node_idx);
+            for (int ci=0; ci<num_children; ci++)
+            {
+                int child_idx = tree.getChildIndex(node_idx, ci);
+                if (tree.isLeaf(child_idx))
+                    continue;
+                int parent_bound = getEdgeWeights(child_idx, X);
+                if (parent_bound<0)
+                    continue;
+                int bound = bounds[child_idx];
+                double[] O = ensureOutsideCapacity(child_idx, bound);
+                engine.computeChildOutside(child_idx, X, parent_bound, bound, sc_pull, sc_powers, O);
+            }
+        }
+    }
+
+    /**
+     * Sets the normalized outside vector at the root.
+     *
+     * @return false if all entries are missing in the family
+     */
+    private boolean computeRootOutside()
+    {
+        int root_idx = tree.getNumNodes()-1;
+        int root_bound = bounds[root_idx];
+        if (root_bound<0)
+            return false;
+        double[] O = ensureOutsideCapacity(root_idx, root_bound);
+        root_exponent = engine.computeRootOutside(bounds, root_bound, O);
+        return true;
+    }
+
+    /**
+     * Derivatives of the normalized likelihood by the conditionals on an edge,
+     * after the outside pass reached the parent: the family's likelihood
+     * is proportional to &sum;<sub><var>n</var></sub> <var>X</var>[<var>n</var>]<var>E</var>[<var>n</var>]
+     * with the edge conditionals <var>E</var>, and equals it at the current parameters.
+     *
+     * @param node_idx child node of the edge
+     * @param X array filled with the weights for the parent's copy numbers
+     * @return largest copy number at the parent; -1 if the child's subtree is fully missing (and X is not set)
+     */
+    int getEdgeWeights(int node_idx, double[] X)
+    {
+        if (bounds[node_idx]<0)
+            return -1;
+        int parent_idx = tree.getParentIndex(node_idx);
+        int bound = bounds[parent_idx];
+        engine.computeEdgeWeights(bounds, node_idx, outside[parent_idx], bound, root_exponent, X);
+        return bound;
+    }
+
+    private double[] ensureOutsideCapacity(int node_idx, int bound)
+    {
+        double[] O = outside[node_idx];
+        if (O==null || O.length<=bound)
+        {
+            O = new double[Math.max(bound+1, O==null?0:2*O.length)];
+            outside[node_idx] = O;
+        }
+        return O;
+    }
+
+    /**
+     * Pulls back the outside weights through the edge, and adds the derivatives by the edge parameters.
+     *
+     * @param node_idx child node of the edge
+     * @param parent_bound largest copy number at the parent
+     * @param X derivative of the normalized log-likelihood by the edge conditionals
+     */
+    private void computeEdgeGradient(int node_idx, int parent_bound, double[] X, double weight, double[] multipliers, double[] gradient)
+    {
+        int bound = bounds[node_idx];
+        BirthDeathProcess.TransientCache transients = engine.getTransients();
+        double[] T1 = transients.getTransient1Parameters(0, node_idx);
+        double[] D = edge_derivatives;
+        computeEdgeDerivatives(engine.getModel(), node_idx, X, parent_bound,
+                engine.getNodeConditionals(node_idx), bound,
+                transients.getTransient0(0, node_idx, bound), T1[0], T1[1],
+                D, tree.isLeaf(node_idx)?null:ensureOutsideCapacity(node_idx, bound));
+
+        int offset = node_idx*NUM_EDGE_PARAMETERS;
+        for (int type=0; type<NUM_EDGE_PARAMETERS; type++)
+            gradient[offset+type] += weight*(multipliers==null?1.0:multipliers[type])*D[type];
+    }
+
+    /**
+     * Derivatives of &sum;<sub><var>n</var></sub> <var>X</var>[<var>n</var>]<var>E</var>[<var>n</var>]
+     * by the parameters of an edge, where <var>E</var> are the edge conditionals
+     * computed from the child's conditionals with the given transient distributions.
+     * The model's parameters for the edge must be those of the transients.
+     *
+     * @param model rate model
+     * @param node_idx child node of the edge
+     * @param X weights for the parent's copy numbers
+     * @param parent_bound largest copy number at the parent
+     * @param C conditionals at the child (scaled)
+     * @param bound largest copy number at the child
+     * @param T0 gain distribution, at least up to <var>bound</var>
+     * @param p shifted geometric parameter for the inheritance: probability of 0
+     * @param q shifted geometric parameter for the inheritance: ratio of the tail
+     * @param derivatives array of {@link #NUM_EDGE_PARAMETERS} entries filled with the partial derivatives
+     * @param O array filled with the pulled-back weights at the child (the outside vector) if not null
+     */
+    void computeEdgeDerivatives(ProbabilisticEvolutionModel.BirthDeath model, int node_idx,
+            double[] X, int parent_bound, double[] C, int bound,
+            double[] T0, double p, double q,
+            double[] derivatives, double[] O)
+    {
+        if (sc_weights.length<=Math.max(bound, parent_bound))
+            allocateScratch(Math.max(Math.max(bound, parent_bound), 2*sc_weights.length));
+        double r = (1.0-p)*(1.0-q);
+
+        // gain: G[i] = sum_j T0[j]*C[i+j], as in the inside pass
+        double[] G = sc_gain;
+        Likelihood.correlateGain(T0, C, 0, bound, G);
+
+        // pull-back: V[m] = sum_n X[n]*T1^{*n}[m] and V'[m] = sum_n n*X[n]*T1^{*(n-1)}[m]
+        double[] V = sc_pull;
+        double[] Vs = sc_pull_shifted;
+        double[] W = sc_powers;
+        Arrays.fill(V, 0, bound+1, 0.0);
+        Arrays.fill(Vs, 0, bound+1, 0.0);
+        W[0] = 1.0;
+        Arrays.fill(W, 1, bound+1, 0.0);
+        V[0] = X[0];
+        for (int n=1; n<=parent_bound; n++)
+        {
+            double xn = X[n];
+            double nx = n*xn;
+            int top = (q==0.0?Math.min(n, bound):bound);
+            double s = 0.0;
+            double w_prev = 0.0;
+            for (int m=0; m<=top; m++)
+            {
+                double w = W[m];
+                Vs[m] += nx*w;
+                s = w_prev + q*s;
+                double x = p*w + r*s;
+                W[m] = x;
+                V[m] += xn*x;
+                w_prev = w;
+            }
+        }
+
+        // correlations K[j] = sum_i V[i]*C[i+j] and K'[j] = sum_i V'[i]*G[i+j]
+        double[] K = sc_corr;
+        double[] Ks = sc_corr_shifted;
+        Likelihood.correlateGain(V, C, 0, bound, K);
+        Likelihood.correlateGain(Vs, G, 0, bound, Ks);
+
+        if (O != null)
+        {
+            // outside at the child: O[m] = sum_j T0[j]*V[m-j]
+            Likelihood.convolveGain(T0, V, bound, O);
+        }
+
+        // inheritance: T1 = p*delta_0 + (1-p)*S with S[k]=(1-q)*q^{k-1}
+        double d_p = Ks[0];
+        double d_q1 = 0.0;
+        double qpow = 1.0; // q^{k-1}
+        for (int k=1; k<=bound; k++)
+        {
+            d_p -= (1.0-q)*qpow*Ks[k];
+            double dS = (k==1?-1.0:(k-1.0)*(1.0-q)*qpow/q-qpow); // d/dq (1-q)q^{k-1}
+            if (k>=2 && q==0.0)
+                dS = (k==2?1.0:0.0);
+            d_q1 += (1.0-p)*dS*Ks[k];
+            qpow *= q;
+        }
+
+        double kappa = model.getGainRate(node_idx);
+        double mu = model.getLossRate(node_idx);
+        double lambda = model.getDuplicationRate(node_idx);
+        double t = model.getEdgeLength(node_idx);
+        computeBeta(mu, lambda, t, beta);
+        double b = beta[0];
+        double b_mu = beta[1];
+        double b_lambda = beta[2];
+        double b_t = beta[3];
+
+        double d_gain, d_loss, d_dup, d_len;
+        double[] P = sc_pmf;
+        if (lambda == 0.0)
+        {
+            // Poisson gain with mean nu = kappa*beta
+            double nu = kappa*b;
+            P[0] = Math.exp(-nu);
+            for (int k=1; k<=bound; k++)
+                P[k] = P[k-1]*nu/k;
+            double d_nu = 0.0;
+            double d_lambda0 = 0.0; // the negative binomial's deviation from Poisson at lambda=0
+            for (int k=0; k<=bound; k++)
+            {
+                double p1 = (k>=1?P[k-1]:0.0);
+                double p2 = (k>=2?P[k-2]:0.0);
+                d_nu += (p1-P[k])*K[k];
+                d_lambda0 += (p2-P[k])*K[k];
+            }
+            d_gain = d_nu*b;
+            d_loss = d_nu*kappa*b_mu + d_p*(b+mu*b_mu);
+            d_dup = d_nu*kappa*b_lambda + d_lambda0*kappa*b*b/2.0 + d_p*mu*b_lambda + d_q1*b;
+            d_len = d_nu*kappa*b_t + d_p*mu*b_t;
+        } else
+        {
+            // negative binomial gain with rr=kappa/lambda, q
+            double rr = kappa/lambda;
+            double[] Dq = sc_dq;
+            double[] Dr = sc_dr;
+            P[0] = Math.pow(1.0-q, rr);
+            Dq[0] = -rr*Math.pow(1.0-q, rr-1.0);
+            Dr[0] = P[0]*Math.log1p(-q);
+            for (int k=1; k<=bound; k++)
+            {
+                double f = (rr+k-1.0)/k;
+                Dr[k] = (Dr[k-1]*(rr+k-1.0)+P[k-1])*q/k;
+                Dq[k] = (Dq[k-1]*q+P[k-1])*f;
+                P[k] = P[k-1]*q*f;
+            }
+            double d_r = 0.0;
+            double d_q0 = 0.0;
+            for (int k=0; k<=bound; k++)
+            {
+                d_r += Dr[k]*K[k];
+                d_q0 += Dq[k]*K[k];
+            }
+            double d_q = d_q0+d_q1;
+            d_gain = d_r/lambda;
+            d_loss = d_p*(b+mu*b_mu) + d_q*lambda*b_mu;
+            d_dup = -d_r*kappa/(lambda*lambda) + d_p*mu*b_lambda + d_q*(b+lambda*b_lambda);
+            d_len = d_p*mu*b_t + d_q*lambda*b_t;
+        }
+
+        derivatives[PARAMETER_GAIN] = d_gain;
+        derivatives[PARAMETER_LOSS] = d_loss;
+        derivatives[PARAMETER_DUPLICATION] = d_dup;
+        derivatives[PARAMETER_LENGTH] = d_len;
+    }
+
+    /**
+     * Computes &beta;=(1-e<sup>-(&mu;-&lambda;)<var>t</var></sup>)/(&mu;-&lambda;e<sup>-(&mu;-&lambda;)<var>t</var></sup>)
+     * and its partial derivatives. Uses the exponential of a non-positive number
+     * in both cases &mu;&ge;&lambda; and &mu;&lt;&lambda;, and a series expansion if &mu;&asymp;&lambda;.
+     *
+     * @param mu loss rate
+     * @param lambda duplication rate
+     * @param t edge length
+     * @param beta array filled with &beta;, &part;&beta;/&part;&mu;, &part;&beta;/&part;&lambda;, &part;&beta;/&part;<var>t</var>
+     */
+    static void computeBeta(double mu, double lambda, double t, double[] beta)
+    {
+        double d = mu-lambda;
+        double x = d*t;
+        if (Math.abs(x)<BETA_SERIES_THRESHOLD)
+        {
+            // beta = t*g/(1+lambda*t*g) with g = (1-e^{-x})/x
+            double g = 1.0-x/2.0+x*x/6.0-x*x*x/24.0;
+            double dg = -0.5+x/3.0-x*x/8.0;
+            double y = 1.0+lambda*t*g;
+            double db_dg = t/(y*y);
+            beta[0] = t*g/y;
+            beta[1] = db_dg*dg*t;
+            beta[2] = -t*t*g*g/(y*y) - db_dg*dg*t;
+            beta[3] = (g+x*dg)/(y*y);
+        } else if (d>0.0)
+        {
+            double E = Math.exp(-x);
+            double N = -Math.expm1(-x);
+            double D = mu-lambda*E;
+            double D2 = D*D;
+            beta[0] = N/D;
+            beta[1] = (t*E*D-N*(1.0+lambda*t*E))/D2;
+            beta[2] = (-t*E*D+N*E*(1.0+lambda*t))/D2;
+            beta[3] = d*d*E/D2;
+        } else
+        {
+            double F = Math.exp(x);
+            double N = Math.expm1(x);
+            double D = mu*F-lambda;
+            double D2 = D*D;
+            beta[0] = N/D;
+            beta[1] = F*(t*D-N*(1.0+mu*t))/D2;
+            beta[2] = (-t*F*D+N*(mu*t*F+1.0))/D2;
+            beta[3] = d*d*F/D2;
+        }
+    }
+
+    /**
+     * Negative log-likelihood of a table as a function of the
+     * logarithms of the lineage-specific edge parameters of a rate tree,
+     * with analytic gradient, for {@link FunctionMinimization#dfpmin(double[], double, count.matek.FunctionMinimization.DerivableMultiParameterFunction) }.
+     * Parameters that are 0 at instantiation are kept fixed.
+     * With rate variation, the class multipliers and probabilities are fixed.
+     */
+    public static class LogLikelihoodObjective implements FunctionMinimization.DerivableMultiParameterFunction
+    {
+        /**
+         * Objective without rate variation.
+         *
+         * @param rates rate tree; its parameters are set by the evaluation
+         * @param table family profiles, with columns in leaf index order
+         */
+        public LogLikelihoodObjective(TreeWithRates rates, OccurrenceTable table)
+        {
+            this(rates, null, table);
+        }
+
+        /**
+         * Objective for a rate-variation model.
+         *
+         * @param rate_variation mixture model; parameters of its main tree are set by the evaluation
+         * @param table family profiles, with columns in leaf index order
+         */
+        public LogLikelihoodObjective(RateVariation rate_variation, OccurrenceTable table)
+        {
+            this(rate_variation.getMainTree(), rate_variation, table);
+        }
+
+        private LogLikelihoodObjective(TreeWithRates rates, RateVariation rate_variation, OccurrenceTable table)
+        {
+            this.rates = rates;
+            this.rate_variation = rate_variation;
+            IndexedTree tree = rates.getPhylogeny();
+            this.bounds = new CopyNumberBounds(tree, table,
+                    Likelihood.DEFAULT_TRUNCATION_ABSOLUTE, Likelihood.DEFAULT_TRUNCATION_RELATIVE);
+            this.family_bounds = new int[tree.getNumNodes()];
+
+            int num_classes = (rate_variation==null?1:rate_variation.getNumClasses());
+            this.class_engines = new LikelihoodGradient[num_classes];
+            this.class_multipliers = new double[num_classes][];
+            this.class_log_probabilities = new double[num_classes];
+            for (int class_idx=0; class_idx<num_classes; class_idx++)
+            {
+                if (rate_variation == null)
+                {
+                    class_engines[class_idx] = new LikelihoodGradient(rates);
+                } else if (rate_variation.isPertinentClass(class_idx))
+                {
+                    ScaledTree class_model = rate_variation.getClassModel(class_idx);
+                    class_engines[class_idx] = new LikelihoodGradient(class_model);
+                    double[] M = new double[NUM_EDGE_PARAMETERS];
+                    M[PARAMETER_GAIN] = class_model.getGainRateMultiplier();
+                    M[PARAMETER_LOSS] = class_model.getLossRateMultiplier();
+                    M[PARAMETER_DUPLICATION] = class_model.getDuplicationRateMultiplier();
+                    M[PARAMETER_LENGTH] = class_model.getEdgeLengthMultiplier();
+                    class_multipliers[class_idx] = M;
+                    class_log_probabilities[class_idx] = Math.log(rate_variation.getClassProbability(class_idx));
+                }
+            }
+            this.class_log_likelihoods = new double[num_classes];
+
+            int num_nodes = tree.getNumNodes();
+            int[] edges = new int[NUM_EDGE_PARAMETERS*num_nodes];
+            int[] types = new int[NUM_EDGE_PARAMETERS*num_nodes];
+            int num_parameters = 0;
+            for (int node_idx=0; node_idx<num_nodes; node_idx++)
+            {
+                if (tree.isRoot(node_idx))
+                    continue;
+                for (int type=0; type<NUM_EDGE_PARAMETERS; type++)
+                    if (getParameter(node_idx, type)>0.0)
+                    {
+                        edges[num_parameters] = node_idx;
+                        types[num_parameters] = type;
+                        num_parameters++;
+                    }
+            }
+            this.parameter_edges = Arrays.copyOf(edges, num_parameters);
+            this.parameter_types = Arrays.copyOf(types, num_parameters);
+            this.gradient = new double[NUM_EDGE_PARAMETERS*num_nodes];
+        }
+
+        private final TreeWithRates rates;
+        private final RateVariation rate_variation;
+        private final CopyNumberBounds bounds;
+        private final int[] family_bounds;
+        /**
+         * One engine per class; null for classes with 0 probability.
+         */
+        private final LikelihoodGradient[] class_engines;
+        private final double[][] class_multipliers;
+        private final double[] class_log_probabilities;
+        private final double[] class_log_likelihoods;
+        private final int[] parameter_edges;
+        private final int[] parameter_types;
+        private final double[] gradient;
+
+        public int getNumParameters()
+        {
+            return parameter_edges.length;
+        }
+
+        public int getParameterEdge(int parameter_idx)
+        {
+            return parameter_edges[parameter_idx];
+        }
+
+        /**
+         * Type of a parameter.
+         *
+         * @param parameter_idx index of the parameter
+         * @return one of {@link #PARAMETER_GAIN}, {@link #PARAMETER_LOSS}, {@link #PARAMETER_DUPLICATION} or {@link #PARAMETER_LENGTH}
+         */
+        public int getParameterType(int parameter_idx)
+        {
+            return parameter_types[parameter_idx];
+        }
+
+        private double getParameter(int node_idx, int type)
+        {
+            switch (type)
+            {
+                case PARAMETER_GAIN: return rates.getGainRate(node_idx);
+                case PARAMETER_LOSS: return rates.getLossRate(node_idx);
+                case PARAMETER_DUPLICATION: return rates.getDuplicationRate(node_idx);
+                default: return rates.getEdgeLength(node_idx);
+            }
+        }
+
+        private void setParameter(int node_idx, int type, double value)
+        {
+            switch (type)
+            {
+                case PARAMETER_GAIN: rates.setGainRate(node_idx, value); break;
+                case PARAMETER_LOSS: rates.setLossRate(node_idx, value); break;
+                case PARAMETER_DUPLICATION: rates.setDuplicationRate(node_idx, value); break;
+                default: rates.setEdgeLength(node_idx, value);
+            }
+        }
+
+        /**
+         * Current parameter values.
+         *
+         * @return array of logarithms of the free parameters
+         */
+        public double[] getParameters()
+        {
+            double[] x = new double[parameter_edges.length];
+            for (int i=0; i<x.length; i++)
+                x[i] = Math.log(getParameter(parameter_edges[i], parameter_types[i]));
+            return x;
+        }
+
+        /**
+         * Sets the rate tree's parameters.
+         *
+         * @param x logarithms of the free parameters
+         */
+        public void setParameters(double[] x)
+        {
+            for (int i=0; i<x.length; i++)
+                setParameter(parameter_edges[i], parameter_types[i], Math.exp(x[i]));
+            for (LikelihoodGradient E: class_engines)
+                if (E != null)
+                    E.computeParameters();
+        }
+
+        /**
+         * Log-likelihood of the table, and optionally its gradient
+         * by the (not log-transformed) edge parameters.
+         */
+        private double computeLogLikelihood(boolean with_gradient)
+        {
+            if (with_gradient)
+                Arrays.fill(gradient, 0.0);
+            OccurrenceTable table = bounds.getTable();
+            double LL = 0.0;
+            for (int family_idx=0; family_idx<table.getFamilyCount(); family_idx++)
+            {
+                int[] profile = table.getSizes(family_idx);
+                bounds.getBounds(family_idx, family_bounds);
+                if (rate_variation == null)
+                {
+                    LL += class_engines[0].computeLogLikelihood(profile, family_bounds);
+                    if (with_gradient)
+                        class_engines[0].addGradient(1.0, null, gradient);
+                } else
+                {
+                    double max = Double.NEGATIVE_INFINITY;
+                    for (int class_idx=0; class_idx<class_engines.length; class_idx++)
+                        if (class_engines[class_idx] != null)
+                        {
+                            double ll = class_log_probabilities[class_idx]
+                                    + class_engines[class_idx].computeLogLikelihood(profile, family_bounds);
+                            class_log_likelihoods[class_idx] = ll;
+                            max = Math.max(max, ll);
+                        }
+                    double sum = 0.0;
+                    for (int class_idx=0; class_idx<class_engines.length; class_idx++)
+                        if (class_engines[class_idx] != null)
+                            sum += Math.exp(class_log_likelihoods[class_idx]-max);
+                    double ll = max+Math.log(sum);
+                    LL += ll;
+                    if (with_gradient)
+                        for (int class_idx=0; class_idx<class_engines.length; class_idx++)
+                            if (class_engines[class_idx] != null)
+                            {
+                                double posterior = Math.exp(class_log_likelihoods[class_idx]-ll);
+                                if (Double.isFinite(class_log_likelihoods[class_idx]) && posterior>0.0)
+                                    class_engines[class_idx].addGradient(posterior, class_multipliers[class_idx], gradient);
+                            }
+                }
+            }
+            return LL;
+        }
+
+        /**
+         * Negative log-likelihood.
+         *
+         * @param x logarithms of the free parameters
+         * @return negative log-likelihood of the table
+         */
+        @Override
+        public double eval(double[] x)
+        {
+            setParameters(x);
+            return -computeLogLikelihood(false);
+        }
+
+        /**
+         * Gradient of the negative log-likelihood by the log-parameters.
+         *
+         * @param x logarithms of the free parameters
+         * @return partial derivatives
+         */
+        @Override
+        public double[] dfunc(double[] x)
+        {
+            setParameters(x);
+            computeLogLikelihood(true);
+            double[] df = new double[x.length];
+            for (int i=0; i<x.length; i++)
+            {
+                double g = gradient[parameter_edges[i]*NUM_EDGE_PARAMETERS+parameter_types[i]];
+                df[i] = -g*Math.exp(x[i]); // chain rule for the log-transform
+            }
+            return df;
+        }
+    }
+
+    private static void mainmain(String[] args, LogLikelihoodObjective objective) throws Exception
+    {
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(LikelihoodGradient.class));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+args[0]));
+        out.println(Executable.getStandardHeader("Rates file: "+args[1]));
+        out.println(Executable.getStandardHeader("Table file: "+args[2]));
+
+        double[] x = objective.getParameters();
+        long time_start = System.currentTimeMillis();
+        double f = objective.eval(x);
+        long time_mid = System.currentTimeMillis();
+        double[] df = objective.dfunc(x);
+        long time_end = System.currentTimeMillis();
+        out.println("#LL\t"+(-f));
+        out.println(Executable.getStandardHeader("Time: "+(time_mid-time_start)+" ms likelihood, "+(time_end-time_mid)+" ms with gradient"));
+
+        double h = 1e-5;
+        out.println("#param\tnode\ttype\tanalytic\tnumeric\tdiff");
+        for (int i=0; i<x.length; i++)
+        {
+            double xi = x[i];
+            x[i] = xi+h;
+            double fp = objective.eval(x);
+            x[i] = xi-h;
+            double fm = objective.eval(x);
+            x[i] = xi;
+            double numeric = (fp-fm)/(2.0*h);
+            out.println(i+"\t"+objective.getParameterEdge(i)+"\t"+objective.getParameterType(i)
+                    +"\t"+df[i]+"\t"+numeric+"\t"+(df[i]-numeric));
+        }
+        objective.setParameters(x);
+    }
+
+    /**
+     * Fits the free parameters by {@link FunctionMinimization#lbfgs(double[], double[], double[], double, count.matek.FunctionMinimization.DerivableMultiParameterFunction, count.matek.FunctionMinimization.LBFGSWorkspace) },
+     * with the log-parameters between -20 and 20.
+     */
+    private static void mainfit(String[] args, LogLikelihoodObjective objective) throws Exception
+    {
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(LikelihoodGradient.class));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+args[0]));
+        out.println(Executable.getStandardHeader("Rates file: "+args[1]));
+        out.println(Executable.getStandardHeader("Table file: "+args[2]));
+
+        double[] x = objective.getParameters();
+        int n = x.length;
+        double[] lower = new double[n];
+        double[] upper = new double[n];
+        Arrays.fill(lower, -20.0);
+        Arrays.fill(upper, 20.0);
+        long time_start = System.currentTimeMillis();
+        out.println("#LL0\t"+(-objective.eval(x)));
+        try
+        {
+            FunctionMinimization.lbfgs(x, lower, upper, 1e-5, objective, new FunctionMinimization.LBFGSWorkspace(n));
+        } catch (FunctionMinimization.OptimizationException E)
+        {
+            out.println("#**LG.mainfit "+E.getMessage());
+        }
+        long time_end = System.currentTimeMillis();
+        out.println("#LL\t"+(-objective.eval(x)));
+        out.println(Executable.getStandardHeader("Time: "+(time_end-time_start)+" ms for fitting "+n+" parameters"));
+    }
+
+    /**
+     * Test code --- reads a tree, a rate file and a table, computes the
+     * gradient of the log-likelihood by the log-parameters,
+     * and compares it with numerical differentiation;
+     * or, with a 4th argument <code>fit</code>, fits the parameters by L-BFGS.
+     *
+     * @param args command line arguments
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 3 && !(args.length==4 && "fit".equals(args[3])))
+            throw new IllegalArgumentException("Call as java "+LikelihoodGradient.class.getName()+" tree rates table [fit]");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        RateVariation rates = RateVariation.readRates(new count.io.GeneralizedFileReader(args[1]), tree);
+        if (rates.getMainTree().getRootDistribution()==null)
+            throw new IllegalArgumentException("Rates file must specify the root prior");
+        OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+        table.readTable(new count.io.GeneralizedFileReader(args[2]), true);
+        LogLikelihoodObjective objective = (rates.getNumClasses()==1
+                ?new LogLikelihoodObjective(rates.getMainTree(), table)
+                :new LogLikelihoodObjective(rates, table));
+        if (args.length==4)
+            mainfit(args, objective);
+        else
+            mainmain(args, objective);
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.util.Executable;
+import java.io.PrintStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Log-likelihoods of several candidate models on the same table, in a single pass.
+ *
+ * The table is split into family blocks as in {@link ParallelLikelihood};
+ * every block is evaluated under all the models one after the other,
+ * while its profiles and truncation bounds are in cache, and the sums
+ * for the models are kept side by side. The truncation bounds are computed once,
+ * since they depend only on the tree and the table.
+ * The models must share the phylogeny (same topology and leaf names);
+ * they may differ in rates, root prior and rate variation.
+ *
+ * The per-model results are the same as with separate {@link ParallelLikelihood}
+ * evaluations: the sums are combined along the same fixed recursive split.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class MultiModelLikelihood
+{
+    /**
+     * Instantiation with the common fork/join pool.
+     *
+     * @param models candidate rate models on the same phylogeny
+     */
+    public MultiModelLikelihood(ProbabilisticEvolutionModel.BirthDeath[] models)
+    {
+        this(models, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Instantiation with a given thread pool.
+     *
+     * @param models candidate rate models on the same phylogeny
+     * @param thread_pool pool for the family tasks
+     */
+    public MultiModelLikelihood(ProbabilisticEvolutionModel.BirthDeath[] models, ForkJoinPool thread_pool)
+    {
+        this(createEngines(models, null, thread_pool), thread_pool);
+    }
+
+    /**
+     * Instantiation with the common fork/join pool.
+     *
+     * @param models candidate rate-variation models on the same phylogeny
+     */
+    public MultiModelLikelihood(RateVariation[] models)
+    {
+        this(models, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Instantiation with a given thread pool.
+     *
+     * @param models candidate rate-variation models on the same phylogeny
+     * @param thread_pool pool for the family tasks
+     */
+    public MultiModelLikelihood(RateVariation[] models, ForkJoinPool thread_pool)
+    {
+        this(createEngines(null, models, thread_pool), thread_pool);
+    }
+
+    private MultiModelLikelihood(ParallelLikelihood[] engines, ForkJoinPool thread_pool)
+    {
+        if (engines.length==0)
+            throw new IllegalArgumentException("At least one model is needed");
+        this.engines = engines;
+        this.thread_pool = thread_pool;
+        this.tree = engines[0].getModel().getPhylogeny();
+        for (ParallelLikelihood engine: engines)
+            if (!isSameTopology(tree, engine.getModel().getPhylogeny()))
+                throw new IllegalArgumentException("The models must have the same phylogeny");
+        this.chunk_size = ParallelLikelihood.DEFAULT_CHUNK_SIZE;
+        this.truncation_absolute = Likelihood.DEFAULT_TRUNCATION_ABSOLUTE;
+        this.truncation_relative = Likelihood.DEFAULT_TRUNCATION_RELATIVE;
+    }
+
+    private static ParallelLikelihood[] createEngines(ProbabilisticEvolutionModel.BirthDeath[] models, RateVariation[] rate_variations, ForkJoinPool thread_pool)
+    {
+        int num_models = (models==null?rate_variations.length:models.length);
+        ParallelLikelihood[] engines = new ParallelLikelihood[num_models];
+        for (int model_idx=0; model_idx<num_models; model_idx++)
+            engines[model_idx] = (models==null
+                    ?new ParallelLikelihood(rate_variations[model_idx], thread_pool)
+                    :new ParallelLikelihood(models[model_idx], thread_pool));
+        return engines;
+    }
+
+    private static boolean isSameTopology(IndexedTree T1, IndexedTree T2)
+    {
+        if (T1==T2)
+            return true;
+        int num_nodes = T1.getNumNodes();
+        if (T2.getNumNodes() != num_nodes)
+            return false;
+        for (int node_idx=0; node_idx<num_nodes; node_idx++)
+        {
+            if (T1.getParentIndex(node_idx) != T2.getParentIndex(node_idx))
+                return false;
+            if (T1.isLeaf(node_idx) && !T1.getName(node_idx).equals(T2.getName(node_idx)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * One engine per model; used only through {@link ParallelLikelihood#computeBlock(CopyNumberBounds, int, int, double[]) }.
+     */
+    private final ParallelLikelihood[] engines;
+    private final ForkJoinPool thread_pool;
+    private final IndexedTree tree;
+    private int chunk_size;
+    private int truncation_absolute;
+    private double truncation_relative;
+    /**
+     * Per-node truncation bounds for the last table, shared by all models;
+     * recomputed when the table's contents are reset (see {@link CopyNumberBounds#isFor(OccurrenceTable, int, double) }).
+     */
+    private CopyNumberBounds copy_number_bounds = null;
+
+    public int getModelCount()
+    {
+        return engines.length;
+    }
+
+    /**
+     * Sets the number of families in a block evaluated under all models.
+     *
+     * @param chunk_size positive integer
+     */
+    public void setChunkSize(int chunk_size)
+    {
+        if (chunk_size<1)
+            throw new IllegalArgumentException("Chunk size must be positive");
+        this.chunk_size = chunk_size;
+    }
+
+    /**
+     * Sets the copy-number truncation for all models.
+     *
+     * @param absolute additive slack
+     * @param relative multiplicative slack
+     * @see Likelihood#setTruncation(int, double)
+     */
+    public void setTruncation(int absolute, double relative)
+    {
+        for (ParallelLikelihood engine: engines)
+            engine.setTruncation(absolute, relative);
+        this.truncation_absolute = absolute;
+        this.truncation_relative = relative;
+    }
+
+    /**
+     * Signals that the parameters of some models changed.
+     */
+    public void computeParameters()
+    {
+        for (ParallelLikelihood engine: engines)
+            engine.computeParameters();
+    }
+
+    /**
+     * Sum of log-likelihoods across all families, for every model.
+     *
+     * @param table family profiles, with columns in leaf index order
+     * @return array of total log-likelihoods, indexed by model
+     */
+    public double[] getLogLikelihoods(OccurrenceTable table)
+    {
+        return getLogLikelihoods(table, null);
+    }
+
+    /**
+     * Log-likelihoods for all families under every model.
+     *
+     * @param table family profiles, with columns in leaf index order
+     * @param family_log_likelihoods array filled with the family log-likelihoods by model and family; may be null
+     * @return array of total log-likelihoods, indexed by model
+     */
+    public double[] getLogLikelihoods(OccurrenceTable table, double[][] family_log_likelihoods)
+    {
+        int num_families = table.getFamilyCount();
+        if (family_log_likelihoods != null)
+        {
+            if (family_log_likelihoods.length<engines.length)
+                throw new IllegalArgumentException("Array for family log-likelihoods has too few rows");
+            for (int model_idx=0; model_idx<engines.length; model_idx++)
+                if (family_log_likelihoods[model_idx].length<num_families)
+                    throw new IllegalArgumentException("Array for family log-likelihoods is too short");
+        }
+        CopyNumberBounds bounds = copy_number_bounds;
+        if (bounds == null || !bounds.isFor(table, truncation_absolute, truncation_relative))
+        {
+            bounds = new CopyNumberBounds(tree, table, truncation_absolute, truncation_relative);
+            copy_number_bounds = bounds;
+        }
+        return thread_pool.invoke(new BlockTask(bounds, family_log_likelihoods, 0, num_families));
+    }
+
+    /**
+     * Log-likelihoods for all families under every model, computed once for every distinct profile.
+     *
+     * @param profiles compressed table
+     * @return array of total log-likelihoods, indexed by model
+     */
+    public double[] getLogLikelihoods(UniqueProfiles profiles)
+    {
+        int num_patterns = profiles.getPatternCount();
+        double[][] pattern_log_likelihoods = new double[engines.length][num_patterns];
+        getLogLikelihoods(profiles.getPatternTable(), pattern_log_likelihoods);
+        double[] LL = new double[engines.length];
+        for (int model_idx=0; model_idx<engines.length; model_idx++)
+            LL[model_idx] = profiles.getWeightedSum(pattern_log_likelihoods[model_idx]);
+        return LL;
+    }
+
+    /**
+     * Recursive task for a range of families; returns the sums by model.
+     */
+    private class BlockTask extends RecursiveTask<double[]>
+    {
+        BlockTask(CopyNumberBounds bounds, double[][] family_log_likelihoods, int first_family, int last_family)
+        {
+            this.bounds = bounds;
+            this.family_log_likelihoods = family_log_likelihoods;
+            this.first_family = first_family;
+            this.last_family = last_family;
+        }
+
+        private final CopyNumberBounds bounds;
+        private final double[][] family_log_likelihoods;
+        private final int first_family;
+        /**
+         * Exclusive end of the family range.
+         */
+        private final int last_family;
+
+        @Override
+        protected double[] compute()
+        {
+            int num_models = engines.length;
+            double[] LL = new double[num_models];
+            if (last_family-first_family <= chunk_size)
+            {
+                for (int model_idx=0; model_idx<num_models; model_idx++)
+                    LL[model_idx] = engines[model_idx].computeBlock(bounds, first_family, last_family,
+                            family_log_likelihoods==null?null:family_log_likelihoods[model_idx]);
+            } else
+            {
+                int mid = (first_family+last_family)/2;
+                BlockTask left = new BlockTask(bounds, family_log_likelihoods, first_family, mid);
+                BlockTask right = new BlockTask(bounds, family_log_likelihoods, mid, last_family);
+                right.fork();
+                double[] left_LL = left.compute();
+                double[] right_LL = right.join();
+                for (int model_idx=0; model_idx<num_models; model_idx++)
+                    LL[model_idx] = left_LL[model_idx]+right_LL[model_idx];
+            }
+            return LL;
+        }
+    }
+
+    /**
+     * Test code --- reads a tree, a table and several rate files, and
+     * writes the total log-likelihood under each model to stdout,
+     * computed in one pass and then model by model.
+     *
+     * @param args command line arguments: tree, table, and one or more rate files
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 3)
+            throw new IllegalArgumentException("Call as java "+MultiModelLikelihood.class.getName()+" tree table rates1 [rates2 ...]");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+        table.readTable(new count.io.GeneralizedFileReader(args[1]), true);
+        int num_models = args.length-2;
+        RateVariation[] models = new RateVariation[num_models];
+        for (int model_idx=0; model_idx<num_models; model_idx++)
+        {
+            models[model_idx] = RateVariation.readRates(new count.io.GeneralizedFileReader(args[2+model_idx]), tree);
+            if (models[model_idx].getMainTree().getRootDistribution()==null)
+                throw new IllegalArgumentException("Rates file must specify the root prior: "+args[2+model_idx]);
+        }
+
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(MultiModelLikelihood.class));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+args[0]));
+        out.println(Executable.getStandardHeader("Table file: "+args[1]));
+
+        MultiModelLikelihood M = new MultiModelLikelihood(models);
+        long time_start = System.currentTimeMillis();
+        double[] LL = M.getLogLikelihoods(table);
+        long time_end = System.currentTimeMillis();
+        out.println(Executable.getStandardHeader("Time: "+(time_end-time_start)+" ms for "+num_models+" models in one pass"));
+
+        time_start = System.currentTimeMillis();
+        double[] separate_LL = new double[num_models];
+        for (int model_idx=0; model_idx<num_models; model_idx++)
+            separate_LL[model_idx] = new ParallelLikelihood(models[model_idx]).getLogLikelihood(table);
+        time_end = System.currentTimeMillis();
+        out.println(Executable.getStandardHeader("Time: "+(time_end-time_start)+" ms for "+num_models+" separate passes"));
+
+        out.println("#MODEL\trates\tLL\tLL(separate)");
+        for (int model_idx=0; model_idx<num_models; model_idx++)
+            out.println("#MODEL\t"+args[2+model_idx]+"\t"+LL[model_idx]+"\t"+separate_LL[model_idx]);
+    }
+}
@@ -65,14 +65,14 @@ public class OccurrenceTable
     private int[][] table;
     
     /**
-     * Family names are stored here
+     * Family names are stored here; null if they are generated as F1,F2,...
      */
     private String[] family_names;
 
     /**
-     * Family properties are stored here (one entry per family).
+     * Family properties are stored here (one entry per family); created on first access.
      */
-    private Properties[] family_properties;
+    private volatile Properties[] family_properties;
 
     /**
      * Property names are stored here.      
@@ -81,6 +81,12 @@ public class OccurrenceTable
     private String[] property_names;
     
     private boolean has_missing_entries; // set by setTable()
+    
+    /**
+     * Incremented by setTable(): the contents change in place, so 
+     * data derived from the table is keyed on this count, not on the instance.
+     */
+    private int modification_count;
 
     /**
      * Whether this table has missing entries.
@@ -92,6 +98,16 @@ public class OccurrenceTable
         return has_missing_entries;
     }
     
+    /**
+     * Number of times the table contents were set. 
+     * 
+     * @return a count that changes whenever the profiles may have changed
+     */
+    public int getModificationCount()
+    {
+        return modification_count;
+    }
+    
     /**
      * Taxon names in the order of a profile.
      * 
@@ -110,7 +126,7 @@ public class OccurrenceTable
      * Number of families here.
      * @return 
      */
-    public int getFamilyCount(){ return this.family_names.length;}    
+    public int getFamilyCount(){ return table==null?0:table.length;}    
 
     /**
      * Size distribution of the given family across the terminal taxa.
@@ -153,7 +169,9 @@ public class OccurrenceTable
      */
     public String getFamilyName(int family_idx)
     {
-        return family_names[family_idx];
+        return family_names==null
+                ?"F"+Integer.toString(family_idx+1)
+                :family_names[family_idx];
     }
 
     /**
@@ -205,7 +223,7 @@ public class OccurrenceTable
      */
     public String getFamilyProperty(int family_idx, String property_name)
     {
-        return family_properties[family_idx].getProperty(property_name);
+        return getProperties(family_idx).getProperty(property_name);
     }
 
     /**
@@ -219,12 +237,41 @@ public class OccurrenceTable
      */
     public String getFamilyProperty(int family_idx, int property_idx)
     {
-        return family_properties[family_idx].getProperty(property_names[property_idx]);
+        return getProperties(family_idx).getProperty(property_names[property_idx]);
     }
     
     public void setFamilyProperty(int family_idx, String property_name, String property_value)
     {
-        family_properties[family_idx].setProperty(property_name, property_value);
+        getProperties(family_idx).setProperty(property_name, property_value);
+    }
+
+    /**
+     * Properties of a family; the property objects are created for all families at the first call.
+     * The creation is synchronized, so that concurrent callers see the same objects.
+     */
+    private Properties getProperties(int family_idx)
+    {
+        Properties[] properties = family_properties;
+        if (properties == null)
+        {
+            synchronized (this)
+            {
+                properties = family_properties;
+                if (properties == null)
+                {
+                    int nfam = getFamilyCount();
+                    properties = new Properties[nfam];
+                    for (int i=0; i<nfam; i++)
+                    {
+                        Properties prop = new Properties();
+                        prop.setProperty(property_names[0], getFamilyName(i));
+                        properties[i] = prop;
+                    }
+                    family_properties = properties;
+                }
+            }
+        }
+        return properties[family_idx];
     }
     
     public void setFamilyProperty(int family_idx, int property_idx, String property_value)
@@ -286,33 +333,19 @@ public class OccurrenceTable
      * Sets the table from externally constructed data. 
      * 
      * @param table family sizes: table[i][j] is the size of the i-th family in the j-th species (this latter indexed as in terminal_taxa)
-     * @param family_names names for the families in the order of the indexes into the int[] array; if null, then they are set to are set to "F1,F2,..."
+     * @param family_names names for the families in the order of the indexes into the int[] array; if null, then they are "F1,F2,..." (generated on demand)
      */
     public void setTable(int[][] table, String[] family_names)
     {
         this.table=table;
-
-        int nfam = table.length;
         this.family_names = family_names;
-        if (family_names == null)
-        {
-            this.family_names = new String[nfam];
-            for (int i=0; i<nfam; i++)
-                this.family_names[i] = "F"+Integer.toString(i+1);
-        }
-        
-        family_properties = new Properties[nfam];
+        // property objects are created on first access: large (e.g., simulated) tables need only the rows 
+        this.family_properties = null;
         property_names = new String[1];
         property_names[0] = "Family";
-        for (int family_idx = 0; family_idx<nfam; family_idx++)
-        {
-            Properties prop = new Properties();
-            //if (family_names != null)
-                prop.setProperty(property_names[0], this.family_names[family_idx]);
-            family_properties[family_idx] = prop;
-        }
         
         checkMissingEntries();
+        modification_count++;
     }    
     
     private void checkMissingEntries()
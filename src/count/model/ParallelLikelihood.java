@@ -0,0 +1,866 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.util.Executable;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Family-parallel likelihood computation over an {@link OccurrenceTable}.
+ *
+ * The families are split recursively into chunks that are
+ * scheduled on a fork/join pool (with work stealing).
+ * Every worker thread borrows a {@link Likelihood} engine with its own
+ * scratch buffers from an internal pool, so the engines are never shared
+ * between threads. The sum of log-likelihoods is combined
+ * along the fixed recursive split, so the result does not depend
+ * on the scheduling.
+ *
+ * With a {@link RateVariation} mixture, every family block is further
+ * split into one task per rate class, so that
+ * (class &times; family-block) pairs are scheduled on the same pool: 
+ * when there are few families but many classes, the classes keep the 
+ * threads busy. Classes with 0 prior probability are skipped.  
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class ParallelLikelihood
+{
+    /**
+     * Default number of families processed by a single task.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64;
+
+    /**
+     * Instantiation with the common fork/join pool.
+     *
+     * @param model the underlying rate model
+     */
+    public ParallelLikelihood(ProbabilisticEvolutionModel.BirthDeath model)
+    {
+        this(model, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Instantiation with a dedicated thread pool.
+     *
+     * @param model the underlying rate model
+     * @param thread_pool pool executing the tasks
+     */
+    public ParallelLikelihood(ProbabilisticEvolutionModel.BirthDeath model, ForkJoinPool thread_pool)
+    {
+        this(model, null, thread_pool);
+    }
+    
+    /**
+     * Instantiation for a rate-variation mixture, with the common fork/join pool.
+     * 
+     * @param rate_variation mixture of rate classes
+     */
+    public ParallelLikelihood(RateVariation rate_variation)
+    {
+        this(rate_variation, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Instantiation for a rate-variation mixture, with a dedicated thread pool.
+     * 
+     * @param rate_variation mixture of rate classes
+     * @param thread_pool pool executing the tasks
+     */
+    public ParallelLikelihood(RateVariation rate_variation, ForkJoinPool thread_pool)
+    {
+        this(rate_variation.getMainTree(), rate_variation, thread_pool);
+    }
+    
+    private ParallelLikelihood(ProbabilisticEvolutionModel.BirthDeath model, RateVariation rate_variation, ForkJoinPool thread_pool)
+    {
+        this.model = model;
+        this.rate_variation = rate_variation;
+        this.thread_pool = thread_pool;
+        this.idle_workers = new ArrayList<>();
+        this.chunk_size = DEFAULT_CHUNK_SIZE;
+        this.truncation_absolute = Likelihood.DEFAULT_TRUNCATION_ABSOLUTE;
+        this.truncation_relative = Likelihood.DEFAULT_TRUNCATION_RELATIVE;
+        this.parameter_version = 0;
+        initClasses();
+    }
+
+    private final ProbabilisticEvolutionModel.BirthDeath model;
+    /**
+     * Null if there is no rate variation.
+     */
+    private final RateVariation rate_variation;
+    private final ForkJoinPool thread_pool;
+    /**
+     * Rate model for each class (a single one without rate variation).
+     */
+    private ProbabilisticEvolutionModel.BirthDeath[] class_models;
+    /**
+     * Engines not in use by any thread, for each class.
+     */
+    private final List<ConcurrentLinkedQueue<Worker>> idle_workers;
+
+    private int chunk_size;
+    private int truncation_absolute;
+    private double truncation_relative;
+    /**
+     * Incremented by {@link #computeParameters() }; workers with older versions refresh their transients.
+     */
+    private volatile int parameter_version;
+    /**
+     * Per-node truncation bounds for the last table, shared by the rate classes.
+     */
+    private CopyNumberBounds copy_number_bounds = null;
+
+    public ProbabilisticEvolutionModel.BirthDeath getModel()
+    {
+        return model;
+    }
+    
+    /**
+     * Rate variation for the mixture evaluation.
+     * 
+     * @return null if the evaluation uses a single rate model
+     */
+    public RateVariation getRateVariation()
+    {
+        return rate_variation;
+    }
+    
+    /**
+     * Sets up the class models and the engine pools. Engine pools are emptied  
+     * if the class models change.
+     */
+    private void initClasses()
+    {
+        int num_classes = (rate_variation==null?1:rate_variation.getNumClasses());
+        boolean same_models = (class_models != null && class_models.length == num_classes);
+        ProbabilisticEvolutionModel.BirthDeath[] models = new ProbabilisticEvolutionModel.BirthDeath[num_classes];
+        for (int class_idx=0; class_idx<num_classes; class_idx++)
+        {
+            models[class_idx] = (rate_variation==null?model:rate_variation.getClassModel(class_idx));
+            same_models = same_models && models[class_idx]==class_models[class_idx];
+        }
+        if (!same_models)
+        {
+            this.class_models = models;
+            idle_workers.clear();
+            for (int class_idx=0; class_idx<num_classes; class_idx++)
+                idle_workers.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    /**
+     * Sets the number of families processed sequentially within one task.
+     *
+     * @param chunk_size positive integer
+     */
+    public void setChunkSize(int chunk_size)
+    {
+        if (chunk_size<1)
+            throw new IllegalArgumentException("Chunk size must be positive");
+        this.chunk_size = chunk_size;
+    }
+
+    public int getChunkSize()
+    {
+        return chunk_size;
+    }
+
+    /**
+     * Sets the copy-number truncation for the engines.
+     *
+     * @param absolute additive slack
+     * @param relative multiplicative slack
+     * @see Likelihood#setTruncation(int, double)
+     */
+    public void setTruncation(int absolute, double relative)
+    {
+        if (absolute<0 || relative<0.0)
+            throw new IllegalArgumentException("Truncation parameters must be non-negative");
+        this.truncation_absolute = absolute;
+        this.truncation_relative = relative;
+    }
+
+    public int getTruncationAbsolute()
+    {
+        return truncation_absolute;
+    }
+
+    public double getTruncationRelative()
+    {
+        return truncation_relative;
+    }
+
+    /**
+     * Signals that the model parameters changed. The engines recompute
+     * their transient distributions before the next evaluation. 
+     * (With rate variation, this includes the changes of the class multipliers and probabilities.)
+     */
+    public void computeParameters()
+    {
+        initClasses();
+        parameter_version++;
+    }
+
+    /**
+     * Sum of log-likelihoods across all families.
+     *
+     * @param table family profiles, with columns in leaf index order
+     * @return sum of natural logarithms of the profile probabilities
+     */
+    public double getLogLikelihood(OccurrenceTable table)
+    {
+        return getLogLikelihoods(table, null);
+    }
+
+    /**
+     * Log-likelihoods for all families.
+     *
+     * @param table family profiles, with columns in leaf index order
+     * @param family_log_likelihoods array filled with the family log-likelihoods; may be null
+     * @return sum of log-likelihoods across the families
+     */
+    public double getLogLikelihoods(OccurrenceTable table, double[] family_log_likelihoods)
+    {
+        int num_families = table.getFamilyCount();
+        if (family_log_likelihoods != null && family_log_likelihoods.length<num_families)
+            throw new IllegalArgumentException("Array for family log-likelihoods is too short");
+        CopyNumberBounds bounds = getBounds(table);
+        RecursiveTask<Double> task = (rate_variation==null
+                ?new FamilyTask(bounds, family_log_likelihoods, 0, num_families)
+                :new MixtureTask(bounds, family_log_likelihoods, null, 0, num_families));
+        return thread_pool.invoke(task);
+    }
+
+    /**
+     * Log-likelihoods and rate-class posteriors for all families, in the same pass:
+     * the posteriors are computed from the class likelihoods of every block
+     * when the mixture likelihood is combined.
+     * Without rate variation, there is a single class with posterior 1.
+     *
+     * @param table family profiles, with columns in leaf index order
+     * @return family log-likelihoods and class posteriors
+     */
+    public ClassPosteriors getClassPosteriors(OccurrenceTable table)
+    {
+        int num_families = table.getFamilyCount();
+        ClassPosteriors posteriors = new ClassPosteriors(num_families);
+        CopyNumberBounds bounds = getBounds(table);
+        RecursiveTask<Double> task = (rate_variation==null
+                ?new FamilyTask(bounds, posteriors.family_log_likelihoods, 0, num_families)
+                :new MixtureTask(bounds, posteriors.family_log_likelihoods, posteriors, 0, num_families));
+        posteriors.log_likelihood = thread_pool.invoke(task);
+        if (rate_variation==null)
+        {
+            for (int family_idx=0; family_idx<num_families; family_idx++)
+                posteriors.setClassPosteriors(family_idx, new double[][]{{posteriors.family_log_likelihoods[family_idx]}}, 0);
+        }
+        return posteriors;
+    }
+
+    /**
+     * Truncation bounds for a table, recomputed only if the table (or its contents) or the truncation changed.
+     *
+     * @param table family profiles
+     * @return per-node bounds for all families
+     */
+    private CopyNumberBounds getBounds(OccurrenceTable table)
+    {
+        CopyNumberBounds bounds = copy_number_bounds;
+        if (bounds == null || !bounds.isFor(table, truncation_absolute, truncation_relative))
+        {
+            bounds = new CopyNumberBounds(class_models[0].getPhylogeny(), table, truncation_absolute, truncation_relative);
+            copy_number_bounds = bounds;
+        }
+        return bounds;
+    }
+
+    /**
+     * Log-likelihoods for all families, computed once for every distinct profile.
+     *
+     * @param profiles compressed table
+     * @param family_log_likelihoods array filled with the family log-likelihoods; may be null
+     * @return sum of log-likelihoods across the families
+     */
+    public double getLogLikelihoods(UniqueProfiles profiles, double[] family_log_likelihoods)
+    {
+        OccurrenceTable table = profiles.getTable();
+        if (family_log_likelihoods != null && family_log_likelihoods.length<table.getFamilyCount())
+            throw new IllegalArgumentException("Array for family log-likelihoods is too short");
+        double[] pattern_log_likelihoods = new double[profiles.getPatternCount()];
+        getLogLikelihoods(profiles.getPatternTable(), pattern_log_likelihoods);
+        if (family_log_likelihoods != null)
+            profiles.expand(pattern_log_likelihoods, family_log_likelihoods);
+        return profiles.getWeightedSum(pattern_log_likelihoods);
+    }
+    
+    /**
+     * Sum of log-likelihoods across all families, computed once for every distinct profile.
+     *
+     * @param profiles compressed table
+     * @return sum of natural logarithms of the profile probabilities
+     */
+    public double getLogLikelihood(UniqueProfiles profiles)
+    {
+        return getLogLikelihoods(profiles, null);
+    }
+
+    /**
+     * Log-likelihoods for a block of families, computed sequentially 
+     * in the calling thread (for all rate classes). 
+     * Used by {@link MultiModelLikelihood} to evaluate several models on a block 
+     * while its bounds are in cache.
+     *
+     * @param bounds per-node bounds for the table
+     * @param first_family first family in the block
+     * @param last_family exclusive end of the block
+     * @param family_log_likelihoods array filled with the family log-likelihoods; may be null
+     * @return sum of log-likelihoods in the block
+     */
+    double computeBlock(CopyNumberBounds bounds, int first_family, int last_family, double[] family_log_likelihoods)
+    {
+        return computeBlock(bounds, first_family, last_family, family_log_likelihoods, null, false);
+    }
+
+    /**
+     * Log-likelihoods for a block of families, for all rate classes.
+     *
+     * @param posteriors class posteriors to be set; may be null
+     * @param fork_classes whether the classes are evaluated by parallel tasks (only from within a fork/join computation)
+     */
+    private double computeBlock(CopyNumberBounds bounds, int first_family, int last_family, double[] family_log_likelihoods,
+            ClassPosteriors posteriors, boolean fork_classes)
+    {
+        int block_size = last_family-first_family;
+        int num_classes = class_models.length;
+        double[][] class_log_likelihoods = new double[num_classes][];
+        List<ClassTask> class_tasks = new ArrayList<>();
+        for (int class_idx=0; class_idx<num_classes; class_idx++)
+        {
+            if (rate_variation == null || rate_variation.isPertinentClass(class_idx))
+            {
+                class_log_likelihoods[class_idx] = new double[block_size];
+                if (fork_classes)
+                    class_tasks.add(new ClassTask(bounds, class_idx, class_log_likelihoods[class_idx], first_family, last_family));
+                else
+                    computeClass(bounds, class_idx, class_log_likelihoods[class_idx], first_family, last_family);
+            }
+        }
+        if (fork_classes)
+            ForkJoinTask.invokeAll(class_tasks);
+
+        double LL = 0.0;
+        for (int i=0; i<block_size; i++)
+        {
+            double ll = (rate_variation == null?class_log_likelihoods[0][i]:combineClasses(class_log_likelihoods, i));
+            if (family_log_likelihoods != null)
+                family_log_likelihoods[first_family+i] = ll;
+            if (posteriors != null)
+                posteriors.setClassPosteriors(first_family+i, class_log_likelihoods, i);
+            LL += ll;
+        }
+        return LL;
+    }
+
+    /**
+     * Family log-likelihoods in one class for a block of families.
+     *
+     * @param block_log_likelihoods array filled with the log-likelihoods, indexed from <code>first_family</code>
+     */
+    private void computeClass(CopyNumberBounds bounds, int class_idx, double[] block_log_likelihoods, int first_family, int last_family)
+    {
+        Worker W = acquireWorker(class_idx);
+        try
+        {
+            for (int family_idx=first_family; family_idx<last_family; family_idx++)
+                block_log_likelihoods[family_idx-first_family] = W.engine.getLogLikelihood(bounds, family_idx);
+        } finally
+        {
+            releaseWorker(W);
+        }
+    }
+
+    /**
+     * Borrows an engine that is up to date with the model parameters.
+     * 
+     * @param class_idx rate class (0 without rate variation)
+     */
+    private Worker acquireWorker(int class_idx)
+    {
+        Worker W = idle_workers.get(class_idx).poll();
+        int version = parameter_version;
+        if (W == null)
+        {
+            W = new Worker(new Likelihood(class_models[class_idx]), class_idx, version);
+        } else if (W.version != version)
+        {
+            W.engine.computeParameters();
+            W.version = version;
+        }
+        W.engine.setTruncation(truncation_absolute, truncation_relative);
+        return W;
+    }
+
+    private void releaseWorker(Worker W)
+    {
+        idle_workers.get(W.class_idx).add(W);
+    }
+
+    /**
+     * An engine with the parameter version it was last updated to.
+     */
+    private static class Worker
+    {
+        private Worker(Likelihood engine, int class_idx, int version)
+        {
+            this.engine = engine;
+            this.class_idx = class_idx;
+            this.version = version;
+        }
+        private final Likelihood engine;
+        private final int class_idx;
+        private int version;
+    }
+
+    /**
+     * Recursive task for a range of families.
+     */
+    private class FamilyTask extends RecursiveTask<Double>
+    {
+        FamilyTask(CopyNumberBounds bounds, double[] family_log_likelihoods, int first_family, int last_family)
+        {
+            this.bounds = bounds;
+            this.family_log_likelihoods = family_log_likelihoods;
+            this.first_family = first_family;
+            this.last_family = last_family;
+        }
+
+        private final CopyNumberBounds bounds;
+        private final double[] family_log_likelihoods;
+        private final int first_family;
+        /**
+         * Exclusive end of the family range.
+         */
+        private final int last_family;
+
+        @Override
+        protected Double compute()
+        {
+            if (last_family-first_family <= chunk_size)
+            {
+                Worker W = acquireWorker(0);
+                try
+                {
+                    double LL = 0.0;
+                    for (int family_idx=first_family; family_idx<last_family; family_idx++)
+                    {
+                        double ll = W.engine.getLogLikelihood(bounds, family_idx);
+                        if (family_log_likelihoods != null)
+                            family_log_likelihoods[family_idx] = ll;
+                        LL += ll;
+                    }
+                    return LL;
+                } finally
+                {
+                    releaseWorker(W);
+                }
+            } else
+            {
+                int mid = (first_family+last_family)/2;
+                FamilyTask left = new FamilyTask(bounds, family_log_likelihoods, first_family, mid);
+                FamilyTask right = new FamilyTask(bounds, family_log_likelihoods, mid, last_family);
+                right.fork();
+                double left_LL = left.compute();
+                double right_LL = right.join();
+                return left_LL + right_LL;
+            }
+        }
+    }
+
+    /**
+     * Recursive task for a range of families under rate variation: 
+     * the ranges are split down to blocks, and 
+     * every block is evaluated by parallel tasks for the rate classes. 
+     */
+    private class MixtureTask extends RecursiveTask<Double>
+    {
+        MixtureTask(CopyNumberBounds bounds, double[] family_log_likelihoods, ClassPosteriors posteriors, int first_family, int last_family)
+        {
+            this.bounds = bounds;
+            this.family_log_likelihoods = family_log_likelihoods;
+            this.posteriors = posteriors;
+            this.first_family = first_family;
+            this.last_family = last_family;
+        }
+
+        private final CopyNumberBounds bounds;
+        private final double[] family_log_likelihoods;
+        /**
+         * Null if only the likelihoods are needed.
+         */
+        private final ClassPosteriors posteriors;
+        private final int first_family;
+        /**
+         * Exclusive end of the family range.
+         */
+        private final int last_family;
+
+        @Override
+        protected Double compute()
+        {
+            if (last_family-first_family <= chunk_size)
+            {
+                return computeBlock(bounds, first_family, last_family, family_log_likelihoods, posteriors, true);
+            } else
+            {
+                int mid = (first_family+last_family)/2;
+                MixtureTask left = new MixtureTask(bounds, family_log_likelihoods, posteriors, first_family, mid);
+                MixtureTask right = new MixtureTask(bounds, family_log_likelihoods, posteriors, mid, last_family);
+                right.fork();
+                double left_LL = left.compute();
+                double right_LL = right.join();
+                return left_LL + right_LL;
+            }
+        }
+    }
+    
+    /**
+     * Log-likelihood of the mixture: logarithm of the class likelihoods weighted by the class probabilities.
+     * 
+     * @param class_log_likelihoods class log-likelihoods in a block; null for classes that are skipped
+     * @param i family index within the block
+     * @return log-likelihood of the family 
+     */
+    private double combineClasses(double[][] class_log_likelihoods, int i)
+    {
+        int num_classes = class_log_likelihoods.length;
+        double max = Double.NEGATIVE_INFINITY;
+        for (int class_idx=0; class_idx<num_classes; class_idx++)
+            if (class_log_likelihoods[class_idx]!=null)
+                max = Math.max(max, class_log_likelihoods[class_idx][i]);
+        if (max == Double.NEGATIVE_INFINITY)
+            return max;
+        double sum = 0.0;
+        for (int class_idx=0; class_idx<num_classes; class_idx++)
+            if (class_log_likelihoods[class_idx]!=null)
+                sum += rate_variation.getClassProbability(class_idx)*Math.exp(class_log_likelihoods[class_idx][i]-max);
+        return Math.log(sum)+max;
+    }
+    
+    /**
+     * Posterior probabilities of the rate classes for every family, 
+     * and their marginals along the four rate dimensions 
+     * (duplication, loss, gain, edge length). 
+     */
+    public class ClassPosteriors
+    {
+        private ClassPosteriors(int num_families)
+        {
+            int num_classes = class_models.length;
+            this.num_classes = num_classes;
+            int nd=1, nl=1, ng=1, ne=1;
+            if (rate_variation != null)
+                for (int class_idx=0; class_idx<num_classes; class_idx++)
+                {
+                    nd = Math.max(nd, rate_variation.getIndexDuplication(class_idx)+1);
+                    nl = Math.max(nl, rate_variation.getIndexLoss(class_idx)+1);
+                    ng = Math.max(ng, rate_variation.getIndexGain(class_idx)+1);
+                    ne = Math.max(ne, rate_variation.getIndexEdgeLength(class_idx)+1);
+                }
+            this.family_log_likelihoods = new double[num_families];
+            this.class_posteriors = new double[num_families][num_classes];
+            this.duplication_posteriors = new double[num_families][nd];
+            this.loss_posteriors = new double[num_families][nl];
+            this.gain_posteriors = new double[num_families][ng];
+            this.length_posteriors = new double[num_families][ne];
+        }
+        
+        private final int num_classes;
+        private final double[] family_log_likelihoods;
+        private final double[][] class_posteriors;
+        private final double[][] duplication_posteriors;
+        private final double[][] loss_posteriors;
+        private final double[][] gain_posteriors;
+        private final double[][] length_posteriors;
+        private double log_likelihood;
+        
+        /**
+         * Class posteriors from the class log-likelihoods, 
+         * computed with the same scaling as {@link #combineClasses(double[][], int) }. 
+         * Families with 0 likelihood get the prior. 
+         * 
+         * @param class_log_likelihoods class log-likelihoods in a block; null for classes that are skipped
+         * @param i family index within the block
+         */
+        private void setClassPosteriors(int family_idx, double[][] class_log_likelihoods, int i)
+        {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int class_idx=0; class_idx<num_classes; class_idx++)
+                if (class_log_likelihoods[class_idx]!=null)
+                    max = Math.max(max, class_log_likelihoods[class_idx][i]);
+            double[] P = class_posteriors[family_idx];
+            double sum = 0.0;
+            for (int class_idx=0; class_idx<num_classes; class_idx++)
+            {
+                double p;
+                if (class_log_likelihoods[class_idx]==null)
+                    p = 0.0;
+                else
+                {
+                    p = (rate_variation==null?1.0:rate_variation.getClassProbability(class_idx));
+                    if (max != Double.NEGATIVE_INFINITY)
+                        p *= Math.exp(class_log_likelihoods[class_idx][i]-max);
+                }
+                P[class_idx] = p;
+                sum += p;
+            }
+            for (int class_idx=0; class_idx<num_classes; class_idx++)
+            {
+                double p = P[class_idx] /= sum;
+                if (rate_variation == null)
+                {
+                    duplication_posteriors[family_idx][0] += p;
+                    loss_posteriors[family_idx][0] += p;
+                    gain_posteriors[family_idx][0] += p;
+                    length_posteriors[family_idx][0] += p;
+                } else
+                {
+                    duplication_posteriors[family_idx][rate_variation.getIndexDuplication(class_idx)] += p;
+                    loss_posteriors[family_idx][rate_variation.getIndexLoss(class_idx)] += p;
+                    gain_posteriors[family_idx][rate_variation.getIndexGain(class_idx)] += p;
+                    length_posteriors[family_idx][rate_variation.getIndexEdgeLength(class_idx)] += p;
+                }
+            }
+        }
+        
+        public int getFamilyCount()
+        {
+            return family_log_likelihoods.length;
+        }
+        
+        /**
+         * Sum of log-likelihoods across the families.
+         * 
+         * @return log-likelihood of the table
+         */
+        public double getLogLikelihood()
+        {
+            return log_likelihood;
+        }
+        
+        public double getLogLikelihood(int family_idx)
+        {
+            return family_log_likelihoods[family_idx];
+        }
+        
+        /**
+         * Posterior probabilities of the combined rate classes for a family. 
+         * 
+         * @param family_idx family index
+         * @return array indexed by class (not a copy)
+         */
+        public double[] getClassPosteriors(int family_idx)
+        {
+            return class_posteriors[family_idx];
+        }
+        
+        /**
+         * Marginal posteriors of the duplication rate categories, 
+         * indexed by {@link RateVariation#getIndexDuplication(int) }. 
+         * 
+         * @param family_idx family index
+         * @return array indexed by category (not a copy)
+         */
+        public double[] getDuplicationPosteriors(int family_idx)
+        {
+            return duplication_posteriors[family_idx];
+        }
+        
+        /**
+         * Marginal posteriors of the loss rate categories, 
+         * indexed by {@link RateVariation#getIndexLoss(int) }. 
+         * 
+         * @param family_idx family index
+         * @return array indexed by category (not a copy)
+         */
+        public double[] getLossPosteriors(int family_idx)
+        {
+            return loss_posteriors[family_idx];
+        }
+        
+        /**
+         * Marginal posteriors of the gain rate categories, 
+         * indexed by {@link RateVariation#getIndexGain(int) }. 
+         * 
+         * @param family_idx family index
+         * @return array indexed by category (not a copy)
+         */
+        public double[] getGainPosteriors(int family_idx)
+        {
+            return gain_posteriors[family_idx];
+        }
+        
+        /**
+         * Marginal posteriors of the edge length categories, 
+         * indexed by {@link RateVariation#getIndexEdgeLength(int) }. 
+         * 
+         * @param family_idx family index
+         * @return array indexed by category (not a copy)
+         */
+        public double[] getEdgeLengthPosteriors(int family_idx)
+        {
+            return length_posteriors[family_idx];
+        }
+    }
+    
+    /**
+     * Class-specific computation in a block of families. 
+     */
+    private class ClassTask extends RecursiveAction
+    {
+        ClassTask(CopyNumberBounds bounds, int class_idx, double[] block_log_likelihoods, int first_family, int last_family)
+        {
+            this.bounds = bounds;
+            this.class_idx = class_idx;
+            this.block_log_likelihoods = block_log_likelihoods;
+            this.first_family = first_family;
+            this.last_family = last_family;
+        }
+        
+        private final CopyNumberBounds bounds;
+        private final int class_idx;
+        /**
+         * Family log-likelihoods in the class, indexed from <code>first_family</code>. 
+         */
+        private final double[] block_log_likelihoods;
+        private final int first_family;
+        private final int last_family;
+        
+        @Override
+        protected void compute()
+        {
+            computeClass(bounds, class_idx, block_log_likelihoods, first_family, last_family);
+        }
+    }
+
+    private void mainmain(String[] args) throws Exception
+    {
+        String tree_file = args[0];
+        String rates_file = args[1];
+        String table_file = args[2];
+        IndexedTree tree = model.getPhylogeny();
+
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(getClass()));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+tree_file));
+        out.println(Executable.getStandardHeader("Rates file: "+rates_file));
+        out.println(Executable.getStandardHeader("Table file: "+table_file));
+        out.println(Executable.getStandardHeader("Threads: "+thread_pool.getParallelism()));
+
+        OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+        table.readTable(new count.io.GeneralizedFileReader(table_file), true);
+
+        long time_start = System.currentTimeMillis();
+        double LL = getLogLikelihood(table);
+        long time_end = System.currentTimeMillis();
+        out.println("#LL\t"+LL);
+        out.println(Executable.getStandardHeader("Time: "+(time_end-time_start)+" ms for "+table.getFamilyCount()+" families"));
+
+        time_start = System.currentTimeMillis();
+        UniqueProfiles profiles = new UniqueProfiles(table);
+        double compressed_LL = getLogLikelihood(profiles);
+        time_end = System.currentTimeMillis();
+        out.println("#LL(compressed)\t"+compressed_LL);
+        out.println(Executable.getStandardHeader("Time: "+(time_end-time_start)+" ms for "+profiles.getPatternCount()+" distinct profiles"));
+
+        time_start = System.currentTimeMillis();
+        ClassPosteriors posteriors = getClassPosteriors(table);
+        time_end = System.currentTimeMillis();
+        out.println("#LL(posteriors)\t"+posteriors.getLogLikelihood());
+        out.println(Executable.getStandardHeader("Time: "+(time_end-time_start)+" ms with class posteriors"));
+        // expected number of families in each category of the rate factors
+        String[] factors = {"duplication", "loss", "gain", "length"};
+        double[][] totals = new double[factors.length][];
+        for (int family_idx=0; family_idx<table.getFamilyCount(); family_idx++)
+        {
+            double[][] family_posteriors = getFactorPosteriors(posteriors, family_idx);
+            for (int f=0; f<factors.length; f++)
+            {
+                if (totals[f]==null)
+                    totals[f] = new double[family_posteriors[f].length];
+                for (int k=0; k<totals[f].length; k++)
+                    totals[f][k] += family_posteriors[f][k];
+            }
+        }
+        for (int f=0; f<factors.length; f++)
+            out.println("#POSTERIOR\t"+factors[f]+"\t"+Arrays.toString(totals[f]));
+        if (args.length==5)
+        {
+            String family_name = args[4];
+            for (int family_idx=0; family_idx<table.getFamilyCount(); family_idx++)
+                if (family_name.equals(table.getFamilyName(family_idx)))
+                {
+                    double[][] family_posteriors = getFactorPosteriors(posteriors, family_idx);
+                    out.println("#FAMILY\t"+family_name+"\tLL "+posteriors.getLogLikelihood(family_idx));
+                    for (int f=0; f<factors.length; f++)
+                        out.println("#FAMILY\t"+family_name+"\t"+factors[f]+"\t"+Arrays.toString(family_posteriors[f]));
+                }
+        }
+    }
+
+    private static double[][] getFactorPosteriors(ClassPosteriors posteriors, int family_idx)
+    {
+        return new double[][]{posteriors.getDuplicationPosteriors(family_idx),
+            posteriors.getLossPosteriors(family_idx),
+            posteriors.getGainPosteriors(family_idx),
+            posteriors.getEdgeLengthPosteriors(family_idx)};
+    }
+
+    /**
+     * Test code --- reads a tree, a rate file and a table, and then
+     * writes the total log-likelihood under the rate-variation model to stdout,
+     * with the expected number of families in the rate categories;
+     * the per-category posteriors of one family are written on request.
+     *
+     * @param args command line arguments: tree, rates, table, and optionally the number of threads and a family name
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length<3 || args.length>5)
+            throw new IllegalArgumentException("Call as java "+ParallelLikelihood.class.getName()+" tree rates table [threads [family]]");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        RateVariation rates = RateVariation.readRates(new count.io.GeneralizedFileReader(args[1]), tree);
+        if (rates.getMainTree().getRootDistribution()==null)
+            throw new IllegalArgumentException("Rates file must specify the root prior");
+        ForkJoinPool pool = (args.length>=4
+                ?new ForkJoinPool(Integer.parseInt(args[3]))
+                :ForkJoinPool.commonPool());
+        ParallelLikelihood O = new ParallelLikelihood(rates, pool);
+        O.mainmain(args);
+    }
+}
@@ -0,0 +1,478 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.util.Executable;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Posterior distributions of the ancestral copy numbers, written
+ * family by family.
+ *
+ * For each family, the posterior at an ancestral node is the product of the
+ * conditional likelihood (inside) and the outside probability,
+ * computed by a pass from the root towards the leaves;
+ * with rate variation, the class-specific posteriors are mixed with the
+ * class posteriors of the family.
+ * The families are processed in blocks: the block is computed in
+ * parallel, formatted, and written out before the next block is started,
+ * so the memory usage depends on the block size and not on the number of families.
+ * Within a subtree where all entries are missing, the posteriors follow
+ * the truncation of the closest ancestor with observations.
+ *
+ * Output format: one line per family and ancestral node with
+ * tab-separated fields: family name, node index, posterior mean,
+ * and posterior probabilities for copy numbers 0,1,...; trailing
+ * probabilities below the output threshold are omitted.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class Posteriors
+{
+    /**
+     * Default number of families per output block.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 256;
+    /**
+     * Default cutoff for the trailing posterior probabilities in the output.
+     */
+    public static final double DEFAULT_OUTPUT_THRESHOLD = 1e-6;
+    /**
+     * Number of families per task within a block.
+     */
+    private static final int CHUNK_SIZE = 16;
+
+    /**
+     * Posteriors with the common thread pool.
+     *
+     * @param rate_variation rate model with (or without) rate variation
+     */
+    public Posteriors(RateVariation rate_variation)
+    {
+        this(rate_variation, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Posteriors with a given thread pool.
+     *
+     * @param rate_variation rate model with (or without) rate variation
+     * @param thread_pool pool for the block computations
+     */
+    public Posteriors(RateVariation rate_variation, ForkJoinPool thread_pool)
+    {
+        this.rate_variation = rate_variation;
+        this.tree = rate_variation.getMainTree().getPhylogeny();
+        this.thread_pool = thread_pool;
+        this.idle_workers = new ConcurrentLinkedQueue<>();
+        this.block_size = DEFAULT_BLOCK_SIZE;
+        this.output_threshold = DEFAULT_OUTPUT_THRESHOLD;
+        this.truncation_absolute = Likelihood.DEFAULT_TRUNCATION_ABSOLUTE;
+        this.truncation_relative = Likelihood.DEFAULT_TRUNCATION_RELATIVE;
+    }
+
+    private final RateVariation rate_variation;
+    private final IndexedTree tree;
+    private final ForkJoinPool thread_pool;
+    /**
+     * Engines not in use by any thread; discarded at the end of each output run.
+     */
+    private final ConcurrentLinkedQueue<Worker> idle_workers;
+
+    private int block_size;
+    private double output_threshold;
+    private int truncation_absolute;
+    private double truncation_relative;
+
+    public void setBlockSize(int block_size)
+    {
+        if (block_size<1)
+            throw new IllegalArgumentException("Block size must be positive");
+        this.block_size = block_size;
+    }
+
+    public int getBlockSize()
+    {
+        return block_size;
+    }
+
+    /**
+     * Sets the cutoff for the omitted trailing probabilities.
+     *
+     * @param threshold non-negative; 0 writes all probabilities up to the truncation bound
+     */
+    public void setOutputThreshold(double threshold)
+    {
+        if (threshold<0.0)
+            throw new IllegalArgumentException("Output threshold must be non-negative");
+        this.output_threshold = threshold;
+    }
+
+    /**
+     * Sets the copy-number truncation.
+     *
+     * @param absolute additive slack
+     * @param relative multiplicative slack
+     * @see Likelihood#setTruncation(int, double)
+     */
+    public void setTruncation(int absolute, double relative)
+    {
+        if (absolute<0 || relative<0.0)
+            throw new IllegalArgumentException("Truncation parameters must be non-negative");
+        this.truncation_absolute = absolute;
+        this.truncation_relative = relative;
+    }
+
+    /**
+     * Computes the posteriors for all families and writes them out.
+     * The model must not change during the call.
+     *
+     * @param table family profiles, with columns in leaf index order
+     * @param out where the output lines are written (not closed)
+     * @throws IOException if writing fails
+     */
+    public void writeAncestralPosteriors(OccurrenceTable table, Writer out) throws IOException
+    {
+        out.write("Family\tnode\tmean\tposteriors\n");
+        int num_families = table.getFamilyCount();
+        String[] block_output = new String[Math.min(block_size, Math.max(num_families,1))];
+        try
+        {
+            for (int first_family=0; first_family<num_families; first_family+=block_size)
+            {
+                int last_family = Math.min(num_families, first_family+block_size);
+                thread_pool.invoke(new BlockTask(table, block_output, first_family, first_family, last_family));
+                for (int family_idx=first_family; family_idx<last_family; family_idx++)
+                {
+                    out.write(block_output[family_idx-first_family]);
+                    block_output[family_idx-first_family] = null;
+                }
+            }
+            out.flush();
+        } finally
+        {
+            idle_workers.clear();
+        }
+    }
+
+    private Worker acquireWorker()
+    {
+        Worker W = idle_workers.poll();
+        if (W == null)
+            W = new Worker();
+        return W;
+    }
+
+    private void releaseWorker(Worker W)
+    {
+        idle_workers.add(W);
+    }
+
+    /**
+     * Computation for a range of families within a block.
+     */
+    private class BlockTask extends RecursiveAction
+    {
+        BlockTask(OccurrenceTable table, String[] block_output, int block_start, int first_family, int last_family)
+        {
+            this.table = table;
+            this.block_output = block_output;
+            this.block_start = block_start;
+            this.first_family = first_family;
+            this.last_family = last_family;
+        }
+        private final OccurrenceTable table;
+        private final String[] block_output;
+        private final int block_start;
+        private final int first_family;
+        private final int last_family;
+
+        @Override
+        protected void compute()
+        {
+            if (last_family-first_family<=CHUNK_SIZE)
+            {
+                Worker W = acquireWorker();
+                try
+                {
+                    for (int family_idx=first_family; family_idx<last_family; family_idx++)
+                        block_output[family_idx-block_start] = W.formatFamily(table, family_idx);
+                } finally
+                {
+                    releaseWorker(W);
+                }
+            } else
+            {
+                int mid = (first_family+last_family)/2;
+                invokeAll(new BlockTask(table, block_output, block_start, first_family, mid),
+                        new BlockTask(table, block_output, block_start, mid, last_family));
+            }
+        }
+    }
+
+    /**
+     * Engines for all classes with the per-family buffers.
+     */
+    private class Worker
+    {
+        Worker()
+        {
+            int num_classes = rate_variation.getNumClasses();
+            int num_nodes = tree.getNumNodes();
+            this.class_engines = new ClassPosteriors[num_classes];
+            for (int class_idx=0; class_idx<num_classes; class_idx++)
+                if (rate_variation.isPertinentClass(class_idx))
+                {
+                    ProbabilisticEvolutionModel.BirthDeath model = (num_classes==1
+                            ?rate_variation.getMainTree()
+                            :rate_variation.getClassModel(class_idx));
+                    class_engines[class_idx] = new ClassPosteriors(model);
+                }
+            this.class_log_likelihoods = new double[num_classes];
+            this.bounds = new int[num_nodes];
+            this.outside_bounds = new int[num_nodes];
+            this.posteriors = new double[num_nodes][];
+            this.output = new StringBuilder();
+        }
+
+        private final ClassPosteriors[] class_engines;
+        private final double[] class_log_likelihoods;
+        private final int[] bounds;
+        /**
+         * Truncation for the outside vectors (same as {@link #bounds} outside of missing subtrees).
+         */
+        private final int[] outside_bounds;
+        private final double[][] posteriors;
+        private final StringBuilder output;
+
+        /**
+         * Computes the posteriors for a family and formats them.
+         */
+        String formatFamily(OccurrenceTable table, int family_idx)
+        {
+            int[] profile = table.getSizes(family_idx);
+            CopyNumberBounds.computeBounds(tree, profile, truncation_absolute, truncation_relative, bounds);
+            computeOutsideBounds();
+
+            int num_classes = class_engines.length;
+            double max = Double.NEGATIVE_INFINITY;
+            for (int class_idx=0; class_idx<num_classes; class_idx++)
+                if (class_engines[class_idx] != null)
+                {
+                    double ll = Math.log(rate_variation.getClassProbability(class_idx))
+                            + class_engines[class_idx].computeLogLikelihood(profile, bounds);
+                    class_log_likelihoods[class_idx] = ll;
+                    max = Math.max(max, ll);
+                }
+            double sum = 0.0;
+            for (int class_idx=0; class_idx<num_classes; class_idx++)
+                if (class_engines[class_idx] != null)
+                    sum += Math.exp(class_log_likelihoods[class_idx]-max);
+            double LL = max+Math.log(sum);
+
+            int num_nodes = tree.getNumNodes();
+            int num_leaves = tree.getNumLeaves();
+            for (int node_idx=num_leaves; node_idx<num_nodes; node_idx++)
+            {
+                int B = outside_bounds[node_idx];
+                if (posteriors[node_idx]==null || posteriors[node_idx].length<=B)
+                    posteriors[node_idx] = new double[B+1];
+                Arrays.fill(posteriors[node_idx], 0, B+1, 0.0);
+            }
+            for (int class_idx=0; class_idx<num_classes; class_idx++)
+                if (class_engines[class_idx] != null)
+                {
+                    double ll = class_log_likelihoods[class_idx];
+                    double weight = Math.exp(ll-LL);
+                    // classes where the family is impossible contribute nothing
+                    if (Double.isFinite(ll) && weight>0.0)
+                        class_engines[class_idx].addPosteriors(bounds, outside_bounds, weight, posteriors);
+                }
+
+            output.setLength(0);
+            String family_name = table.getFamilyName(family_idx);
+            for (int node_idx=num_leaves; node_idx<num_nodes; node_idx++)
+            {
+                double[] post = posteriors[node_idx];
+                int B = outside_bounds[node_idx];
+                double mean = 0.0;
+                int last = 0;
+                for (int n=0; n<=B; n++)
+                {
+                    mean += n*post[n];
+                    if (post[n]>=output_threshold)
+                        last = n;
+                }
+                output.append(family_name).append('\t').append(node_idx).append('\t').append((float)mean);
+                for (int n=0; n<=last; n++)
+                    output.append('\t').append((float)post[n]);
+                output.append('\n');
+            }
+            return output.toString();
+        }
+
+        private void computeOutsideBounds()
+        {
+            int num_nodes = tree.getNumNodes();
+            int root_idx = num_nodes-1;
+            for (int node_idx=root_idx; node_idx>=0; node_idx--)
+            {
+                int b = bounds[node_idx];
+                if (b<0)
+                    b = (node_idx==root_idx
+                            ?CopyNumberBounds.getTruncationBound(0, truncation_absolute, truncation_relative)
+                            :outside_bounds[tree.getParentIndex(node_idx)]);
+                outside_bounds[node_idx] = b;
+            }
+        }
+    }
+
+    /**
+     * Inside and outside computations within one rate class.
+     */
+    private class ClassPosteriors
+    {
+        ClassPosteriors(ProbabilisticEvolutionModel.BirthDeath model)
+        {
+            this.engine = new Likelihood(model);
+            this.outside = new double[tree.getNumNodes()][];
+            allocateScratch(0);
+        }
+
+        private final Likelihood engine;
+        /**
+         * Normalized outside vectors: their product with the scaled conditionals is the posterior.
+         */
+        private final double[][] outside;
+        private double[] sc_weights;
+        private double[] sc_pull;
+        private double[] sc_powers;
+
+        private void allocateScratch(int bound)
+        {
+            sc_weights = new double[bound+1];
+            sc_pull = new double[bound+1];
+            sc_powers = new double[bound+1];
+        }
+
+        double computeLogLikelihood(int[] profile, int[] bounds)
+        {
+            return engine.getLogLikelihood(profile, bounds);
+        }
+
+        /**
+         * Outside pass after {@link #computeLogLikelihood(int[], int[]) }, adding the weighted posteriors at the ancestral nodes.
+         */
+        void addPosteriors(int[] bounds, int[] outside_bounds, double weight, double[][] posteriors)
+        {
+            int num_nodes = tree.getNumNodes();
+            int num_leaves = tree.getNumLeaves();
+            int root_idx = num_nodes-1;
+            if (sc_weights.length<=outside_bounds[root_idx])
+                allocateScratch(Math.max(outside_bounds[root_idx], 2*sc_weights.length));
+
+            int root_bound = outside_bounds[root_idx];
+            double[] O = ensureOutsideCapacity(root_idx, root_bound);
+            int root_exponent = engine.computeRootOutside(bounds, root_bound, O);
+
+            double[] X = sc_weights;
+            for (int node_idx=root_idx; node_idx>=num_leaves; node_idx--) // parents before children
+            {
+                int bound = outside_bounds[node_idx];
+                O = outside[node_idx];
+                int shift = (node_idx==root_idx?root_exponent:0);
+
+                double[] post = posteriors[node_idx];
+                if (bounds[node_idx]<0)
+                    for (int n=0; n<=bound; n++)
+                        post[n] += weight*Math.scalb(O[n], -shift);
+                else
+                {
+                    double[] C = engine.getNodeConditionals(node_idx);
+                    for (int n=0; n<=bound; n++)
+                        post[n] += weight*Math.scalb(O[n]*C[n], -shift);
+                }
+
+                int num_children = tree.getNumChildren(node_idx);
+                for (int ci=0; ci<num_children; ci++)
+                {
+                    int child_idx = tree.getChildIndex(node_idx, ci);
+                    if (tree.isLeaf(child_idx))
+                        continue;
+                    engine.computeEdgeWeights(bounds, child_idx, O, bound, root_exponent, X);
+                    int child_bound = outside_bounds[child_idx];
+                    double[] Oc = ensureOutsideCapacity(child_idx, child_bound);
+                    engine.computeChildOutside(child_idx, X, bound, child_bound, sc_pull, sc_powers, Oc);
+                }
+            }
+        }
+
+        private double[] ensureOutsideCapacity(int node_idx, int bound)
+        {
+            double[] O = outside[node_idx];
+            if (O==null || O.length<=bound)
+            {
+                O = new double[Math.max(bound+1, O==null?0:2*O.length)];
+                outside[node_idx] = O;
+            }
+            return O;
+        }
+    }
+
+    /**
+     * Test code --- reads a tree, a rate file and a table, and then
+     * writes the ancestral posteriors to stdout.
+     *
+     * @param args command line arguments: tree, rates, table, and optionally the number of threads
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 3 && args.length != 4)
+            throw new IllegalArgumentException("Call as java "+Posteriors.class.getName()+" tree rates table [threads]");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        RateVariation rates = RateVariation.readRates(new count.io.GeneralizedFileReader(args[1]), tree);
+        if (rates.getMainTree().getRootDistribution()==null)
+            throw new IllegalArgumentException("Rates file must specify the root prior");
+        OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+        table.readTable(new count.io.GeneralizedFileReader(args[2]), true);
+        ForkJoinPool pool = (args.length==4
+                ?new ForkJoinPool(Integer.parseInt(args[3]))
+                :ForkJoinPool.commonPool());
+
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(Posteriors.class));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+args[0]));
+        out.println(Executable.getStandardHeader("Rates file: "+args[1]));
+        out.println(Executable.getStandardHeader("Table file: "+args[2]));
+
+        Posteriors P = new Posteriors(rates, pool);
+        Writer W = new BufferedWriter(new OutputStreamWriter(out));
+        long time_start = System.currentTimeMillis();
+        P.writeAncestralPosteriors(table, W);
+        long time_end = System.currentTimeMillis();
+        W.flush();
+        out.println(Executable.getStandardHeader("Time: "+(time_end-time_start)+" ms for "+table.getFamilyCount()+" families"));
+    }
+}
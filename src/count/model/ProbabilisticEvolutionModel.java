@@ -47,6 +47,20 @@ public interface ProbabilisticEvolutionModel
         public boolean hasLineageSpecificDuplication();
         public boolean hasLineageSpecificGain();
         public boolean hasLineageSpecificLoss();
+        
+        /**
+         * Modification stamp for the rates and length on the edge leading to a node.
+         * Every change of the edge parameters produces a larger stamp, 
+         * so caches can tell whether their values are stale. 
+         * Default implementation returns -1. 
+         * 
+         * @param child_node_idx node index
+         * @return negative value if changes are not tracked
+         */
+        public default long getEdgeVersion(int child_node_idx)
+        {
+            return -1L;
+        }
     }
 }
 
@@ -70,6 +70,30 @@ public final class RateVariation
         initTree(main_tree);
     }
     
+    /**
+     * A copy with an independent main tree (see {@link TreeWithRates#TreeWithRates(count.model.TreeWithRates) })
+     * and the same rate variation.
+     * 
+     * @param that the model to copy
+     */
+    public RateVariation(RateVariation that)
+    {
+        this.main_tree = new TreeWithRates(that.main_tree);
+        this.mul_duplication = that.mul_duplication.clone();
+        this.mul_loss = that.mul_loss.clone();
+        this.mul_gain = that.mul_gain.clone();
+        this.mul_length = that.mul_length.clone();
+        this.alpha_duplication = that.alpha_duplication;
+        this.alpha_loss = that.alpha_loss;
+        this.alpha_gain = that.alpha_gain;
+        this.alpha_length = that.alpha_length;
+        this.forbidden_duplication = that.forbidden_duplication;
+        this.forbidden_loss = that.forbidden_loss;
+        this.forbidden_gain = that.forbidden_gain;
+        initClassTrees();
+        this.class_probabilities = that.class_probabilities.clone();
+    }
+    
     /**
      * Sets the main tree, and initializes the multipliers (representing no variation).
      * 
@@ -320,6 +344,19 @@ public final class RateVariation
     }
     
     
+    /**
+     * Rate model for one class: the main tree with the class-specific multipliers.
+     * The returned instance is replaced when the number of categories changes
+     * in one of the dimensions.
+     *
+     * @param class_idx combined class index
+     * @return scaled rate tree for the class
+     */
+    public ScaledTree getClassModel(int class_idx)
+    {
+        return class_trees[class_idx];
+    }
+    
     /**
      * The underlying main tree from which the class-specific models are derived
      * by applying the appropriate modifiers.
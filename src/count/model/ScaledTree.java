@@ -28,13 +28,15 @@ public final class ScaledTree implements ProbabilisticEvolutionModel.BirthDeath
     private double multiplier_duplication_rate;
     private double multiplier_loss_rate;
     private final ProbabilisticEvolutionModel.BirthDeath rate_tree;
-    private DiscreteDistribution root_distribution;
+    /**
+     * Modification stamp for the multipliers.
+     */
+    private long multiplier_version;
 
     
     public ScaledTree(ProbabilisticEvolutionModel.BirthDeath  model)
     {
         this.rate_tree = model;
-        this.root_distribution = model.getRootDistribution();
         setEdgeLengthMultiplier(1.0);
         setGainRateMultiplier(1.0);
         setLossRateMultiplier(1.0);
@@ -43,34 +45,67 @@ public final class ScaledTree implements ProbabilisticEvolutionModel.BirthDeath
     
     public void setEdgeLengthMultiplier(double x)
     {
+        if (multiplier_edge_length != x)
+            multiplier_version = BirthDeathProcess.newVersion();
         this.multiplier_edge_length = x;
     }
     
     public void setGainRateMultiplier(double x)
     {
+        if (multiplier_gain_rate != x)
+            multiplier_version = BirthDeathProcess.newVersion();
         this.multiplier_gain_rate = x;
     }
     
     public void setLossRateMultiplier(double x)
     {
+        if (multiplier_loss_rate != x)
+            multiplier_version = BirthDeathProcess.newVersion();
         this.multiplier_loss_rate=x;
     }
     
     public void setDuplicationRateMultiplier(double x)
     {
+        if (multiplier_duplication_rate != x)
+            multiplier_version = BirthDeathProcess.newVersion();
         this.multiplier_duplication_rate = x;
     }
     
+    public double getEdgeLengthMultiplier()
+    {
+        return multiplier_edge_length;
+    }
+    
+    public double getGainRateMultiplier()
+    {
+        return multiplier_gain_rate;
+    }
+    
+    public double getLossRateMultiplier()
+    {
+        return multiplier_loss_rate;
+    }
+    
+    public double getDuplicationRateMultiplier()
+    {
+        return multiplier_duplication_rate;
+    }
+    
     @Override
     public double getEdgeLength(int node_idx)
     {
         return rate_tree.getEdgeLength(node_idx)*multiplier_edge_length;
     }
     
+    /**
+     * Root prior of the underlying rate tree (not scaled).
+     * 
+     * @return the current root distribution of the underlying model
+     */
     @Override 
     public DiscreteDistribution getRootDistribution()
     {
-        return this.root_distribution;
+        return rate_tree.getRootDistribution();
     }
     
     @Override
@@ -97,6 +132,19 @@ public final class ScaledTree implements ProbabilisticEvolutionModel.BirthDeath
         return rate_tree.getPhylogeny();
     }
     
+    /**
+     * Modification stamp: changes with the underlying edge parameters and with the multipliers. 
+     * 
+     * @param node_idx node index
+     * @return negative if the underlying model does not track changes 
+     */
+    @Override
+    public long getEdgeVersion(int node_idx)
+    {
+        long v = rate_tree.getEdgeVersion(node_idx);
+        return (v<0L?v:Math.max(v, multiplier_version));
+    }
+    
     @Override
     public boolean hasLineageSpecificLength()
     {
@@ -0,0 +1,513 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.matek.DiscreteDistribution;
+import count.util.Executable;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Simulation of family profiles under a rate-variation model.
+ *
+ * A family is generated top-down: its rate class is drawn by the
+ * class probabilities, the root copy number by the root prior, and
+ * on every edge, the copy number at the child given <var>n</var> parental copies
+ * from (<var>T</var><sub>0</sub>*<var>T</var><sub>1</sub><sup>*<var>n</var></sup>),
+ * with the gain and inheritance distributions of {@link BirthDeathProcess}.
+ *
+ * All distributions are sampled by inversion with a single uniform draw,
+ * from cumulative tables precomputed at instantiation (with guide tables for
+ * constant expected lookup time). On every edge, the transition distributions are tabulated for
+ * fewer than {@link #TABULATED_PARENT_COPIES} parental copies; more copies
+ * are handled by adding draws from the table of
+ * <var>T</var><sub>1</sub><sup>*{@link #TABULATED_PARENT_COPIES}</sup>.
+ * Tables are truncated where the tail probability is negligible.
+ *
+ * The simulation of a family allocates nothing. Tables are generated
+ * in chunks of families by parallel tasks, each with its own random
+ * stream split from the seed in chunk order, so the output
+ * depends only on the seed and not on the number of threads.
+ * An instance can be shared between threads.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class Simulator
+{
+    /**
+     * Transition tables on the edges are precomputed for fewer parental copies than this.
+     */
+    public static final int TABULATED_PARENT_COPIES = 8;
+    /**
+     * Tabulated distributions stop when the tail is below this.
+     */
+    private static final double TAIL_PROBABILITY = 1e-12;
+    /**
+     * Largest tabulated length.
+     */
+    private static final int MAX_TABULATED = 1<<16;
+    /**
+     * Number of families with one random stream.
+     */
+    private static final int CHUNK_SIZE = 4096;
+    /**
+     * Number of chunks in memory when writing a table.
+     */
+    private static final int CHUNKS_PER_BLOCK = 64;
+
+    /**
+     * Simulator with the common thread pool.
+     *
+     * @param rate_variation rate model with (or without) rate variation; the parameters are copied at instantiation
+     */
+    public Simulator(RateVariation rate_variation)
+    {
+        this(rate_variation, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Simulator with a given thread pool for the table generation.
+     *
+     * @param rate_variation rate model with (or without) rate variation; the parameters are copied at instantiation
+     * @param thread_pool pool for generating tables
+     */
+    public Simulator(RateVariation rate_variation, ForkJoinPool thread_pool)
+    {
+        this.tree = rate_variation.getMainTree().getPhylogeny();
+        this.thread_pool = thread_pool;
+        int num_classes = rate_variation.getNumClasses();
+        int num_nodes = tree.getNumNodes();
+        this.class_cumulative = new double[num_classes];
+        this.root_cumulative = new double[num_classes][];
+        this.root_guide = new int[num_classes][];
+        this.edge_cumulative = new double[num_classes][num_nodes][];
+        this.edge_guide = new int[num_classes][num_nodes][];
+        this.edge_row_offsets = new int[num_classes][num_nodes][];
+        double sum = 0.0;
+        for (int class_idx=0; class_idx<num_classes; class_idx++)
+        {
+            if (rate_variation.isPertinentClass(class_idx))
+            {
+                ProbabilisticEvolutionModel.BirthDeath model = (num_classes==1
+                        ?rate_variation.getMainTree()
+                        :rate_variation.getClassModel(class_idx));
+                root_cumulative[class_idx] = getCumulative(model.getRootDistribution());
+                root_guide[class_idx] = new int[root_cumulative[class_idx].length];
+                fillGuide(root_cumulative[class_idx], root_guide[class_idx], 0, root_guide[class_idx].length);
+                for (int node_idx=0; node_idx<num_nodes; node_idx++)
+                    if (!tree.isRoot(node_idx))
+                        tabulateEdge(model, class_idx, node_idx);
+                sum += rate_variation.getClassProbability(class_idx);
+            }
+            class_cumulative[class_idx] = sum;
+        }
+        for (int class_idx=0; class_idx<num_classes; class_idx++)
+            class_cumulative[class_idx] /= sum;
+    }
+
+    private final IndexedTree tree;
+    private final ForkJoinPool thread_pool;
+    /**
+     * Cumulative class probabilities (normalized over the pertinent classes).
+     */
+    private final double[] class_cumulative;
+    private final double[][] root_cumulative;
+    private final int[][] root_guide;
+    /**
+     * Cumulative transition distributions by class and node: rows for
+     * 0,1,...,{@link #TABULATED_PARENT_COPIES}-1 parental copies, and a last row without gain
+     * for {@link #TABULATED_PARENT_COPIES} copies, concatenated.
+     */
+    private final double[][][] edge_cumulative;
+    /**
+     * Guide tables with the same layout as {@link #edge_cumulative}:
+     * entry <var>j</var> of a row of length <var>L</var> is the first position with cumulative probability
+     * larger than <var>j</var>/<var>L</var>.
+     */
+    private final int[][][] edge_guide;
+    /**
+     * Row boundaries in {@link #edge_cumulative}.
+     */
+    private final int[][][] edge_row_offsets;
+
+    public IndexedTree getTree()
+    {
+        return tree;
+    }
+
+    /**
+     * Tabulates the cumulative distribution up to a negligible tail.
+     */
+    private static double[] getCumulative(DiscreteDistribution D)
+    {
+        int n = 16;
+        while (true)
+        {
+            double[] pmf = D.getDistribution(n);
+            double[] cdf = new double[n+1];
+            double sum = 0.0;
+            for (int k=0; k<=n; k++)
+            {
+                sum += pmf[k];
+                cdf[k] = sum;
+                if (sum>=1.0-TAIL_PROBABILITY)
+                    return Arrays.copyOf(cdf, k+1);
+            }
+            if (n>=MAX_TABULATED)
+                return cdf;
+            n *= 2;
+        }
+    }
+
+    /**
+     * Precomputes the transition tables on an edge.
+     * The rows are obtained by repeated convolution with the shifted geometric
+     * <var>T</var><sub>1</sub>, with the same linear-time recurrence as in {@link Likelihood}.
+     */
+    private void tabulateEdge(ProbabilisticEvolutionModel.BirthDeath model, int class_idx, int node_idx)
+    {
+        DiscreteDistribution T0 = BirthDeathProcess.getTransient0(model, node_idx);
+        double[] params = BirthDeathProcess.getTransient1(model, node_idx).getParameters();
+        double p = params[0];
+        double q = (params.length>1?params[1]:0.0); // PointDistribution(p) is the same as ShiftedGeometric(p,0)
+        int num_rows = TABULATED_PARENT_COPIES+1;
+        double[][] rows = new double[num_rows][];
+        int length = 32;
+        while (true)
+        {
+            double[] w = Arrays.copyOf(T0.getDistribution(length-1), length);
+            for (int n=0; n<TABULATED_PARENT_COPIES; n++)
+            {
+                rows[n] = w.clone();
+                convolveInheritance(w, length, p, q);
+            }
+            double[] d = new double[length];
+            d[0] = 1.0;
+            for (int n=0; n<TABULATED_PARENT_COPIES; n++)
+                convolveInheritance(d, length, p, q);
+            rows[TABULATED_PARENT_COPIES] = d;
+            if (length>=MAX_TABULATED
+                    || (sum(rows[TABULATED_PARENT_COPIES-1])>=1.0-TAIL_PROBABILITY
+                        && sum(d)>=1.0-TAIL_PROBABILITY))
+                break;
+            length *= 2;
+        }
+        int[] offsets = new int[num_rows+1];
+        double[] cdf = new double[num_rows*length];
+        int pos = 0;
+        for (int r=0; r<num_rows; r++)
+        {
+            offsets[r] = pos;
+            double s = 0.0;
+            for (int k=0; k<length; k++)
+            {
+                s += rows[r][k];
+                cdf[pos++] = s;
+                if (s>=1.0-TAIL_PROBABILITY)
+                    break;
+            }
+        }
+        offsets[num_rows] = pos;
+        cdf = Arrays.copyOf(cdf, pos);
+        int[] guide = new int[pos];
+        for (int r=0; r<num_rows; r++)
+            fillGuide(cdf, guide, offsets[r], offsets[r+1]);
+        edge_cumulative[class_idx][node_idx] = cdf;
+        edge_guide[class_idx][node_idx] = guide;
+        edge_row_offsets[class_idx][node_idx] = offsets;
+    }
+
+    private static double sum(double[] x)
+    {
+        double s = 0.0;
+        for (double v: x)
+            s += v;
+        return s;
+    }
+
+    /**
+     * Convolution with the shifted geometric (<var>p</var>, <var>q</var>) in place.
+     */
+    private static void convolveInheritance(double[] w, int length, double p, double q)
+    {
+        double r = (1.0-p)*(1.0-q);
+        double s = 0.0;
+        double w_prev = 0.0;
+        for (int m=0; m<length; m++)
+        {
+            double x = w[m];
+            s = w_prev + q*s;
+            w[m] = p*x + r*s;
+            w_prev = x;
+        }
+    }
+
+    /**
+     * Fills the guide table for a row of cumulative probabilities.
+     */
+    private static void fillGuide(double[] cdf, int[] guide, int start, int end)
+    {
+        int length = end-start;
+        int k = 0;
+        for (int j=0; j<length; j++)
+        {
+            double threshold = (double)j/length;
+            while (k<length-1 && cdf[start+k]<=threshold)
+                k++;
+            guide[start+j] = k;
+        }
+    }
+
+    /**
+     * Inversion sampling from a tabulated row; the tail beyond the table goes to its last value.
+     */
+    private static int sample(double[] cdf, int[] guide, int start, int end, double u)
+    {
+        int length = end-start;
+        int k = guide[start+(int)(u*length)];
+        while (k<length-1 && cdf[start+k]<=u)
+            k++;
+        return k;
+    }
+
+    private int sampleClass(double u)
+    {
+        int k = 0;
+        while (k<class_cumulative.length-1 && class_cumulative[k]<=u)
+            k++;
+        return k;
+    }
+
+    /**
+     * Copy number at the child of an edge.
+     *
+     * @param n number of copies at the parent
+     */
+    private int sampleEdge(int class_idx, int node_idx, int n, SplittableRandom random)
+    {
+        double[] cdf = edge_cumulative[class_idx][node_idx];
+        int[] guide = edge_guide[class_idx][node_idx];
+        int[] offsets = edge_row_offsets[class_idx][node_idx];
+        if (n<TABULATED_PARENT_COPIES)
+            return sample(cdf, guide, offsets[n], offsets[n+1], random.nextDouble());
+        int r = n % TABULATED_PARENT_COPIES;
+        int m = sample(cdf, guide, offsets[r], offsets[r+1], random.nextDouble());
+        int start = offsets[TABULATED_PARENT_COPIES];
+        int end = offsets[TABULATED_PARENT_COPIES+1];
+        for (int i=n/TABULATED_PARENT_COPIES; i>0; i--)
+            m += sample(cdf, guide, start, end, random.nextDouble());
+        return m;
+    }
+
+    /**
+     * Generates one family.
+     *
+     * @param random source of randomness
+     * @param copies array of at least as many entries as nodes, filled with the copy numbers (the profile is the prefix for the leaves); allocated if null
+     * @return the filled array
+     */
+    public int[] simulateFamily(SplittableRandom random, int[] copies)
+    {
+        int num_nodes = tree.getNumNodes();
+        if (copies == null)
+            copies = new int[num_nodes];
+        int class_idx = sampleClass(random.nextDouble());
+        int root_idx = num_nodes-1;
+        double[] root_cdf = root_cumulative[class_idx];
+        copies[root_idx] = sample(root_cdf, root_guide[class_idx], 0, root_cdf.length, random.nextDouble());
+        for (int node_idx=root_idx-1; node_idx>=0; node_idx--) // parents before children
+            copies[node_idx] = sampleEdge(class_idx, node_idx, copies[tree.getParentIndex(node_idx)], random);
+        return copies;
+    }
+
+    /**
+     * Generates a table of independent families sequentially from a single random source.
+     *
+     * @param num_families number of families
+     * @param random source of randomness
+     * @return a table with the tree's leaf names
+     */
+    public OccurrenceTable simulateTable(int num_families, SplittableRandom random)
+    {
+        int[][] profiles = new int[num_families][tree.getNumLeaves()];
+        int[] copies = new int[tree.getNumNodes()];
+        for (int family_idx=0; family_idx<num_families; family_idx++)
+        {
+            simulateFamily(random, copies);
+            System.arraycopy(copies, 0, profiles[family_idx], 0, profiles[family_idx].length);
+        }
+        return createTable(profiles);
+    }
+
+    /**
+     * Generates a table of independent families in parallel.
+     *
+     * @param num_families number of families
+     * @param seed seed for the random streams
+     * @return a table with the tree's leaf names, and family names F1,F2,...
+     */
+    public OccurrenceTable simulateTable(int num_families, long seed)
+    {
+        int[][] profiles = new int[num_families][tree.getNumLeaves()];
+        SplittableRandom master = new SplittableRandom(seed);
+        int num_chunks = (num_families+CHUNK_SIZE-1)/CHUNK_SIZE;
+        List<RecursiveAction> tasks = new ArrayList<>();
+        for (int chunk=0; chunk<num_chunks; chunk++)
+        {
+            SplittableRandom random = master.split();
+            int first_family = chunk*CHUNK_SIZE;
+            int last_family = Math.min(num_families, first_family+CHUNK_SIZE);
+            tasks.add(new RecursiveAction()
+            {
+                @Override
+                protected void compute()
+                {
+                    int[] copies = new int[tree.getNumNodes()];
+                    for (int family_idx=first_family; family_idx<last_family; family_idx++)
+                    {
+                        simulateFamily(random, copies);
+                        System.arraycopy(copies, 0, profiles[family_idx], 0, profiles[family_idx].length);
+                    }
+                }
+            });
+        }
+        invokeAll(tasks);
+        return createTable(profiles);
+    }
+
+    private OccurrenceTable createTable(int[][] profiles)
+    {
+        OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+        table.setTable(profiles, null);
+        return table;
+    }
+
+    private void invokeAll(List<RecursiveAction> tasks)
+    {
+        thread_pool.invoke(new RecursiveAction()
+        {
+            @Override
+            protected void compute()
+            {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * Generates families in parallel and writes them as a table
+     * (same format as {@link OccurrenceTable#getFormattedTable(boolean) }, with family names F1,F2,...),
+     * in blocks of bounded size. With the same seed, the families are the same as with {@link #simulateTable(int, long) }.
+     *
+     * @param num_families number of families
+     * @param seed seed for the random streams
+     * @param out where the table is written (not closed)
+     * @throws IOException if writing fails
+     */
+    public void writeTable(int num_families, long seed, Writer out) throws IOException
+    {
+        String[] leaf_names = IndexedTreeTraversal.getLeafNames(tree);
+        StringBuilder header = new StringBuilder("Family");
+        for (String name: leaf_names)
+            header.append('\t').append(name);
+        header.append('\n');
+        out.write(header.toString());
+
+        SplittableRandom master = new SplittableRandom(seed);
+        int num_chunks = (num_families+CHUNK_SIZE-1)/CHUNK_SIZE;
+        String[] block_output = new String[CHUNKS_PER_BLOCK];
+        for (int first_chunk=0; first_chunk<num_chunks; first_chunk+=CHUNKS_PER_BLOCK)
+        {
+            int last_chunk = Math.min(num_chunks, first_chunk+CHUNKS_PER_BLOCK);
+            List<RecursiveAction> tasks = new ArrayList<>();
+            for (int chunk=first_chunk; chunk<last_chunk; chunk++)
+            {
+                SplittableRandom random = master.split();
+                int first_family = chunk*CHUNK_SIZE;
+                int last_family = Math.min(num_families, first_family+CHUNK_SIZE);
+                int slot = chunk-first_chunk;
+                tasks.add(new RecursiveAction()
+                {
+                    @Override
+                    protected void compute()
+                    {
+                        int num_leaves = tree.getNumLeaves();
+                        int[] copies = new int[tree.getNumNodes()];
+                        StringBuilder sb = new StringBuilder((last_family-first_family)*(8+3*num_leaves));
+                        for (int family_idx=first_family; family_idx<last_family; family_idx++)
+                        {
+                            simulateFamily(random, copies);
+                            sb.append('F').append(family_idx+1);
+                            for (int leaf_idx=0; leaf_idx<num_leaves; leaf_idx++)
+                                sb.append('\t').append(copies[leaf_idx]);
+                            sb.append('\n');
+                        }
+                        block_output[slot] = sb.toString();
+                    }
+                });
+            }
+            invokeAll(tasks);
+            for (int slot=0; slot<last_chunk-first_chunk; slot++)
+            {
+                out.write(block_output[slot]);
+                block_output[slot] = null;
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Test code --- reads a tree and a rate file, and writes a simulated table to stdout.
+     *
+     * @param args command line arguments: tree, rates, number of families, and optionally the seed
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 3 && args.length != 4)
+            throw new IllegalArgumentException("Call as java "+Simulator.class.getName()+" tree rates families [seed]");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        RateVariation rates = RateVariation.readRates(new count.io.GeneralizedFileReader(args[1]), tree);
+        if (rates.getMainTree().getRootDistribution()==null)
+            throw new IllegalArgumentException("Rates file must specify the root prior");
+        int num_families = Integer.parseInt(args[2]);
+        long seed = (args.length==4?Long.parseLong(args[3]):2016L);
+
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(Simulator.class));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+args[0]));
+        out.println(Executable.getStandardHeader("Rates file: "+args[1]));
+        out.println(Executable.getStandardHeader("Families: "+num_families+", seed "+seed));
+
+        long time_start = System.currentTimeMillis();
+        Simulator S = new Simulator(rates);
+        long time_mid = System.currentTimeMillis();
+        Writer W = new BufferedWriter(new OutputStreamWriter(out), 1<<16);
+        S.writeTable(num_families, seed, W);
+        long time_end = System.currentTimeMillis();
+        out.println(Executable.getStandardHeader("Time: "+(time_mid-time_start)+" ms tables, "+(time_end-time_mid)+" ms simulation"));
+    }
+}
@@ -43,13 +43,41 @@ public class TreeWithRates implements ProbabilisticEvolutionModel.BirthDeath
     
     private DiscreteDistribution root_distribution;
     
+    /**
+     * Modification stamps for the edges (indexed by child node).
+     */
+    private final long[] edge_versions;
+    
     public TreeWithRates(IndexedTree phylo, DiscreteDistribution root_distribution)
     {
         this.tree = phylo;
+        this.edge_versions = new long[phylo.getNumNodes()];
         setRootDistribution(root_distribution);
         initRates();
     }
     
+    /**
+     * A copy with the same phylogeny, root distribution and rates; the copies
+     * can be modified independently.
+     *
+     * @param that the model to copy
+     */
+    public TreeWithRates(TreeWithRates that)
+    {
+        this.tree = that.tree;
+        this.edge_versions = new long[tree.getNumNodes()];
+        this.root_distribution = that.root_distribution;
+        this.common_gain_rate = that.common_gain_rate;
+        this.common_loss_rate = that.common_loss_rate;
+        this.common_duplication_rate = that.common_duplication_rate;
+        this.common_edge_length = that.common_edge_length;
+        this.gain_rates = (that.gain_rates==null?null:that.gain_rates.clone());
+        this.loss_rates = (that.loss_rates==null?null:that.loss_rates.clone());
+        this.duplication_rates = (that.duplication_rates==null?null:that.duplication_rates.clone());
+        this.edge_lengths = (that.edge_lengths==null?null:that.edge_lengths.clone());
+        updateVersions();
+    }
+    
     private void initRates()
     {
         double f= edgeNormalizingFactor();
@@ -178,12 +206,36 @@ public class TreeWithRates implements ProbabilisticEvolutionModel.BirthDeath
         return this.tree;
     }
     
+    @Override
+    public final long getEdgeVersion(int node_idx)
+    {
+        return edge_versions[node_idx];
+    }
+    
+    /**
+     * Marks every edge as modified.
+     */
+    private void updateVersions()
+    {
+        Arrays.fill(edge_versions, BirthDeathProcess.newVersion());
+    }
+    
+    /**
+     * Marks an edge as modified.
+     */
+    private void updateVersion(int edge_idx)
+    {
+        edge_versions[edge_idx] = BirthDeathProcess.newVersion();
+    }
+    
     /**
      * Sets common edge length (and erases lineage-specific values).
      * @param len
      */
     public void setEdgeLength(double len)
     {
+        if (edge_lengths != null || common_edge_length != len)
+            updateVersions();
         this.edge_lengths = null;
         this.common_edge_length = len;
     }
@@ -201,6 +253,8 @@ public class TreeWithRates implements ProbabilisticEvolutionModel.BirthDeath
             edge_lengths = new double[tree.getNumEdges()];
             Arrays.fill(edge_lengths, common_edge_length);
         }
+        if (edge_lengths[edge_idx] != len)
+            updateVersion(edge_idx);
         edge_lengths[edge_idx] = len;
     }
     
@@ -211,6 +265,8 @@ public class TreeWithRates implements ProbabilisticEvolutionModel.BirthDeath
      */
     public void setGainRate(double r)
     {
+        if (gain_rates != null || common_gain_rate != r)
+            updateVersions();
         this.gain_rates = null;
         this.common_gain_rate = r;
     }
@@ -227,6 +283,8 @@ public class TreeWithRates implements ProbabilisticEvolutionModel.BirthDeath
             gain_rates = new double[tree.getNumEdges()];
             Arrays.fill(gain_rates, common_gain_rate);
         }
+        if (gain_rates[edge_idx] != r)
+            updateVersion(edge_idx);
         gain_rates[edge_idx] = r;
     }
     
@@ -237,6 +295,8 @@ public class TreeWithRates implements ProbabilisticEvolutionModel.BirthDeath
      */
     public void setDuplicationRate(double r)
     {
+        if (duplication_rates != null || common_duplication_rate != r)
+            updateVersions();
         this.duplication_rates = null;
         this.common_duplication_rate = r;
     }
@@ -255,6 +315,8 @@ public class TreeWithRates implements ProbabilisticEvolutionModel.BirthDeath
             duplication_rates = new double[tree.getNumEdges()];
             Arrays.fill(duplication_rates, common_duplication_rate);
         }
+        if (duplication_rates[edge_idx] != r)
+            updateVersion(edge_idx);
         duplication_rates[edge_idx] = r;
     }
     
@@ -265,6 +327,8 @@ public class TreeWithRates implements ProbabilisticEvolutionModel.BirthDeath
      */
     public void setLossRate(double r)
     {
+        if (loss_rates != null || common_loss_rate != r)
+            updateVersions();
         this.loss_rates = null;
         this.common_loss_rate = r;
     }
@@ -282,6 +346,8 @@ public class TreeWithRates implements ProbabilisticEvolutionModel.BirthDeath
             loss_rates = new double[tree.getNumEdges()];
             Arrays.fill(loss_rates, common_loss_rate);
         }
+        if (loss_rates[edge_idx] != r)
+            updateVersion(edge_idx);
         loss_rates[edge_idx] = r;
     }
     
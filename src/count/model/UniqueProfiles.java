@@ -0,0 +1,239 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import java.util.Arrays;
+
+/**
+ * Compression of an {@link OccurrenceTable} into unique profiles.
+ *
+ * Families with identical profiles (same sizes and same missing entries)
+ * are collapsed into a single pattern with a multiplicity.
+ * Per-pattern results (such as log-likelihoods) are mapped
+ * back to the families by {@link #expand(double[], double[]) }.
+ *
+ * Patterns are found with an open-addressing hash table over the
+ * <code>int[]</code> rows, without building strings as
+ * {@link PhyleticProfile#getPatternString() } would.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class UniqueProfiles
+{
+    /**
+     * Compresses the rows of the table.
+     *
+     * @param table family profiles
+     */
+    public UniqueProfiles(OccurrenceTable table)
+    {
+        this.table = table;
+        int num_families = table.getFamilyCount();
+        this.family_patterns = new int[num_families];
+
+        int capacity = Integer.highestOneBit(Math.max(2*num_families, 16)-1)<<1; // power of 2, at most half full
+        int[] hash_slots = new int[capacity]; // pattern index+1; 0 is empty
+        int[] pattern_hashes = new int[Math.max(num_families,1)];
+        int[] representatives = new int[Math.max(num_families,1)];
+        int[] multiplicities = new int[Math.max(num_families,1)];
+        int num_patterns = 0;
+
+        int mask = capacity-1;
+        for (int family_idx=0; family_idx<num_families; family_idx++)
+        {
+            int[] profile = table.getSizes(family_idx);
+            int h = hashCode(profile);
+            int slot = h & mask;
+            int pattern_idx = -1;
+            while (hash_slots[slot]!=0)
+            {
+                int p = hash_slots[slot]-1;
+                if (pattern_hashes[p]==h && Arrays.equals(profile, table.getSizes(representatives[p])))
+                {
+                    pattern_idx = p;
+                    break;
+                }
+                slot = (slot+1) & mask;
+            }
+            if (pattern_idx<0)
+            {
+                pattern_idx = num_patterns++;
+                hash_slots[slot] = pattern_idx+1;
+                pattern_hashes[pattern_idx] = h;
+                representatives[pattern_idx] = family_idx;
+            }
+            multiplicities[pattern_idx]++;
+            family_patterns[family_idx] = pattern_idx;
+        }
+
+        this.pattern_families = Arrays.copyOf(representatives, num_patterns);
+        this.pattern_multiplicities = Arrays.copyOf(multiplicities, num_patterns);
+    }
+
+    private final OccurrenceTable table;
+    /**
+     * Pattern index for each family.
+     */
+    private final int[] family_patterns;
+    /**
+     * First family with the pattern.
+     */
+    private final int[] pattern_families;
+    /**
+     * Number of families with the pattern.
+     */
+    private final int[] pattern_multiplicities;
+    /**
+     * Lazily created table of patterns.
+     */
+    private OccurrenceTable pattern_table = null;
+
+    /**
+     * Mixing hash function for the profile entries.
+     *
+     * @param profile array of family sizes
+     * @return hash value
+     */
+    private static int hashCode(int[] profile)
+    {
+        long h = 0x9E3779B97F4A7C15L;
+        for (int i=0; i<profile.length; i++)
+        {
+            h = (h ^ profile[i]) * 0xBF58476D1CE4E5B9L;
+            h ^= (h >>> 31);
+        }
+        return (int)(h ^ (h>>>32));
+    }
+
+    /**
+     * The compressed table.
+     *
+     * @return the table with which this instance was created
+     */
+    public OccurrenceTable getTable()
+    {
+        return table;
+    }
+
+    /**
+     * Number of distinct profiles.
+     *
+     * @return a non-negative integer, at most the number of families
+     */
+    public int getPatternCount()
+    {
+        return pattern_multiplicities.length;
+    }
+
+    /**
+     * Profile of a pattern.
+     *
+     * @param pattern_idx index of the pattern
+     * @return the table row of the first family with this pattern (not a copy)
+     */
+    public int[] getPattern(int pattern_idx)
+    {
+        return table.getSizes(pattern_families[pattern_idx]);
+    }
+
+    /**
+     * Number of families with a given pattern.
+     *
+     * @param pattern_idx index of the pattern
+     * @return a positive integer
+     */
+    public int getMultiplicity(int pattern_idx)
+    {
+        return pattern_multiplicities[pattern_idx];
+    }
+
+    /**
+     * First family with a given pattern.
+     *
+     * @param pattern_idx index of the pattern
+     * @return family index in the table
+     */
+    public int getRepresentativeFamily(int pattern_idx)
+    {
+        return pattern_families[pattern_idx];
+    }
+
+    /**
+     * Pattern of a family.
+     *
+     * @param family_idx index of the family in the table
+     * @return pattern index
+     */
+    public int getPatternIndex(int family_idx)
+    {
+        return family_patterns[family_idx];
+    }
+
+    /**
+     * A table with one row per pattern, in pattern index order;
+     * family names are those of the representative families.
+     * The table is created at the first call.
+     *
+     * @return a table sharing the row arrays with the original table
+     */
+    public OccurrenceTable getPatternTable()
+    {
+        if (pattern_table == null)
+            pattern_table = createPatternTable();
+        return pattern_table;
+    }
+    
+    private OccurrenceTable createPatternTable()
+    {
+        int num_patterns = getPatternCount();
+        int[][] rows = new int[num_patterns][];
+        String[] names = new String[num_patterns];
+        for (int pattern_idx=0; pattern_idx<num_patterns; pattern_idx++)
+        {
+            rows[pattern_idx] = getPattern(pattern_idx);
+            names[pattern_idx] = table.getFamilyName(pattern_families[pattern_idx]);
+        }
+        OccurrenceTable pattern_table = new OccurrenceTable(table.getTaxonNames());
+        pattern_table.setTable(rows, names);
+        return pattern_table;
+    }
+
+    /**
+     * Copies per-pattern values to the families.
+     *
+     * @param pattern_values values indexed by patterns
+     * @param family_values array filled with the values by family index
+     */
+    public void expand(double[] pattern_values, double[] family_values)
+    {
+        for (int family_idx=0; family_idx<family_patterns.length; family_idx++)
+            family_values[family_idx] = pattern_values[family_patterns[family_idx]];
+    }
+
+    /**
+     * Sum of per-pattern values weighted by the multiplicities (in pattern index order).
+     *
+     * @param pattern_values values indexed by patterns
+     * @return sum across all families
+     */
+    public double getWeightedSum(double[] pattern_values)
+    {
+        double sum = 0.0;
+        for (int pattern_idx=0; pattern_idx<pattern_multiplicities.length; pattern_idx++)
+            sum += pattern_multiplicities[pattern_idx]*pattern_values[pattern_idx];
+        return sum;
+    }
+}
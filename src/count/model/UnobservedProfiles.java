@@ -0,0 +1,327 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.util.Executable;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Probability of the profiles that are excluded from a filtered table,
+ * for the correction of the likelihood: families present at fewer than
+ * <var>m</var> leaves (<var>m</var>=1: the empty profile; <var>m</var>=2: also the
+ * profiles with a single nonzero leaf).
+ * If the table has <var>N</var> families, the conditional log-likelihood
+ * is the log-likelihood minus <var>N</var> log(1-<var>P</var>) where
+ * <var>P</var> is the probability of the excluded profiles under the mixture.
+ *
+ * The probabilities depend only on the model; they are computed in closed form
+ * from the extinction probabilities of the {@link BirthDeathProcess.TransientCache}:
+ * the empty profile has probability
+ * <var>R</var>(&epsilon;<sub>root</sub>)&prod;<sub><var>u</var></sub> <var>G</var><sub><var>u</var></sub>(&epsilon;<sub><var>u</var></sub>)
+ * with the generating functions <var>R</var> of the root prior and <var>G</var><sub><var>u</var></sub> of the gains on each edge.
+ * For the profiles with leaf <var>j</var> as the only nonzero entry, the same product
+ * is recomputed along the path from <var>j</var> to the root with the extinction probability of <var>j</var> set to 1
+ * (which gives the probability that all other leaves are empty),
+ * and the probability of the empty profile is subtracted.
+ *
+ * After {@link #computeParameters() }, the transients are refreshed incrementally,
+ * and only the classes that changed are recomputed.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class UnobservedProfiles
+{
+    /**
+     * Instantiation for a single rate model.
+     *
+     * @param model the underlying rate model
+     * @param min_lineages minimum number of leaves with nonzero entries in the table's profiles: 0, 1 or 2
+     */
+    public UnobservedProfiles(ProbabilisticEvolutionModel.BirthDeath model, int min_lineages)
+    {
+        this(new BirthDeathProcess.TransientCache(model), null, min_lineages);
+    }
+
+    /**
+     * Instantiation for a rate-variation model.
+     *
+     * @param rate_variation mixture model
+     * @param min_lineages minimum number of leaves with nonzero entries in the table's profiles: 0, 1 or 2
+     */
+    public UnobservedProfiles(RateVariation rate_variation, int min_lineages)
+    {
+        this(new BirthDeathProcess.TransientCache(rate_variation), rate_variation, min_lineages);
+    }
+
+    private UnobservedProfiles(BirthDeathProcess.TransientCache transients, RateVariation rate_variation, int min_lineages)
+    {
+        if (min_lineages<0 || min_lineages>2)
+            throw new IllegalArgumentException("Minimum number of lineages must be 0, 1 or 2");
+        this.transients = transients;
+        this.rate_variation = rate_variation;
+        this.min_lineages = min_lineages;
+        this.tree = transients.getClassModel(0).getPhylogeny();
+        int num_classes = transients.getNumClasses();
+        this.class_empty = new double[num_classes];
+        this.class_singleton = new double[num_classes];
+        this.class_versions = new long[num_classes];
+        Arrays.fill(class_versions, -1L);
+        int num_nodes = tree.getNumNodes();
+        this.path_extinction = new double[num_nodes];
+        computeClasses();
+    }
+
+    private final BirthDeathProcess.TransientCache transients;
+    /**
+     * Null without rate variation.
+     */
+    private final RateVariation rate_variation;
+    private final int min_lineages;
+    private final IndexedTree tree;
+    /**
+     * Probability of the empty profile in each class.
+     */
+    private final double[] class_empty;
+    /**
+     * Probability of the profiles with a single nonzero leaf in each class (if needed).
+     */
+    private final double[] class_singleton;
+    /**
+     * Change count of the transients with which the class was computed.
+     */
+    private final long[] class_versions;
+    /**
+     * Scratch space: extinction probabilities along a path, with a leaf considered extinct.
+     */
+    private final double[] path_extinction;
+
+    public int getMinimumLineages()
+    {
+        return min_lineages;
+    }
+
+    /**
+     * Refreshes the probabilities after the model parameters changed.
+     * (With rate variation, this includes the changes of the class multipliers and probabilities,
+     * but not a change in the number of classes.)
+     */
+    public void computeParameters()
+    {
+        transients.update();
+        computeClasses();
+    }
+
+    private void computeClasses()
+    {
+        for (int class_idx=0; class_idx<class_empty.length; class_idx++)
+        {
+            long version = transients.getChangeCount(class_idx);
+            if (version != class_versions[class_idx])
+            {
+                computeClass(class_idx);
+                class_versions[class_idx] = version;
+            }
+        }
+    }
+
+    /**
+     * Empty and single-lineage probabilities for a class.
+     */
+    private void computeClass(int class_idx)
+    {
+        int num_nodes = tree.getNumNodes();
+        int root_idx = num_nodes-1;
+        // the gain factors: log-sum of the nonzero ones, and the number of zeros
+        double log_gain = 0.0;
+        int num_zero_gains = 0;
+        for (int node_idx=0; node_idx<root_idx; node_idx++)
+        {
+            double G = transients.getTransient0GeneratingFunction(class_idx, node_idx, transients.getExtinction(class_idx, node_idx));
+            if (G==0.0)
+                num_zero_gains++;
+            else
+                log_gain += Math.log(G);
+        }
+        double root_factor = transients.getRootGeneratingFunction(class_idx, transients.getExtinction(class_idx, root_idx));
+        double empty = (num_zero_gains==0?root_factor*Math.exp(log_gain):0.0);
+        class_empty[class_idx] = empty;
+
+        if (min_lineages<2)
+            return;
+        double singleton = 0.0;
+        int num_leaves = tree.getNumLeaves();
+        for (int leaf_idx=0; leaf_idx<num_leaves; leaf_idx++)
+        {
+            // all other leaves empty: leaf is extinct for sure
+            double path_log_gain = log_gain;
+            int path_zero_gains = num_zero_gains;
+            int node_idx = leaf_idx;
+            path_extinction[node_idx] = 1.0;
+            while (node_idx != root_idx)
+            {
+                double G = transients.getTransient0GeneratingFunction(class_idx, node_idx, transients.getExtinction(class_idx, node_idx));
+                double path_G = transients.getTransient0GeneratingFunction(class_idx, node_idx, path_extinction[node_idx]);
+                if (G==0.0)
+                    path_zero_gains--;
+                else
+                    path_log_gain -= Math.log(G);
+                if (path_G==0.0)
+                    path_zero_gains++;
+                else
+                    path_log_gain += Math.log(path_G);
+
+                int parent_idx = tree.getParentIndex(node_idx);
+                double eps = 1.0;
+                int num_children = tree.getNumChildren(parent_idx);
+                for (int ci=0; ci<num_children; ci++)
+                {
+                    int child_idx = tree.getChildIndex(parent_idx, ci);
+                    eps *= (child_idx == node_idx
+                            ?transients.getTransient1GeneratingFunction(class_idx, child_idx, path_extinction[child_idx])
+                            :transients.getEdgeExtinction(class_idx, child_idx));
+                }
+                path_extinction[parent_idx] = eps;
+                node_idx = parent_idx;
+            }
+            double others_empty = (path_zero_gains==0
+                    ?transients.getRootGeneratingFunction(class_idx, path_extinction[root_idx])*Math.exp(path_log_gain)
+                    :0.0);
+            singleton += Math.max(0.0, others_empty-empty);
+        }
+        class_singleton[class_idx] = singleton;
+    }
+
+    /**
+     * Probability of the empty profile in a class.
+     *
+     * @param class_idx rate class (0 without rate variation)
+     * @return probability that the family has no copies at the leaves
+     */
+    public double getEmptyProbability(int class_idx)
+    {
+        return class_empty[class_idx];
+    }
+
+    /**
+     * Probability of the excluded profiles in a class.
+     *
+     * @param class_idx rate class (0 without rate variation)
+     * @return probability that the family is present at fewer than the minimum number of leaves
+     */
+    public double getUnobservedProbability(int class_idx)
+    {
+        switch (min_lineages)
+        {
+            case 0: return 0.0;
+            case 1: return class_empty[class_idx];
+            default: return class_empty[class_idx]+class_singleton[class_idx];
+        }
+    }
+
+    /**
+     * Probability of the excluded profiles under the mixture.
+     *
+     * @return weighted sum of the class probabilities
+     */
+    public double getUnobservedProbability()
+    {
+        if (rate_variation == null)
+            return getUnobservedProbability(0);
+        double P = 0.0;
+        for (int class_idx=0; class_idx<class_empty.length; class_idx++)
+            if (rate_variation.isPertinentClass(class_idx))
+                P += rate_variation.getClassProbability(class_idx)*getUnobservedProbability(class_idx);
+        return P;
+    }
+
+    /**
+     * Log-likelihood conditioned on the exclusion of the unobserved profiles.
+     *
+     * @param log_likelihood sum of family log-likelihoods
+     * @param num_families number of families in the table
+     * @return log_likelihood-num_families*log(1-<var>P</var>)
+     */
+    public double getCorrectedLogLikelihood(double log_likelihood, int num_families)
+    {
+        return log_likelihood-num_families*Math.log1p(-getUnobservedProbability());
+    }
+
+    /**
+     * Test code --- reads a tree and a rate file, and compares the
+     * probabilities of the excluded profiles with the likelihoods of the corresponding profiles.
+     *
+     * @param args command line arguments: tree, rates, and optionally a table for the corrected likelihood
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length != 2 && args.length != 3)
+            throw new IllegalArgumentException("Call as java "+UnobservedProfiles.class.getName()+" tree rates [table]");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        RateVariation rates = RateVariation.readRates(new count.io.GeneralizedFileReader(args[1]), tree);
+        if (rates.getMainTree().getRootDistribution()==null)
+            throw new IllegalArgumentException("Rates file must specify the root prior");
+
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(UnobservedProfiles.class));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+args[0]));
+        out.println(Executable.getStandardHeader("Rates file: "+args[1]));
+
+        UnobservedProfiles U = new UnobservedProfiles(rates, 2);
+        // direct computation by the pruning algorithm, with a generous truncation
+        int num_leaves = tree.getNumLeaves();
+        int[] profile = new int[num_leaves];
+        for (int class_idx=0; class_idx<rates.getNumClasses(); class_idx++)
+        {
+            if (!rates.isPertinentClass(class_idx))
+                continue;
+            Likelihood L = new Likelihood(rates.getClassModel(class_idx));
+            L.setTruncation(100, 1.0);
+            Arrays.fill(profile, 0);
+            double empty = Math.exp(L.getLogLikelihood(profile));
+            double singleton = 0.0;
+            for (int leaf_idx=0; leaf_idx<num_leaves; leaf_idx++)
+            {
+                profile[leaf_idx] = -1;
+                singleton += Math.exp(L.getLogLikelihood(profile))-empty;
+                profile[leaf_idx] = 0;
+            }
+            out.println("#CLASS\t"+class_idx+"\tempty "+U.getEmptyProbability(class_idx)+"\t(direct "+empty+")"
+                    +"\texcluded "+U.getUnobservedProbability(class_idx)+"\t(direct "+(empty+singleton)+")");
+        }
+        out.println("#UNOBSERVED\t"+U.getUnobservedProbability());
+
+        if (args.length==3)
+        {
+            OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+            table.readTable(new count.io.GeneralizedFileReader(args[2]), true);
+            double LL = new ParallelLikelihood(rates).getLogLikelihood(table);
+            out.println("#LL\t"+LL+"\tcorrected "+U.getCorrectedLogLikelihood(LL, table.getFamilyCount()));
+        }
+
+        // incremental refresh
+        TreeWithRates main_tree = rates.getMainTree();
+        main_tree.setLossRate(0, 2.0*main_tree.getLossRate(0));
+        long time_start = System.nanoTime();
+        U.computeParameters();
+        long time_end = System.nanoTime();
+        out.println("#UNOBSERVED(changed)\t"+U.getUnobservedProbability()
+                +"\t(full "+new UnobservedProfiles(rates, 2).getUnobservedProbability()+")"
+                +"\ttime "+((time_end-time_start)/1000.0)+" us");
+    }
+}
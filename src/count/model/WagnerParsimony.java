@@ -0,0 +1,589 @@
+/*
+ * Copyright 2016 Mikl&oacute;s Cs&#369;r&ouml;s.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package count.model;
+
+import count.util.Executable;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Wagner parsimony for copy numbers with asymmetric gain and loss penalties.
+ *
+ * A change from <var>x</var> copies at the parent to <var>y</var> at the child
+ * costs <var>g</var>(<var>y</var>-<var>x</var>) if <var>y</var>&gt;<var>x</var>
+ * and <var>l</var>(<var>x</var>-<var>y</var>) if <var>y</var>&lt;<var>x</var>.
+ * The minimum cost of a subtree is a convex piecewise linear function of the
+ * copy number at its root, represented here by its value at 0 and its breakpoints
+ * with the slopes between them. The cost function on the edge above a node
+ * (the min-plus convolution of the node's function with the change cost)
+ * is obtained by clamping the slopes to [-<var>g</var>, <var>l</var>],
+ * and the function at a node is the sum of the edge functions of its children:
+ * both take time linear in the number of breakpoints, which is at most the
+ * number of distinct copy numbers in the subtree.
+ * The reconstruction picks, in a preorder pass, the copy number at the child that is closest
+ * to the parent's among the minimizers of the child's edge cost.
+ *
+ * Missing entries impose no constraint. The families are processed in parallel
+ * on a fork/join pool, with reused per-node buffers in every worker;
+ * the per-edge totals are combined along a fixed recursive split.
+ *
+ * @author Mikl&oacute;s Cs&#369;r&ouml;s
+ */
+public class WagnerParsimony
+{
+    /**
+     * Default number of families processed by a single task.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256;
+
+    /**
+     * Instantiation for a table, with unit gain and loss penalties.
+     *
+     * @param tree phylogeny; table columns are in leaf index order
+     * @param table family profiles
+     */
+    public WagnerParsimony(IndexedTree tree, OccurrenceTable table)
+    {
+        this.tree = tree;
+        this.table = table;
+        int num_nodes = tree.getNumNodes();
+        this.gain_counts = new long[num_nodes];
+        this.loss_counts = new long[num_nodes];
+        this.copy_counts = new long[num_nodes];
+        this.family_scores = new double[table.getFamilyCount()];
+        this.idle_solvers = new ConcurrentLinkedQueue<>();
+        this.chunk_size = DEFAULT_CHUNK_SIZE;
+        setPenalties(1.0, 1.0);
+    }
+
+    private final IndexedTree tree;
+    private final OccurrenceTable table;
+    private double gain_penalty;
+    private double loss_penalty;
+    private int chunk_size;
+
+    private final long[] gain_counts;
+    private final long[] loss_counts;
+    private final long[] copy_counts;
+    private final double[] family_scores;
+    private double score;
+
+    /**
+     * Solvers not in use by any thread.
+     */
+    private final ConcurrentLinkedQueue<Solver> idle_solvers;
+
+    /**
+     * Sets the penalties for a unit increase and a unit decrease of the copy number on an edge.
+     *
+     * @param gain penalty for one gained copy (positive)
+     * @param loss penalty for one lost copy (positive)
+     */
+    public final void setPenalties(double gain, double loss)
+    {
+        if (!(gain>0.0) || !(loss>0.0) || Double.isInfinite(gain) || Double.isInfinite(loss))
+            throw new IllegalArgumentException("Penalties must be positive and finite");
+        this.gain_penalty = gain;
+        this.loss_penalty = loss;
+    }
+
+    public double getGainPenalty()
+    {
+        return gain_penalty;
+    }
+
+    public double getLossPenalty()
+    {
+        return loss_penalty;
+    }
+
+    /**
+     * Sets the number of families processed sequentially within one task.
+     *
+     * @param chunk_size positive integer
+     */
+    public void setChunkSize(int chunk_size)
+    {
+        if (chunk_size<1)
+            throw new IllegalArgumentException("Chunk size must be positive");
+        this.chunk_size = chunk_size;
+    }
+
+    /**
+     * Computes the reconstructions with the common fork/join pool.
+     */
+    public void computeParsimony()
+    {
+        computeParsimony(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Computes the reconstructions for all families, and the per-edge totals.
+     *
+     * @param thread_pool pool for the family tasks
+     */
+    public void computeParsimony(ForkJoinPool thread_pool)
+    {
+        Totals T = thread_pool.invoke(new FamilyTask(0, table.getFamilyCount()));
+        System.arraycopy(T.gains, 0, gain_counts, 0, gain_counts.length);
+        System.arraycopy(T.losses, 0, loss_counts, 0, loss_counts.length);
+        System.arraycopy(T.copies, 0, copy_counts, 0, copy_counts.length);
+        score = T.score;
+    }
+
+    /**
+     * Total parsimony score across the families.
+     *
+     * @return sum of minimum family scores
+     */
+    public double getScore()
+    {
+        return score;
+    }
+
+    /**
+     * Minimum score of a family.
+     *
+     * @param family_idx family index
+     * @return total penalty of the optimal reconstruction
+     */
+    public double getFamilyScore(int family_idx)
+    {
+        return family_scores[family_idx];
+    }
+
+    /**
+     * Total number of copies gained on the edge leading to a node across the families.
+     *
+     * @param node_idx node index
+     * @return sum of increases (at the root: the copies at the root)
+     */
+    public long getGainCount(int node_idx)
+    {
+        return gain_counts[node_idx];
+    }
+
+    /**
+     * Total number of copies lost on the edge leading to a node across the families.
+     *
+     * @param node_idx node index
+     * @return sum of decreases
+     */
+    public long getLossCount(int node_idx)
+    {
+        return loss_counts[node_idx];
+    }
+
+    /**
+     * Total number of copies at a node across the families.
+     *
+     * @param node_idx node index
+     * @return sum of reconstructed copy numbers
+     */
+    public long getCopyCount(int node_idx)
+    {
+        return copy_counts[node_idx];
+    }
+
+    /**
+     * Optimal reconstruction for one family.
+     *
+     * @param family_idx family index
+     * @return copy numbers for all nodes (missing leaves get the reconstructed value)
+     */
+    public int[] getAncestralCopyNumbers(int family_idx)
+    {
+        Solver S = acquireSolver();
+        try
+        {
+            int[] copies = new int[tree.getNumNodes()];
+            S.solve(table.getSizes(family_idx), copies);
+            return copies;
+        } finally
+        {
+            idle_solvers.add(S);
+        }
+    }
+
+    private Solver acquireSolver()
+    {
+        Solver S = idle_solvers.poll();
+        if (S == null)
+            S = new Solver();
+        return S;
+    }
+
+    /**
+     * Per-edge sums over a range of families.
+     */
+    private static class Totals
+    {
+        Totals(int num_nodes)
+        {
+            this.gains = new long[num_nodes];
+            this.losses = new long[num_nodes];
+            this.copies = new long[num_nodes];
+        }
+        private final long[] gains;
+        private final long[] losses;
+        private final long[] copies;
+        private double score;
+
+        private void add(Totals that)
+        {
+            for (int node_idx=0; node_idx<gains.length; node_idx++)
+            {
+                gains[node_idx] += that.gains[node_idx];
+                losses[node_idx] += that.losses[node_idx];
+                copies[node_idx] += that.copies[node_idx];
+            }
+            score += that.score;
+        }
+    }
+
+    /**
+     * Recursive task for a range of families.
+     */
+    private class FamilyTask extends RecursiveTask<Totals>
+    {
+        FamilyTask(int first_family, int last_family)
+        {
+            this.first_family = first_family;
+            this.last_family = last_family;
+        }
+
+        private final int first_family;
+        /**
+         * Exclusive end of the family range.
+         */
+        private final int last_family;
+
+        @Override
+        protected Totals compute()
+        {
+            if (last_family-first_family <= chunk_size)
+            {
+                int num_nodes = tree.getNumNodes();
+                Totals T = new Totals(num_nodes);
+                int[] copies = new int[num_nodes];
+                Solver S = acquireSolver();
+                try
+                {
+                    for (int family_idx=first_family; family_idx<last_family; family_idx++)
+                    {
+                        double family_score = S.solve(table.getSizes(family_idx), copies);
+                        family_scores[family_idx] = family_score;
+                        T.score += family_score;
+                        for (int node_idx=0; node_idx<num_nodes; node_idx++)
+                        {
+                            int y = copies[node_idx];
+                            int x = tree.isRoot(node_idx)?0:copies[tree.getParentIndex(node_idx)];
+                            if (y>x)
+                                T.gains[node_idx] += y-x;
+                            else
+                                T.losses[node_idx] += x-y;
+                            T.copies[node_idx] += y;
+                        }
+                    }
+                } finally
+                {
+                    idle_solvers.add(S);
+                }
+                return T;
+            } else
+            {
+                int mid = (first_family+last_family)/2;
+                FamilyTask left = new FamilyTask(first_family, mid);
+                FamilyTask right = new FamilyTask(mid, last_family);
+                right.fork();
+                Totals left_T = left.compute();
+                Totals right_T = right.join();
+                left_T.add(right_T);
+                return left_T;
+            }
+        }
+    }
+
+    /**
+     * Dynamic programming for one family at a time, with per-node buffers
+     * reused across families. Not thread-safe.
+     */
+    private class Solver
+    {
+        Solver()
+        {
+            int num_nodes = tree.getNumNodes();
+            this.edge_positions = new int[num_nodes][];
+            this.edge_slopes = new double[num_nodes][];
+            this.edge_length = new int[num_nodes];
+            this.edge_value = new double[num_nodes];
+            this.lower = new int[num_nodes];
+            this.upper = new int[num_nodes];
+            this.node_positions = new int[4];
+            this.node_slopes = new double[4];
+            this.sum_positions = new int[4];
+            this.sum_slopes = new double[4];
+        }
+
+        /**
+         * Cost function on the edge above each node, as a function of the parent's copy number:
+         * value at 0, and segments starting at the given positions (the first is 0) with the given slopes;
+         * the last segment extends to infinity.
+         */
+        private final int[][] edge_positions;
+        private final double[][] edge_slopes;
+        private final int[] edge_length;
+        private final double[] edge_value;
+        /**
+         * For every node, the minimizers of the node's cost plus the change cost
+         * from a parent with <var>x</var> copies is
+         * min(max(<var>x</var>, lower), upper).
+         */
+        private final int[] lower;
+        private final int[] upper;
+        /**
+         * Scratch space: function at the current node, and the sum being built.
+         */
+        private int[] node_positions;
+        private double[] node_slopes;
+        private int[] sum_positions;
+        private double[] sum_slopes;
+
+        /**
+         * Computes the optimal reconstruction for a family.
+         *
+         * @param profile family sizes at the leaves; negative for missing
+         * @param copies array filled with the reconstructed copy numbers
+         * @return the minimum score
+         */
+        double solve(int[] profile, int[] copies)
+        {
+            int num_nodes = tree.getNumNodes();
+            double g = gain_penalty;
+            double l = loss_penalty;
+            int root_idx = num_nodes-1;
+            double root_score = 0.0;
+            for (int node_idx=0; node_idx<num_nodes; node_idx++)
+            {
+                if (tree.isLeaf(node_idx))
+                {
+                    int n = profile[node_idx];
+                    if (n<0)
+                    {
+                        // no constraint
+                        setEdgeFunction(node_idx, 0.0, 1);
+                        edge_positions[node_idx][0] = 0;
+                        edge_slopes[node_idx][0] = 0.0;
+                        lower[node_idx] = 0;
+                        upper[node_idx] = Integer.MAX_VALUE;
+                    } else
+                    {
+                        if (n==0)
+                        {
+                            setEdgeFunction(node_idx, 0.0, 1);
+                            edge_positions[node_idx][0] = 0;
+                            edge_slopes[node_idx][0] = l;
+                        } else
+                        {
+                            setEdgeFunction(node_idx, g*n, 2);
+                            edge_positions[node_idx][0] = 0;
+                            edge_slopes[node_idx][0] = -g;
+                            edge_positions[node_idx][1] = n;
+                            edge_slopes[node_idx][1] = l;
+                        }
+                        lower[node_idx] = upper[node_idx] = n;
+                    }
+                } else
+                {
+                    // sum of the children's edge functions
+                    int num_children = tree.getNumChildren(node_idx);
+                    int first_child = tree.getChildIndex(node_idx, 0);
+                    int k = edge_length[first_child];
+                    ensureScratchCapacity(k);
+                    System.arraycopy(edge_positions[first_child], 0, node_positions, 0, k);
+                    System.arraycopy(edge_slopes[first_child], 0, node_slopes, 0, k);
+                    double value = edge_value[first_child];
+                    for (int ci=1; ci<num_children; ci++)
+                    {
+                        int child_idx = tree.getChildIndex(node_idx, ci);
+                        k = addFunction(k, edge_positions[child_idx], edge_slopes[child_idx], edge_length[child_idx]);
+                        value += edge_value[child_idx];
+                    }
+                    if (node_idx == root_idx)
+                    {
+                        // minimum at the first segment with nonnegative slope
+                        int i = 0;
+                        while (i+1<k && node_slopes[i]<0.0)
+                        {
+                            value += node_slopes[i]*(node_positions[i+1]-node_positions[i]);
+                            i++;
+                        }
+                        root_score = value;
+                        copies[node_idx] = node_positions[i];
+                    } else
+                    {
+                        clampFunction(node_idx, value, k, g, l);
+                    }
+                }
+            }
+            // preorder
+            for (int node_idx=root_idx-1; node_idx>=0; node_idx--)
+            {
+                int x = copies[tree.getParentIndex(node_idx)];
+                copies[node_idx] = Math.min(Math.max(x, lower[node_idx]), upper[node_idx]);
+            }
+            return root_score;
+        }
+
+        private void setEdgeFunction(int node_idx, double value, int length)
+        {
+            int[] P = edge_positions[node_idx];
+            if (P==null || P.length<length)
+            {
+                int capacity = Math.max(length, P==null?0:2*P.length);
+                edge_positions[node_idx] = new int[capacity];
+                edge_slopes[node_idx] = new double[capacity];
+            }
+            edge_value[node_idx] = value;
+            edge_length[node_idx] = length;
+        }
+
+        private void ensureScratchCapacity(int length)
+        {
+            if (node_positions.length<length)
+            {
+                int capacity = Math.max(length, 2*node_positions.length);
+                node_positions = Arrays.copyOf(node_positions, capacity);
+                node_slopes = Arrays.copyOf(node_slopes, capacity);
+                sum_positions = new int[capacity];
+                sum_slopes = new double[capacity];
+            }
+        }
+
+        /**
+         * Adds a function to the node's function by merging the breakpoints.
+         *
+         * @return new number of segments
+         */
+        private int addFunction(int k, int[] positions, double[] slopes, int length)
+        {
+            ensureScratchCapacity(k+length);
+            int i = 0, j = 0, m = 0;
+            while (i<k || j<length)
+            {
+                int pos;
+                if (j==length || (i<k && node_positions[i]<positions[j]))
+                    pos = node_positions[i++];
+                else if (i==k || positions[j]<node_positions[i])
+                    pos = positions[j++];
+                else
+                {
+                    pos = positions[j++];
+                    i++;
+                }
+                // slopes in effect at pos
+                sum_positions[m] = pos;
+                sum_slopes[m] = node_slopes[i-1]+slopes[j-1];
+                m++;
+            }
+            int[] P = node_positions; node_positions = sum_positions; sum_positions = P;
+            double[] S = node_slopes; node_slopes = sum_slopes; sum_slopes = S;
+            return m;
+        }
+
+        /**
+         * Min-plus convolution of the node's function with the change cost:
+         * the slopes are clamped to [-<var>g</var>, <var>l</var>]; adjacent segments with equal slopes are merged.
+         * Also sets the bounds for the reconstruction.
+         */
+        private void clampFunction(int node_idx, double value, int k, double g, double l)
+        {
+            // value at 0 is the minimum of f(y)+g*y
+            int lo = 0;
+            while (lo+1<k && node_slopes[lo]<-g)
+            {
+                value += (node_slopes[lo]+g)*(node_positions[lo+1]-node_positions[lo]);
+                lo++;
+            }
+            int hi = lo;
+            while (hi<k && node_slopes[hi]<=l)
+                hi++;
+            lower[node_idx] = node_positions[lo];
+            upper[node_idx] = (hi<k?node_positions[hi]:Integer.MAX_VALUE);
+
+            setEdgeFunction(node_idx, value, k);
+            int[] P = edge_positions[node_idx];
+            double[] S = edge_slopes[node_idx];
+            int m = 0;
+            for (int i=0; i<k; i++)
+            {
+                double s = Math.min(Math.max(node_slopes[i], -g), l);
+                if (m>0 && S[m-1]==s)
+                    continue;
+                P[m] = node_positions[i];
+                S[m] = s;
+                m++;
+            }
+            edge_length[node_idx] = m;
+        }
+    }
+
+    /**
+     * Test code --- reads a tree and a table, and writes the
+     * Wagner parsimony score and the per-edge totals to stdout.
+     *
+     * @param args command line arguments: tree, table, and optionally the gain penalty, the loss penalty and the number of threads
+     * @throws Exception whenever it feels like it
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2 || args.length > 5)
+            throw new IllegalArgumentException("Call as java "+WagnerParsimony.class.getName()+" tree table [gain [loss [threads]]]");
+        Phylogeny tree = Phylogeny.readNewick(new count.io.GeneralizedFileReader(args[0]));
+        OccurrenceTable table = new OccurrenceTable(IndexedTreeTraversal.getLeafNames(tree));
+        table.readTable(new count.io.GeneralizedFileReader(args[1]), true);
+        double gain = (args.length>2?Double.parseDouble(args[2]):1.0);
+        double loss = (args.length>3?Double.parseDouble(args[3]):1.0);
+        ForkJoinPool pool = (args.length>4
+                ?new ForkJoinPool(Integer.parseInt(args[4]))
+                :ForkJoinPool.commonPool());
+
+        PrintStream out = System.out;
+        out.println(Executable.getStandardHeader(WagnerParsimony.class));
+        out.println(Executable.getStandardRuntimeInfo());
+        out.println(Executable.getStandardHeader("Tree file: "+args[0]));
+        out.println(Executable.getStandardHeader("Table file: "+args[1]));
+        out.println(Executable.getStandardHeader("Penalties: gain "+gain+", loss "+loss));
+
+        WagnerParsimony W = new WagnerParsimony(tree, table);
+        W.setPenalties(gain, loss);
+        long time_start = System.currentTimeMillis();
+        W.computeParsimony(pool);
+        long time_end = System.currentTimeMillis();
+        out.println(Executable.getStandardHeader("Time: "+(time_end-time_start)+" ms for "+table.getFamilyCount()+" families"));
+
+        out.println("#node\tname\tcopies\tgains\tlosses");
+        for (int node_idx=0; node_idx<tree.getNumNodes(); node_idx++)
+        {
+            String name = tree.isLeaf(node_idx)?tree.getName(node_idx):Integer.toString(node_idx);
+            out.println(node_idx+"\t"+name+"\t"+W.getCopyCount(node_idx)+"\t"+W.getGainCount(node_idx)+"\t"+W.getLossCount(node_idx));
+        }
+        out.println("#SCORE\t"+W.getScore());
+    }
+}